@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// benchmark shim
+public final class ContentValues {
+    private final LinkedHashMap<String, Object> mValues = new LinkedHashMap<String, Object>();
+
+    public void put(String key, String value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Byte value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Short value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Integer value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Long value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Float value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Double value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, Boolean value) {
+        mValues.put(key, value);
+    }
+
+    public void put(String key, byte[] value) {
+        mValues.put(key, value);
+    }
+
+    public void putNull(String key) {
+        mValues.put(key, null);
+    }
+
+    public int size() {
+        return mValues.size();
+    }
+
+    public void remove(String key) {
+        mValues.remove(key);
+    }
+
+    public void clear() {
+        mValues.clear();
+    }
+
+    public boolean containsKey(String key) {
+        return mValues.containsKey(key);
+    }
+
+    public Object get(String key) {
+        return mValues.get(key);
+    }
+
+    public String getAsString(String key) {
+        Object value = mValues.get(key);
+        return value == null ? null : value.toString();
+    }
+
+    public Long getAsLong(String key) {
+        Object value = mValues.get(key);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Boolean) {
+            return ((Boolean) value) ? 1L : 0L;
+        }
+        return Long.valueOf(value.toString());
+    }
+
+    public Integer getAsInteger(String key) {
+        Long value = getAsLong(key);
+        return value == null ? null : value.intValue();
+    }
+
+    public Boolean getAsBoolean(String key) {
+        Object value = mValues.get(key);
+        if (value == null || value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return getAsLong(key) != 0;
+    }
+
+    public byte[] getAsByteArray(String key) {
+        Object value = mValues.get(key);
+        return value instanceof byte[] ? (byte[]) value : null;
+    }
+
+    public Set<String> keySet() {
+        return mValues.keySet();
+    }
+
+    public Set<Map.Entry<String, Object>> valueSet() {
+        return mValues.entrySet();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.content;
+
+import java.io.File;
+
+// benchmark shim, resources resolve to their IDs and files live below one directory
+public class Context {
+    public static final int MODE_PRIVATE = 0x0000;
+
+    private static File sBaseDir;
+    private static final ContentResolver sContentResolver = new ContentResolver();
+
+    private static synchronized File getBaseDir() {
+        if (sBaseDir == null) {
+            String dir = System.getProperty("apg.benchmark.dir");
+            if (dir == null) {
+                dir = new File(System.getProperty("java.io.tmpdir"),
+                               "apg-benchmark-" + System.nanoTime()).getPath();
+            }
+            sBaseDir = new File(dir);
+            sBaseDir.mkdirs();
+        }
+        return sBaseDir;
+    }
+
+    public String getString(int resId) {
+        return "@string/0x" + Integer.toHexString(resId);
+    }
+
+    public String getString(int resId, Object... formatArgs) {
+        StringBuilder result = new StringBuilder(getString(resId));
+        for (Object arg : formatArgs) {
+            result.append(' ').append(arg);
+        }
+        return result.toString();
+    }
+
+    public ContentResolver getContentResolver() {
+        return sContentResolver;
+    }
+
+    public String getPackageName() {
+        return "org.thialfihar.android.apg";
+    }
+
+    public File getCacheDir() {
+        File dir = new File(getBaseDir(), "cache");
+        dir.mkdirs();
+        return dir;
+    }
+
+    public File getDir(String name, int mode) {
+        File dir = new File(getBaseDir(), "app_" + name);
+        dir.mkdirs();
+        return dir;
+    }
+
+    public File getDatabasePath(String name) {
+        File dir = new File(getBaseDir(), "databases");
+        dir.mkdirs();
+        return new File(dir, name);
+    }
+}
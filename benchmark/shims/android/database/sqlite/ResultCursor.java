@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Vector;
+
+import android.database.Cursor;
+
+// reads the whole result set up front, like a CursorWindow that is large enough
+class ResultCursor implements Cursor {
+    private final String mColumns[];
+    private final Vector<Object[]> mRows = new Vector<Object[]>();
+    private int mPosition = -1;
+    private boolean mClosed = false;
+
+    public ResultCursor(ResultSet result) throws SQLException {
+        ResultSetMetaData meta = result.getMetaData();
+        mColumns = new String[meta.getColumnCount()];
+        for (int i = 0; i < mColumns.length; ++i) {
+            mColumns[i] = meta.getColumnLabel(i + 1);
+        }
+        while (result.next()) {
+            Object row[] = new Object[mColumns.length];
+            for (int i = 0; i < row.length; ++i) {
+                row[i] = result.getObject(i + 1);
+            }
+            mRows.add(row);
+        }
+    }
+
+    private Object value(int columnIndex) {
+        if (mPosition < 0 || mPosition >= mRows.size()) {
+            throw new IllegalStateException("cursor is not on a row, position " + mPosition);
+        }
+        return mRows.get(mPosition)[columnIndex];
+    }
+
+    private Number number(int columnIndex) {
+        Object value = value(columnIndex);
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Number) {
+            return (Number) value;
+        }
+        return Double.valueOf(value.toString());
+    }
+
+    public int getCount() {
+        return mRows.size();
+    }
+
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public boolean move(int offset) {
+        return moveToPosition(mPosition + offset);
+    }
+
+    public boolean moveToPosition(int position) {
+        if (position < 0) {
+            mPosition = -1;
+            return false;
+        }
+        if (position >= mRows.size()) {
+            mPosition = mRows.size();
+            return false;
+        }
+        mPosition = position;
+        return true;
+    }
+
+    public boolean moveToFirst() {
+        return moveToPosition(0);
+    }
+
+    public boolean moveToLast() {
+        return moveToPosition(mRows.size() - 1);
+    }
+
+    public boolean moveToNext() {
+        return moveToPosition(mPosition + 1);
+    }
+
+    public boolean moveToPrevious() {
+        return moveToPosition(mPosition - 1);
+    }
+
+    public boolean isFirst() {
+        return mPosition == 0 && mRows.size() > 0;
+    }
+
+    public boolean isLast() {
+        return mPosition == mRows.size() - 1 && mRows.size() > 0;
+    }
+
+    public boolean isBeforeFirst() {
+        return mRows.size() == 0 || mPosition == -1;
+    }
+
+    public boolean isAfterLast() {
+        return mRows.size() == 0 || mPosition == mRows.size();
+    }
+
+    public int getColumnIndex(String columnName) {
+        // qualified names like "table.column" are reported without the table
+        int dot = columnName.lastIndexOf('.');
+        if (dot != -1) {
+            columnName = columnName.substring(dot + 1);
+        }
+        for (int i = 0; i < mColumns.length; ++i) {
+            if (mColumns[i].equalsIgnoreCase(columnName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int getColumnIndexOrThrow(String columnName) {
+        int index = getColumnIndex(columnName);
+        if (index < 0) {
+            throw new IllegalArgumentException("column '" + columnName + "' does not exist");
+        }
+        return index;
+    }
+
+    public String getColumnName(int columnIndex) {
+        return mColumns[columnIndex];
+    }
+
+    public String[] getColumnNames() {
+        return mColumns.clone();
+    }
+
+    public int getColumnCount() {
+        return mColumns.length;
+    }
+
+    public byte[] getBlob(int columnIndex) {
+        Object value = value(columnIndex);
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        }
+        return value.toString().getBytes();
+    }
+
+    public String getString(int columnIndex) {
+        Object value = value(columnIndex);
+        if (value == null || value instanceof String) {
+            return (String) value;
+        }
+        if (value instanceof byte[]) {
+            return new String((byte[]) value);
+        }
+        return value.toString();
+    }
+
+    public short getShort(int columnIndex) {
+        return number(columnIndex).shortValue();
+    }
+
+    public int getInt(int columnIndex) {
+        return number(columnIndex).intValue();
+    }
+
+    public long getLong(int columnIndex) {
+        return number(columnIndex).longValue();
+    }
+
+    public float getFloat(int columnIndex) {
+        return number(columnIndex).floatValue();
+    }
+
+    public double getDouble(int columnIndex) {
+        return number(columnIndex).doubleValue();
+    }
+
+    public boolean isNull(int columnIndex) {
+        return value(columnIndex) == null;
+    }
+
+    public void close() {
+        mClosed = true;
+        mRows.clear();
+    }
+
+    public boolean isClosed() {
+        return mClosed;
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+
+// benchmark shim on top of the xerial sqlite-jdbc driver, transactions nest like on Android
+public class SQLiteDatabase {
+    public interface CursorFactory {
+    }
+
+    private final Connection mConnection;
+    private final String mPath;
+    private int mTransactionDepth = 0;
+    private boolean mTransactionFailed = false;
+    private boolean mInnerSuccessful = false;
+
+    private SQLiteDatabase(String path) throws SQLException {
+        mPath = path;
+        mConnection = DriverManager.getConnection("jdbc:sqlite:" + path);
+    }
+
+    public static SQLiteDatabase openOrCreateDatabase(String path, CursorFactory factory) {
+        try {
+            return new SQLiteDatabase(path);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    static long lastInsertRowId(Connection connection) throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet result = statement.executeQuery("SELECT last_insert_rowid()");
+            result.next();
+            return result.getLong(1);
+        } finally {
+            statement.close();
+        }
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public int getVersion() {
+        Cursor c = rawQuery("PRAGMA user_version", null);
+        try {
+            return c.moveToFirst() ? c.getInt(0) : 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    public void setVersion(int version) {
+        execSQL("PRAGMA user_version = " + version);
+    }
+
+    public void execSQL(String sql) {
+        try {
+            Statement statement = mConnection.createStatement();
+            try {
+                statement.execute(sql);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void execSQL(String sql, Object bindArgs[]) {
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                for (int i = 0; i < bindArgs.length; ++i) {
+                    bind(statement, i + 1, bindArgs[i]);
+                }
+                statement.execute();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public SQLiteStatement compileStatement(String sql) {
+        try {
+            return new SQLiteStatement(mConnection, sql);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public Cursor rawQuery(String sql, String selectionArgs[]) {
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql);
+            try {
+                if (selectionArgs != null) {
+                    for (int i = 0; i < selectionArgs.length; ++i) {
+                        statement.setString(i + 1, selectionArgs[i]);
+                    }
+                }
+                ResultSet result = statement.executeQuery();
+                try {
+                    return new ResultCursor(result);
+                } finally {
+                    result.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage() + ": " + sql, e);
+        }
+    }
+
+    public Cursor query(String table, String columns[], String selection,
+                        String selectionArgs[], String groupBy, String having,
+                        String orderBy) {
+        return query(table, columns, selection, selectionArgs, groupBy, having, orderBy, null);
+    }
+
+    public Cursor query(String table, String columns[], String selection,
+                        String selectionArgs[], String groupBy, String having,
+                        String orderBy, String limit) {
+        StringBuilder sql = new StringBuilder("SELECT ");
+        if (columns == null || columns.length == 0) {
+            sql.append("*");
+        } else {
+            for (int i = 0; i < columns.length; ++i) {
+                if (i > 0) {
+                    sql.append(", ");
+                }
+                sql.append(columns[i]);
+            }
+        }
+        sql.append(" FROM ").append(table);
+        appendClause(sql, " WHERE ", selection);
+        appendClause(sql, " GROUP BY ", groupBy);
+        appendClause(sql, " HAVING ", having);
+        appendClause(sql, " ORDER BY ", orderBy);
+        appendClause(sql, " LIMIT ", limit);
+        return rawQuery(sql.toString(), selectionArgs);
+    }
+
+    private static void appendClause(StringBuilder sql, String name, String clause) {
+        if (clause != null && clause.length() > 0) {
+            sql.append(name).append(clause);
+        }
+    }
+
+    public long insert(String table, String nullColumnHack, ContentValues values) {
+        StringBuilder sql = new StringBuilder("INSERT INTO " + table + " (");
+        StringBuilder params = new StringBuilder();
+        int count = 0;
+        for (String key : values.keySet()) {
+            if (count > 0) {
+                sql.append(", ");
+                params.append(", ");
+            }
+            sql.append(key);
+            params.append("?");
+            ++count;
+        }
+        if (count == 0) {
+            sql.append(nullColumnHack);
+            params.append("NULL");
+        }
+        sql.append(") VALUES (").append(params).append(")");
+
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql.toString());
+            try {
+                bind(statement, 1, values);
+                statement.executeUpdate();
+                return lastInsertRowId(mConnection);
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    public int update(String table, ContentValues values, String whereClause, String whereArgs[]) {
+        StringBuilder sql = new StringBuilder("UPDATE " + table + " SET ");
+        int count = 0;
+        for (String key : values.keySet()) {
+            if (count > 0) {
+                sql.append(", ");
+            }
+            sql.append(key).append(" = ?");
+            ++count;
+        }
+        appendClause(sql, " WHERE ", whereClause);
+
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql.toString());
+            try {
+                int index = bind(statement, 1, values);
+                if (whereArgs != null) {
+                    for (String arg : whereArgs) {
+                        statement.setString(index++, arg);
+                    }
+                }
+                return statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public int delete(String table, String whereClause, String whereArgs[]) {
+        StringBuilder sql = new StringBuilder("DELETE FROM " + table);
+        appendClause(sql, " WHERE ", whereClause);
+
+        try {
+            PreparedStatement statement = mConnection.prepareStatement(sql.toString());
+            try {
+                if (whereArgs != null) {
+                    for (int i = 0; i < whereArgs.length; ++i) {
+                        statement.setString(i + 1, whereArgs[i]);
+                    }
+                }
+                return statement.executeUpdate();
+            } finally {
+                statement.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    private static int bind(PreparedStatement statement, int index, ContentValues values)
+            throws SQLException {
+        for (Map.Entry<String, Object> entry : values.valueSet()) {
+            bind(statement, index++, entry.getValue());
+        }
+        return index;
+    }
+
+    private static void bind(PreparedStatement statement, int index, Object value)
+            throws SQLException {
+        if (value == null) {
+            statement.setNull(index, Types.NULL);
+        } else if (value instanceof byte[]) {
+            statement.setBytes(index, (byte[]) value);
+        } else if (value instanceof Boolean) {
+            statement.setLong(index, ((Boolean) value) ? 1 : 0);
+        } else if (value instanceof Float || value instanceof Double) {
+            statement.setDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.setLong(index, ((Number) value).longValue());
+        } else {
+            statement.setString(index, value.toString());
+        }
+    }
+
+    public void beginTransaction() {
+        try {
+            if (mTransactionDepth == 0) {
+                mConnection.setAutoCommit(false);
+                mTransactionFailed = false;
+            }
+            ++mTransactionDepth;
+            mInnerSuccessful = false;
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void setTransactionSuccessful() {
+        if (mTransactionDepth == 0) {
+            throw new IllegalStateException("no transaction pending");
+        }
+        mInnerSuccessful = true;
+    }
+
+    public boolean inTransaction() {
+        return mTransactionDepth > 0;
+    }
+
+    public void endTransaction() {
+        if (mTransactionDepth == 0) {
+            throw new IllegalStateException("no transaction pending");
+        }
+        if (!mInnerSuccessful) {
+            mTransactionFailed = true;
+        }
+        // the enclosing transaction has to call setTransactionSuccessful() itself again
+        mInnerSuccessful = false;
+        --mTransactionDepth;
+        if (mTransactionDepth > 0) {
+            return;
+        }
+
+        try {
+            if (mTransactionFailed) {
+                mConnection.rollback();
+            } else {
+                mConnection.commit();
+            }
+            mConnection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public boolean isOpen() {
+        try {
+            return !mConnection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    public void close() {
+        try {
+            mConnection.close();
+        } catch (SQLException e) {
+            // nothing to do
+        }
+    }
+}
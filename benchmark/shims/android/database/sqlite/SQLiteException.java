@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+// benchmark shim
+public class SQLiteException extends RuntimeException {
+    private static final long serialVersionUID = -3470958213719524364L;
+
+    public SQLiteException() {
+        super();
+    }
+
+    public SQLiteException(String error) {
+        super(error);
+    }
+
+    public SQLiteException(String error, Throwable cause) {
+        super(error, cause);
+    }
+}
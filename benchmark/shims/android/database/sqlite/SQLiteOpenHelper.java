@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.Context;
+
+// benchmark shim, keeps one connection per helper and tracks the schema in user_version
+public abstract class SQLiteOpenHelper {
+    private final Context mContext;
+    private final String mName;
+    private final int mNewVersion;
+    private SQLiteDatabase mDatabase = null;
+
+    public SQLiteOpenHelper(Context context, String name,
+                            SQLiteDatabase.CursorFactory factory, int version) {
+        mContext = context;
+        mName = name;
+        mNewVersion = version;
+    }
+
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        if (mDatabase != null && mDatabase.isOpen()) {
+            return mDatabase;
+        }
+
+        String path = ":memory:";
+        if (mName != null) {
+            path = mContext.getDatabasePath(mName).getPath();
+        }
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(path, null);
+        int version = db.getVersion();
+        if (version != mNewVersion) {
+            db.beginTransaction();
+            try {
+                if (version == 0) {
+                    onCreate(db);
+                } else {
+                    onUpgrade(db, version, mNewVersion);
+                }
+                db.setVersion(mNewVersion);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        onOpen(db);
+        mDatabase = db;
+        return db;
+    }
+
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        return getWritableDatabase();
+    }
+
+    public synchronized void close() {
+        if (mDatabase != null) {
+            mDatabase.close();
+            mDatabase = null;
+        }
+    }
+
+    public abstract void onCreate(SQLiteDatabase db);
+
+    public abstract void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion);
+
+    public void onOpen(SQLiteDatabase db) {
+    }
+}
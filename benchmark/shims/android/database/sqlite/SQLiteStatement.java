@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+// benchmark shim around a prepared JDBC statement
+public class SQLiteStatement {
+    private final Connection mConnection;
+    private final PreparedStatement mStatement;
+
+    SQLiteStatement(Connection connection, String sql) throws SQLException {
+        mConnection = connection;
+        mStatement = connection.prepareStatement(sql);
+    }
+
+    public void bindNull(int index) {
+        try {
+            mStatement.setNull(index, Types.NULL);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void bindLong(int index, long value) {
+        try {
+            mStatement.setLong(index, value);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void bindDouble(int index, double value) {
+        try {
+            mStatement.setDouble(index, value);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void bindString(int index, String value) {
+        try {
+            mStatement.setString(index, value);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void bindBlob(int index, byte[] value) {
+        try {
+            mStatement.setBytes(index, value);
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void clearBindings() {
+        try {
+            mStatement.clearParameters();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void execute() {
+        try {
+            mStatement.execute();
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public long executeInsert() {
+        try {
+            if (mStatement.executeUpdate() == 0) {
+                return -1;
+            }
+            return SQLiteDatabase.lastInsertRowId(mConnection);
+        } catch (SQLException e) {
+            return -1;
+        }
+    }
+
+    public long simpleQueryForLong() {
+        try {
+            ResultSet result = mStatement.executeQuery();
+            try {
+                if (!result.next()) {
+                    throw new SQLiteDoneException("no rows");
+                }
+                return result.getLong(1);
+            } finally {
+                result.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public String simpleQueryForString() {
+        try {
+            ResultSet result = mStatement.executeQuery();
+            try {
+                if (!result.next()) {
+                    throw new SQLiteDoneException("no rows");
+                }
+                return result.getString(1);
+            } finally {
+                result.close();
+            }
+        } catch (SQLException e) {
+            throw new SQLiteException(e.getMessage(), e);
+        }
+    }
+
+    public void close() {
+        try {
+            mStatement.close();
+        } catch (SQLException e) {
+            // nothing to do
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+// benchmark shim, only what Apg's static initializer and DataSource need
+public abstract class Uri {
+    private static class StringUri extends Uri {
+        private final String mUri;
+
+        public StringUri(String uri) {
+            mUri = uri;
+        }
+
+        @Override
+        public String getScheme() {
+            int index = mUri.indexOf(':');
+            return index == -1 ? null : mUri.substring(0, index);
+        }
+
+        @Override
+        public String getPath() {
+            int index = mUri.indexOf("://");
+            String rest = index == -1 ? mUri : mUri.substring(index + 3);
+            index = rest.indexOf('/');
+            return index == -1 ? "" : rest.substring(index);
+        }
+
+        @Override
+        public String toString() {
+            return mUri;
+        }
+    }
+
+    public abstract String getScheme();
+
+    public abstract String getPath();
+
+    public static Uri parse(String uriString) {
+        return new StringUri(uriString);
+    }
+
+    public static Uri fromFile(java.io.File file) {
+        return new StringUri("file://" + file.getAbsolutePath());
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.HashMap;
+import java.util.Set;
+
+// benchmark shim
+public final class Bundle {
+    private final HashMap<String, Object> mMap = new HashMap<String, Object>();
+
+    public boolean containsKey(String key) {
+        return mMap.containsKey(key);
+    }
+
+    public Set<String> keySet() {
+        return mMap.keySet();
+    }
+
+    public Object get(String key) {
+        return mMap.get(key);
+    }
+
+    public void putBoolean(String key, boolean value) {
+        mMap.put(key, value);
+    }
+
+    public void putInt(String key, int value) {
+        mMap.put(key, value);
+    }
+
+    public void putLong(String key, long value) {
+        mMap.put(key, value);
+    }
+
+    public void putString(String key, String value) {
+        mMap.put(key, value);
+    }
+
+    public void putByteArray(String key, byte[] value) {
+        mMap.put(key, value);
+    }
+
+    public void putLongArray(String key, long[] value) {
+        mMap.put(key, value);
+    }
+
+    public boolean getBoolean(String key) {
+        Object value = mMap.get(key);
+        return value == null ? false : (Boolean) value;
+    }
+
+    public int getInt(String key) {
+        Object value = mMap.get(key);
+        return value == null ? 0 : (Integer) value;
+    }
+
+    public long getLong(String key) {
+        Object value = mMap.get(key);
+        return value == null ? 0 : (Long) value;
+    }
+
+    public String getString(String key) {
+        return (String) mMap.get(key);
+    }
+
+    public byte[] getByteArray(String key) {
+        return (byte[]) mMap.get(key);
+    }
+
+    public long[] getLongArray(String key) {
+        return (long[]) mMap.get(key);
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+// benchmark shim
+public final class Message {
+    public int what;
+    public Object obj;
+    private Bundle mData;
+
+    public Bundle getData() {
+        if (mData == null) {
+            mData = new Bundle();
+        }
+        return mData;
+    }
+
+    public void setData(Bundle data) {
+        mData = data;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.text;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// benchmark shim, strips tags and decodes the entities key servers use
+public final class Html {
+    private static final Pattern TAG = Pattern.compile("<[^>]*>");
+    private static final Pattern ENTITY = Pattern.compile("&(#x?)?([0-9a-zA-Z]+);");
+
+    private static class PlainSpanned implements Spanned {
+        private final String mText;
+
+        public PlainSpanned(String text) {
+            mText = text;
+        }
+
+        public int length() {
+            return mText.length();
+        }
+
+        public char charAt(int index) {
+            return mText.charAt(index);
+        }
+
+        public CharSequence subSequence(int start, int end) {
+            return mText.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return mText;
+        }
+    }
+
+    public static Spanned fromHtml(String source) {
+        String text = TAG.matcher(source).replaceAll("");
+        if (text.indexOf('&') == -1) {
+            return new PlainSpanned(text);
+        }
+
+        Matcher matcher = ENTITY.matcher(text);
+        StringBuffer result = new StringBuffer(text.length());
+        while (matcher.find()) {
+            String replacement = decode(matcher.group(1), matcher.group(2));
+            if (replacement == null) {
+                replacement = matcher.group(0);
+            }
+            matcher.appendReplacement(result, Matcher.quoteReplacement(replacement));
+        }
+        matcher.appendTail(result);
+        return new PlainSpanned(result.toString());
+    }
+
+    private static String decode(String numeric, String name) {
+        if (numeric != null) {
+            try {
+                int radix = numeric.length() > 1 ? 16 : 10;
+                return new String(Character.toChars(Integer.parseInt(name, radix)));
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        if (name.equals("lt")) {
+            return "<";
+        } else if (name.equals("gt")) {
+            return ">";
+        } else if (name.equals("amp")) {
+            return "&";
+        } else if (name.equals("quot")) {
+            return "\"";
+        } else if (name.equals("apos")) {
+            return "'";
+        } else if (name.equals("nbsp")) {
+            return " ";
+        }
+        return null;
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Field;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.util.Date;
+import java.util.Random;
+
+import org.bouncycastle2.bcpg.CompressionAlgorithmTags;
+import org.bouncycastle2.bcpg.HashAlgorithmTags;
+import org.bouncycastle2.bcpg.SymmetricKeyAlgorithmTags;
+import org.bouncycastle2.bcpg.sig.KeyFlags;
+import org.bouncycastle2.jce.provider.BouncyCastleProvider;
+import org.bouncycastle2.openpgp.PGPEncryptedData;
+import org.bouncycastle2.openpgp.PGPKeyPair;
+import org.bouncycastle2.openpgp.PGPKeyRingGenerator;
+import org.bouncycastle2.openpgp.PGPPrivateKey;
+import org.bouncycastle2.openpgp.PGPPublicKey;
+import org.bouncycastle2.openpgp.PGPPublicKeyRing;
+import org.bouncycastle2.openpgp.PGPSecretKeyRing;
+import org.bouncycastle2.openpgp.PGPSignature;
+import org.bouncycastle2.openpgp.PGPSignatureGenerator;
+import org.bouncycastle2.openpgp.PGPSignatureSubpacketGenerator;
+
+// shared fixtures for the benchmarks, everything runs against the shims in benchmark/shims
+public final class BenchmarkSupport {
+    public static final String PASS_PHRASE = "benchmark";
+    public static final int KEY_SIZE = Integer.getInteger("apg.benchmark.keySize", 2048);
+
+    public static class KeyRings {
+        public final PGPSecretKeyRing secretKeyRing;
+        public final PGPPublicKeyRing publicKeyRing;
+        public final long masterKeyId;
+
+        public KeyRings(PGPSecretKeyRing secretKeyRing, PGPPublicKeyRing publicKeyRing) {
+            this.secretKeyRing = secretKeyRing;
+            this.publicKeyRing = publicKeyRing;
+            this.masterKeyId = publicKeyRing.getPublicKey().getKeyID();
+        }
+    }
+
+    public static class NullProgress implements ProgressDialogUpdater {
+        public void setProgress(String message, int current, int total) {
+        }
+
+        public void setProgress(int resourceId, int current, int total) {
+        }
+
+        public void setProgress(int current, int total) {
+        }
+    }
+
+    private static BaseActivity sContext = null;
+    private static KeyRings sDefaultKeyRings = null;
+
+    public static synchronized BaseActivity getContext() throws Exception {
+        if (sContext == null) {
+            Security.addProvider(new BouncyCastleProvider());
+
+            // getFullVersion() would ask the PackageManager otherwise
+            Field version = Apg.class.getDeclaredField("VERSION");
+            version.setAccessible(true);
+            version.set(null, "benchmark");
+
+            sContext = new BaseActivity();
+            Apg.initialize(sContext);
+        }
+        return sContext;
+    }
+
+    // the key ring the crypto benchmarks use, created and stored once per JVM
+    public static synchronized KeyRings getDefaultKeyRings() throws Exception {
+        if (sDefaultKeyRings == null) {
+            getContext();
+            sDefaultKeyRings = generateKeyRings("Benchmark <benchmark@example.org>");
+            saveKeyRings(sDefaultKeyRings);
+        }
+        return sDefaultKeyRings;
+    }
+
+    public static KeyRings generateKeyRings(String userId) throws Exception {
+        KeyPairGenerator keyGen = KeyPairGenerator.getInstance("RSA", new BouncyCastleProvider());
+        keyGen.initialize(KEY_SIZE, new SecureRandom());
+        PGPKeyPair keyPair = new PGPKeyPair(PGPPublicKey.RSA_GENERAL, keyGen.generateKeyPair(),
+                                            new Date());
+
+        PGPSignatureSubpacketGenerator hashedPacketsGen = new PGPSignatureSubpacketGenerator();
+        hashedPacketsGen.setKeyFlags(true, KeyFlags.CERTIFY_OTHER | KeyFlags.SIGN_DATA |
+                                           KeyFlags.ENCRYPT_COMMS | KeyFlags.ENCRYPT_STORAGE);
+        hashedPacketsGen.setPreferredSymmetricAlgorithms(true, new int[] {
+                SymmetricKeyAlgorithmTags.AES_256 });
+        hashedPacketsGen.setPreferredHashAlgorithms(true, new int[] {
+                HashAlgorithmTags.SHA256 });
+        hashedPacketsGen.setPreferredCompressionAlgorithms(true, new int[] {
+                CompressionAlgorithmTags.ZLIB });
+
+        PGPKeyRingGenerator ringGen =
+                new PGPKeyRingGenerator(PGPSignature.POSITIVE_CERTIFICATION,
+                                        keyPair, userId,
+                                        PGPEncryptedData.CAST5, PASS_PHRASE.toCharArray(),
+                                        hashedPacketsGen.generate(), null,
+                                        new SecureRandom(), new BouncyCastleProvider().getName());
+        return new KeyRings(ringGen.generateSecretKeyRing(), ringGen.generatePublicKeyRing());
+    }
+
+    public static void saveKeyRings(KeyRings keyRings) throws Exception {
+        Apg.getDatabase().saveKeyRing(keyRings.publicKeyRing);
+        Apg.getDatabase().saveKeyRing(keyRings.secretKeyRing);
+    }
+
+    // the public ring with another certified user ID, same master key, different data
+    public static PGPPublicKeyRing addUserId(KeyRings keyRings, String userId) throws Exception {
+        PGPPublicKey masterKey = keyRings.publicKeyRing.getPublicKey();
+        PGPPrivateKey privateKey =
+                keyRings.secretKeyRing.getSecretKey()
+                        .extractPrivateKey(PASS_PHRASE.toCharArray(),
+                                           new BouncyCastleProvider());
+        PGPSignatureGenerator sGen =
+                new PGPSignatureGenerator(masterKey.getAlgorithm(), HashAlgorithmTags.SHA1,
+                                          new BouncyCastleProvider());
+        sGen.initSign(PGPSignature.POSITIVE_CERTIFICATION, privateKey);
+        PGPSignature certification = sGen.generateCertification(userId, masterKey);
+        // a ring with a single key encodes as just that key
+        return new PGPPublicKeyRing(
+                PGPPublicKey.addCertification(masterKey, userId, certification).getEncoded());
+    }
+
+    public static InputData input(byte[] data) {
+        return new InputData(new ByteArrayInputStream(data), data.length);
+    }
+
+    // printable text with line breaks, so the same payload works for clear signing and is
+    // somewhat compressible, but not trivially so
+    public static byte[] payload(int size, long seed) {
+        Random random = new Random(seed);
+        byte data[] = new byte[size];
+        int lineLength = 0;
+        for (int i = 0; i < size; ++i) {
+            if (lineLength >= 60 + random.nextInt(20)) {
+                data[i] = '\n';
+                lineLength = 0;
+            } else {
+                data[i] = (byte) (random.nextInt(8) == 0 ? ' ' : 'a' + random.nextInt(26));
+                ++lineLength;
+            }
+        }
+        return data;
+    }
+
+    public static int compressionFromName(String name) {
+        if (name.equals("zlib")) {
+            return Id.choice.compression.zlib;
+        } else if (name.equals("zip")) {
+            return Id.choice.compression.zip;
+        } else if (name.equals("bzip2")) {
+            return Id.choice.compression.bzip2;
+        } else if (name.equals("auto")) {
+            return Id.choice.compression.auto;
+        }
+        return Id.choice.compression.none;
+    }
+
+    private BenchmarkSupport() {
+    }
+}
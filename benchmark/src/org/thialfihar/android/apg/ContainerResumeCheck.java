@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.bouncycastle2.openpgp.PGPEncryptedData;
+
+import android.content.Context;
+
+// fault injection for ChunkedContainer.encryptFile() and decryptFile(): both are killed
+// before the first checkpoint, right at one and between two, with a torn write left behind
+// like a crash would, then resumed. The result has to be the same as that of an
+// uninterrupted run, and a changed input or an expired checkpoint has to make them start
+// over. Not a benchmark, "ant check" runs it.
+public class ContainerResumeCheck {
+    private static final int CHUNK_SIZE = 1 << 20;
+    // chunks between two checkpoints, encrypted chunks are a little bigger than CHUNK_SIZE,
+    // but not enough to change that
+    private static final int CHECKPOINT_CHUNKS = ChunkedContainer.CHECKPOINT_INTERVAL / CHUNK_SIZE;
+    private static final int CHUNKS = 2 * CHECKPOINT_CHUNKS + 5;
+
+    private static class Killed extends RuntimeException {
+        static final long serialVersionUID = 0x2107000aL;
+    }
+
+    // both operations call setProgress(current, total) once per chunk, after the checkpoint
+    // for it was saved, so this stops them after a given number of chunks
+    private static class Killer implements ProgressDialogUpdater {
+        private int mKillAfter;
+        public int chunks = 0;
+
+        public Killer(int killAfter) {
+            mKillAfter = killAfter;
+        }
+
+        public void setProgress(String message, int current, int total) {
+        }
+
+        public void setProgress(int resourceId, int current, int total) {
+        }
+
+        public void setProgress(int current, int total) {
+            ++chunks;
+            if (mKillAfter > 0 && chunks >= mKillAfter) {
+                throw new Killed();
+            }
+        }
+    }
+
+    private static Context sContext;
+    private static Apg.EncryptionKeys sKeys;
+    private static int sChecks = 0;
+
+    public static void main(String args[]) throws Exception {
+        sContext = BenchmarkSupport.getContext();
+        sKeys = Apg.getEncryptionKeys(sContext, null, Id.key.none, null,
+                                      BenchmarkSupport.PASS_PHRASE, NoProgress.INSTANCE);
+        File dir = new File(System.getProperty("java.io.tmpdir"),
+                            "apg-resume-check-" + System.nanoTime());
+        dir.mkdirs();
+
+        byte plain[] = new byte[CHUNKS * CHUNK_SIZE - 12345];
+        new Random(1).nextBytes(plain);
+        File input = new File(dir, "plain");
+        write(input, plain, false);
+
+        // before the first checkpoint, right at one, between two and right at the last one
+        int killPoints[] = { 3, CHECKPOINT_CHUNKS, CHECKPOINT_CHUNKS + 3, 2 * CHECKPOINT_CHUNKS };
+        for (int killAfter : killPoints) {
+            File encrypted = new File(dir, "encrypted-" + killAfter);
+            checkEncryption(input, encrypted, plain, killAfter);
+            checkDecryption(encrypted, new File(dir, "decrypted-" + killAfter), plain,
+                            killAfter);
+        }
+        checkExpired(input, new File(dir, "encrypted-expired"));
+        checkChangedInput(input, new File(dir, "encrypted-changed"), plain);
+
+        System.out.println("ContainerResumeCheck: " + sChecks + " checks passed in " + dir);
+    }
+
+    private static void checkEncryption(File input, File output, byte plain[], int killAfter)
+            throws Exception {
+        Checkpoint checkpoint = Checkpoint.get(sContext, input, output);
+        checkpoint.discard();
+        killEncryption(checkpoint, killAfter);
+
+        ChunkedContainer.State state = checkpoint.loadEncryption();
+        int saved = killAfter / CHECKPOINT_CHUNKS * CHECKPOINT_CHUNKS;
+        byte written[] = new byte[0];
+        if (saved == 0) {
+            // nothing worth resuming yet, and the chunk key wasn't stored for it
+            check(state == null && !checkpoint.exists(),
+                  "encryption killed after " + killAfter + " chunks left no checkpoint");
+        } else {
+            check(state != null,
+                  "encryption killed after " + killAfter + " chunks left a checkpoint");
+            check(state.offsets.size() == saved,
+                  "encryption killed after " + killAfter + " chunks has a checkpoint after " +
+                  saved + " chunks, not " + state.offsets.size());
+            written = Arrays.copyOf(read(output), (int) state.length);
+        }
+        tear(output);
+
+        Killer resumed = new Killer(0);
+        ChunkedContainer.encryptFile(sContext, checkpoint, sKeys, BenchmarkSupport.PASS_PHRASE,
+                                     PGPEncryptedData.AES_256, CHUNK_SIZE, resumed);
+        check(resumed.chunks == CHUNKS - saved,
+              "resumed encryption wrote " + resumed.chunks + " chunks, not " + (CHUNKS - saved));
+        check(!checkpoint.exists(), "finished encryption dropped its checkpoint");
+        check(Arrays.equals(written, Arrays.copyOf(read(output), written.length)),
+              "resumed encryption kept everything up to the checkpoint");
+        check(Arrays.equals(decrypt(output), plain),
+              "encryption killed after " + killAfter + " chunks decrypts to the input");
+    }
+
+    private static void checkDecryption(File input, File output, byte plain[], int killAfter)
+            throws Exception {
+        Checkpoint checkpoint = Checkpoint.get(sContext, input, output);
+        checkpoint.discard();
+        try {
+            ChunkedContainer.decryptFile(sContext, checkpoint, BenchmarkSupport.PASS_PHRASE,
+                                         true, null, new Killer(killAfter));
+            throw new AssertionError("decryption wasn't killed after " + killAfter + " chunks");
+        } catch (Killed e) {
+            // that's the idea
+        }
+
+        int saved = killAfter / CHECKPOINT_CHUNKS * CHECKPOINT_CHUNKS;
+        check(checkpoint.loadDecryption() == (saved > 0 ? (long) saved * CHUNK_SIZE : -1),
+              "decryption killed after " + killAfter + " chunks has a checkpoint after " +
+              saved + " chunks");
+        tear(output);
+
+        Killer resumed = new Killer(0);
+        ChunkedContainer.decryptFile(sContext, checkpoint, BenchmarkSupport.PASS_PHRASE, true,
+                                     null, resumed);
+        check(resumed.chunks == CHUNKS - saved,
+              "resumed decryption wrote " + resumed.chunks + " chunks, not " + (CHUNKS - saved));
+        check(!checkpoint.exists(), "finished decryption dropped its checkpoint");
+        check(Arrays.equals(read(output), plain),
+              "decryption killed after " + killAfter + " chunks is byte for byte the input");
+    }
+
+    // a checkpoint that is never resumed doesn't keep the chunk key around for long
+    private static void checkExpired(File input, File output) throws Exception {
+        Checkpoint checkpoint = Checkpoint.get(sContext, input, output);
+        checkpoint.discard();
+        killEncryption(checkpoint, CHECKPOINT_CHUNKS + 3);
+        check(checkpoint.exists(), "killed encryption left a checkpoint");
+
+        File files[] = sContext.getDir("checkpoints", Context.MODE_PRIVATE).listFiles();
+        for (File file : files) {
+            file.setLastModified(0);
+        }
+        checkpoint = Checkpoint.get(sContext, input, output);
+        check(!checkpoint.exists(), "an old checkpoint expired");
+        check(sContext.getDir("checkpoints", Context.MODE_PRIVATE).listFiles().length == 0,
+              "expiring removed all old checkpoints");
+        checkpoint.discard();
+    }
+
+    // the checkpoint is only good for the input it was made for
+    private static void checkChangedInput(File input, File output, byte plain[])
+            throws Exception {
+        Checkpoint checkpoint = Checkpoint.get(sContext, input, output);
+        checkpoint.discard();
+        killEncryption(checkpoint, CHECKPOINT_CHUNKS + 3);
+        check(checkpoint.loadEncryption() != null, "killed encryption left a checkpoint");
+
+        byte changed[] = Arrays.copyOf(plain, plain.length + 1000);
+        new Random(2).nextBytes(changed);
+        write(input, changed, false);
+        input.setLastModified(input.lastModified() + 2000);
+        check(checkpoint.loadEncryption() == null, "changed input invalidates the checkpoint");
+
+        Killer restarted = new Killer(0);
+        ChunkedContainer.encryptFile(sContext, checkpoint, sKeys, BenchmarkSupport.PASS_PHRASE,
+                                     PGPEncryptedData.AES_256, CHUNK_SIZE, restarted);
+        check(restarted.chunks == CHUNKS, "encryption of a changed input started over");
+        check(Arrays.equals(decrypt(output), changed),
+              "encryption of a changed input decrypts to the new input");
+    }
+
+    private static void killEncryption(Checkpoint checkpoint, int killAfter) throws Exception {
+        try {
+            ChunkedContainer.encryptFile(sContext, checkpoint, sKeys, BenchmarkSupport.PASS_PHRASE,
+                                         PGPEncryptedData.AES_256, CHUNK_SIZE,
+                                         new Killer(killAfter));
+            throw new AssertionError("encryption wasn't killed after " + killAfter + " chunks");
+        } catch (Killed e) {
+            // that's the idea
+        }
+    }
+
+    private static byte[] decrypt(File container) throws Exception {
+        ChunkedContainer.Reader reader = new ChunkedContainer.Reader(sContext, container);
+        try {
+            reader.open(BenchmarkSupport.PASS_PHRASE, true, null, NoProgress.INSTANCE);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            reader.decrypt(0, reader.getSize(), out, NoProgress.INSTANCE);
+            return out.toByteArray();
+        } finally {
+            reader.close();
+        }
+    }
+
+    // a crash in the middle of a write leaves part of the next chunk behind
+    private static void tear(File file) throws IOException {
+        byte garbage[] = new byte[CHUNK_SIZE / 3];
+        new Random(3).nextBytes(garbage);
+        write(file, garbage, true);
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("failed: " + what);
+        }
+        ++sChecks;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte data[] = new byte[(int) file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static void write(File file, byte data[], boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle2.bcpg.HashAlgorithmTags;
+import org.bouncycastle2.openpgp.PGPEncryptedData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.Bundle;
+
+// Apg.encrypt and Apg.decrypt across payload sizes, compression, armor and pipelining
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+    @Param({ "1024", "65536", "1048576" })
+    public int size;
+
+    @Param({ "none", "zlib", "zip", "bzip2", "auto" })
+    public String compression;
+
+    @Param({ "false", "true" })
+    public boolean armored;
+
+    @Param({ "false", "true" })
+    public boolean pipelined;
+
+    private BaseActivity mContext;
+    private BenchmarkSupport.KeyRings mKeyRings;
+    private BenchmarkSupport.NullProgress mProgress = new BenchmarkSupport.NullProgress();
+    private byte[] mPayload;
+    private byte[] mEncrypted;
+    private byte[] mSymmetricEncrypted;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mContext = BenchmarkSupport.getContext();
+        mKeyRings = BenchmarkSupport.getDefaultKeyRings();
+        mPayload = BenchmarkSupport.payload(size, 1);
+        mEncrypted = encrypt(new long[] { mKeyRings.masterKeyId }, Id.key.none, null);
+        mSymmetricEncrypted = encrypt(null, Id.key.none, BenchmarkSupport.PASS_PHRASE);
+    }
+
+    private byte[] encrypt(long encryptionKeyIds[], long signatureKeyId, String passPhrase)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + (size >> 1) + 4096);
+        Apg.encrypt(mContext, BenchmarkSupport.input(mPayload), out, armored,
+                    encryptionKeyIds, signatureKeyId,
+                    signatureKeyId == Id.key.none ? null : BenchmarkSupport.PASS_PHRASE,
+                    mProgress, PGPEncryptedData.AES_256, HashAlgorithmTags.SHA256,
+                    BenchmarkSupport.compressionFromName(compression), false, passPhrase,
+                    pipelined);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        return encrypt(new long[] { mKeyRings.masterKeyId }, Id.key.none, null);
+    }
+
+    @Benchmark
+    public byte[] encryptAndSign() throws Exception {
+        return encrypt(new long[] { mKeyRings.masterKeyId }, mKeyRings.masterKeyId, null);
+    }
+
+    @Benchmark
+    public byte[] encryptSymmetric() throws Exception {
+        return encrypt(null, Id.key.none, BenchmarkSupport.PASS_PHRASE);
+    }
+
+    @Benchmark
+    public Bundle decrypt() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+        return Apg.decrypt(mContext, BenchmarkSupport.input(mEncrypted), out,
+                           BenchmarkSupport.PASS_PHRASE, mProgress, false);
+    }
+
+    @Benchmark
+    public Bundle decryptSymmetric() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+        return Apg.decrypt(mContext, BenchmarkSupport.input(mSymmetricEncrypted), out,
+                           BenchmarkSupport.PASS_PHRASE, mProgress, true);
+    }
+}
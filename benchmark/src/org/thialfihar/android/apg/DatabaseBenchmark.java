@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle2.openpgp.PGPPublicKeyRing;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.thialfihar.android.apg.provider.Database;
+import org.thialfihar.android.apg.provider.KeyRings;
+import org.thialfihar.android.apg.provider.Keys;
+import org.thialfihar.android.apg.provider.UserIds;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+// Database.saveKeyRing and the key ID lookups against a filled key ring table, with and
+// without the indices from database version 3
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+    private static final String INDICES[] = {
+        KeyRings.TABLE_NAME + "_type_master_key_id",
+        Keys.TABLE_NAME + "_key_id_type",
+        Keys.TABLE_NAME + "_key_ring_id_is_master_key",
+        UserIds.TABLE_NAME + "_key_id_rank",
+    };
+
+    @Param({ "1000", "10000", "100000" })
+    public int rings;
+
+    @Param({ "true", "false" })
+    public boolean indexed;
+
+    private Database mDatabase;
+    private long mKeyIds[];
+    private long mBatch[] = new long[16];
+    private int mNext = 0;
+    private PGPPublicKeyRing mKeyRing;
+    private PGPPublicKeyRing mModifiedKeyRing;
+    private boolean mToggle = false;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        // every fork starts out with an empty database
+        BenchmarkSupport.getContext();
+        mDatabase = Apg.getDatabase();
+        SQLiteDatabase db = mDatabase.db();
+
+        if (!indexed) {
+            for (String index : INDICES) {
+                db.execSQL("DROP INDEX IF EXISTS " + index + ";");
+            }
+        }
+
+        fill(db);
+
+        BenchmarkSupport.KeyRings keyRings = BenchmarkSupport.getDefaultKeyRings();
+        mKeyRing = keyRings.publicKeyRing;
+        mModifiedKeyRing =
+                BenchmarkSupport.addUserId(keyRings, "Benchmark Alias <alias@example.org>");
+    }
+
+    // synthetic rings, the lookups never parse the blobs
+    private void fill(SQLiteDatabase db) {
+        Random random = new Random(4);
+        byte data[] = new byte[1200];
+        mKeyIds = new long[rings * 2];
+
+        SQLiteStatement insertKeyRing =
+                db.compileStatement("INSERT INTO " + KeyRings.TABLE_NAME + " (" +
+                                    KeyRings.MASTER_KEY_ID + ", " + KeyRings.TYPE + ", " +
+                                    KeyRings.WHO_ID + ", " + KeyRings.KEY_RING_DATA +
+                                    ") VALUES (?, ?, 0, ?)");
+        SQLiteStatement insertKey =
+                db.compileStatement("INSERT INTO " + Keys.TABLE_NAME + " (" +
+                                    Keys.KEY_ID + ", " + Keys.TYPE + ", " +
+                                    Keys.IS_MASTER_KEY + ", " + Keys.KEY_RING_ID + ", " +
+                                    Keys.KEY_DATA + ") VALUES (?, ?, ?, ?, ?)");
+        SQLiteStatement insertUserId =
+                db.compileStatement("INSERT INTO " + UserIds.TABLE_NAME + " (" +
+                                    UserIds.KEY_ID + ", " + UserIds.USER_ID + ", " +
+                                    UserIds.RANK + ") VALUES (?, ?, 0)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < rings; ++i) {
+                long masterKeyId = random.nextLong();
+                long subKeyId = random.nextLong();
+                random.nextBytes(data);
+                mKeyIds[2 * i] = masterKeyId;
+                mKeyIds[2 * i + 1] = subKeyId;
+
+                insertKeyRing.bindLong(1, masterKeyId);
+                insertKeyRing.bindLong(2, Id.database.type_public);
+                insertKeyRing.bindBlob(3, data);
+                long keyRingRowId = insertKeyRing.executeInsert();
+
+                long keyRowId = 0;
+                for (int k = 0; k < 2; ++k) {
+                    insertKey.bindLong(1, k == 0 ? masterKeyId : subKeyId);
+                    insertKey.bindLong(2, Id.database.type_public);
+                    insertKey.bindLong(3, k == 0 ? 1 : 0);
+                    insertKey.bindLong(4, keyRingRowId);
+                    insertKey.bindLong(5, k);
+                    long rowId = insertKey.executeInsert();
+                    if (k == 0) {
+                        keyRowId = rowId;
+                    }
+                }
+
+                insertUserId.bindLong(1, keyRowId);
+                insertUserId.bindString(2, "User " + i + " <user" + i + "@example.org>");
+                insertUserId.execute();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insertKeyRing.close();
+            insertKey.close();
+            insertUserId.close();
+        }
+    }
+
+    private long nextKeyId() {
+        long keyId = mKeyIds[mNext];
+        mNext = (mNext + 7919) % mKeyIds.length;
+        return keyId;
+    }
+
+    @Benchmark
+    public byte[] lookupByKeyId() {
+        return mDatabase.getKeyRingDataFromKeyId(Id.database.type_public, nextKeyId());
+    }
+
+    @Benchmark
+    public byte[] lookupMiss() {
+        return mDatabase.getKeyRingDataFromKeyId(Id.database.type_secret, nextKeyId());
+    }
+
+    @Benchmark
+    public HashMap<Long, byte[]> lookupBatch() {
+        for (int i = 0; i < mBatch.length; ++i) {
+            mBatch[i] = nextKeyId();
+        }
+        return mDatabase.getKeyRingDataFromKeyIds(Id.database.type_public, mBatch);
+    }
+
+    @Benchmark
+    public int saveUnchanged() throws Exception {
+        return mDatabase.saveKeyRing(mKeyRing);
+    }
+
+    @Benchmark
+    public int saveModified() throws Exception {
+        mToggle = !mToggle;
+        return mDatabase.saveKeyRing(mToggle ? mModifiedKeyRing : mKeyRing);
+    }
+}
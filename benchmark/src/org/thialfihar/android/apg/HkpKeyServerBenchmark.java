@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// HkpKeyServer.search against a loopback server replaying an SKS style op=index page,
+// so the numbers are dominated by reading and parsing the response
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HkpKeyServerBenchmark {
+    @Param({ "10", "100", "1000" })
+    public int keys;
+
+    private HttpServer mServer;
+    private HkpKeyServer mKeyServer;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        final byte response[] = indexPage(keys).getBytes("utf8");
+
+        // HkpKeyServer takes the port as a short, so stay below 32768
+        for (int port = 21371; mServer == null; ++port) {
+            try {
+                mServer = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 16);
+            } catch (BindException e) {
+                if (port > 32000) {
+                    throw e;
+                }
+            }
+        }
+        mServer.createContext("/pks/lookup", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+                exchange.sendResponseHeaders(200, response.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(response);
+                out.close();
+            }
+        });
+        mServer.start();
+
+        mKeyServer = new HkpKeyServer("127.0.0.1", mServer.getAddress().getPort());
+        // every iteration should go to the server
+        mKeyServer.setCache(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mServer.stop(0);
+    }
+
+    static String indexPage(int keys) {
+        Random random = new Random(5);
+        StringBuilder page = new StringBuilder();
+        page.append("<html><head><title>Search results for 'example'</title>" +
+                    "<meta http-equiv=\"Content-Type\" content=\"text/html;charset=utf-8\" />" +
+                    "</head><body><h1>Search results for 'example'</h1>" +
+                    "<pre>Type bits/keyID     Date       User ID\n</pre>");
+        for (int i = 0; i < keys; ++i) {
+            String keyId = String.format("%016X", random.nextLong());
+            String shortKeyId = keyId.substring(8);
+            String date = String.format("%04d-%02d-%02d", 1998 + random.nextInt(14),
+                                        1 + random.nextInt(12), 1 + random.nextInt(28));
+            page.append("<hr /><pre>\npub  ")
+                .append(random.nextBoolean() ? "2048R" : "1024D")
+                .append("/<a href=\"/pks/lookup?op=get&amp;search=0x").append(keyId).append("\">")
+                .append(shortKeyId).append("</a> ").append(date).append(" ");
+            if (random.nextInt(20) == 0) {
+                page.append("*** KEY REVOKED *** [not verified]\n");
+            } else {
+                page.append("<a href=\"/pks/lookup?op=vindex&amp;search=0x").append(keyId)
+                    .append("\">J&ouml;rg Example ").append(i)
+                    .append(" &lt;joerg").append(i).append("@example.org&gt;</a>\n");
+            }
+            int userIds = random.nextInt(4);
+            for (int j = 0; j < userIds; ++j) {
+                page.append("                               Example Alias ").append(j)
+                    .append(" &lt;alias").append(j).append(".").append(i)
+                    .append("@example.org&gt;\n");
+            }
+            page.append("</pre>");
+        }
+        page.append("</body></html>");
+        return page.toString();
+    }
+
+    @Benchmark
+    public List<KeyServer.KeyInfo> search() throws Exception {
+        return mKeyServer.search("example");
+    }
+}
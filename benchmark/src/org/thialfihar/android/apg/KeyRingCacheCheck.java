@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.util.Arrays;
+
+import org.bouncycastle2.openpgp.PGPPublicKeyRing;
+import org.thialfihar.android.apg.provider.Database;
+import org.thialfihar.android.apg.provider.KeyRingCache;
+
+// a key ring load racing a save of the same ring must not leave the old ring in the cache.
+// The race is played out step by step first, then with a real loader thread. Not a
+// benchmark, "ant check" runs it.
+public class KeyRingCacheCheck {
+    private static final int ROUNDS = 200;
+
+    private static Database sDatabase;
+    private static KeyRingCache<PGPPublicKeyRing> sCache;
+    private static int sChecks = 0;
+    private static volatile boolean sDone = false;
+    private static volatile Throwable sFailure = null;
+
+    public static void main(String args[]) throws Exception {
+        BenchmarkSupport.getContext();
+        sDatabase = Apg.getDatabase();
+        sCache = sDatabase.getPublicKeyRingCache();
+
+        BenchmarkSupport.KeyRings keyRings =
+                BenchmarkSupport.generateKeyRings("Cache Check <cache@example.org>");
+        PGPPublicKeyRing oldRing = keyRings.publicKeyRing;
+        PGPPublicKeyRing newRing =
+                BenchmarkSupport.addUserId(keyRings, "Cache Alias <alias@example.org>");
+
+        checkInterleaved(keyRings.masterKeyId, oldRing, newRing);
+        checkConcurrent(keyRings.masterKeyId, oldRing, newRing);
+
+        System.out.println("KeyRingCacheCheck: " + sChecks + " checks passed");
+    }
+
+    // what getPublicKeyRingFromKeyId() does, with the save right between the query and put()
+    private static void checkInterleaved(long masterKeyId, PGPPublicKeyRing oldRing,
+                                         PGPPublicKeyRing newRing) throws Exception {
+        sDatabase.saveKeyRing(oldRing);
+        sCache.clear();
+
+        long generation = sCache.getGeneration();
+        byte data[] = sDatabase.getKeyRingDataFromKeyId(Id.database.type_public, masterKeyId);
+        check(Arrays.equals(data, oldRing.getEncoded()), "the loader read the old ring");
+
+        sDatabase.saveKeyRing(newRing);
+
+        sDatabase.loadPublicKeyRing(data, generation);
+        check(sCache.getByMasterKeyId(masterKeyId) == null,
+              "a ring read before the save isn't cached");
+        check(isRing(sDatabase.getPublicKeyRingFromKeyId(masterKeyId), newRing),
+              "the next load returns the saved ring");
+        check(isRing(sCache.getByMasterKeyId(masterKeyId), newRing),
+              "the next load caches the saved ring");
+    }
+
+    // a thread keeps loading while the ring is saved back and forth, after every save the
+    // cache may only hold the ring that was saved last
+    private static void checkConcurrent(final long masterKeyId, PGPPublicKeyRing oldRing,
+                                        PGPPublicKeyRing newRing) throws Exception {
+        Thread loader = new Thread() {
+            public void run() {
+                try {
+                    while (!sDone) {
+                        sDatabase.getPublicKeyRingFromKeyId(masterKeyId);
+                    }
+                } catch (Throwable e) {
+                    sFailure = e;
+                }
+            }
+        };
+        loader.setDaemon(true);
+        loader.start();
+
+        try {
+            for (int i = 0; i < ROUNDS; ++i) {
+                PGPPublicKeyRing saved = i % 2 == 0 ? oldRing : newRing;
+                sDatabase.saveKeyRing(saved);
+                PGPPublicKeyRing cached = sCache.getByMasterKeyId(masterKeyId);
+                check(cached == null || isRing(cached, saved),
+                      "after save " + i + " the cache doesn't hold the previous ring");
+                check(isRing(sDatabase.getPublicKeyRingFromKeyId(masterKeyId), saved),
+                      "after save " + i + " a load returns the saved ring");
+            }
+        } finally {
+            sDone = true;
+            loader.join();
+        }
+        check(sFailure == null, "the loader thread didn't fail: " + sFailure);
+    }
+
+    private static boolean isRing(PGPPublicKeyRing keyRing, PGPPublicKeyRing expected)
+            throws Exception {
+        return keyRing != null && Arrays.equals(keyRing.getEncoded(), expected.getEncoded());
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new AssertionError("failed: " + what);
+        }
+        ++sChecks;
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle2.bcpg.HashAlgorithmTags;
+import org.bouncycastle2.openpgp.PGPEncryptedData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// encryption latency against the number of recipients, with a cold and a warm key ring cache
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecipientBenchmark {
+    @Param({ "1", "4", "16", "64", "256" })
+    public int recipients;
+
+    @Param({ "false", "true" })
+    public boolean cached;
+
+    private BaseActivity mContext;
+    private BenchmarkSupport.NullProgress mProgress = new BenchmarkSupport.NullProgress();
+    private long mKeyIds[];
+    private byte[] mPayload;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mContext = BenchmarkSupport.getContext();
+        mPayload = BenchmarkSupport.payload(4096, 3);
+
+        // one fresh ring per recipient, generated once per trial
+        mKeyIds = new long[recipients];
+        for (int i = 0; i < recipients; ++i) {
+            BenchmarkSupport.KeyRings keyRings =
+                    BenchmarkSupport.generateKeyRings("Recipient " + i + " <r" + i + "@example.org>");
+            BenchmarkSupport.saveKeyRings(keyRings);
+            mKeyIds[i] = keyRings.masterKeyId;
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void prepareCache() {
+        if (!cached) {
+            Apg.getDatabase().getPublicKeyRingCache().clear();
+        }
+    }
+
+    @Benchmark
+    public byte[] encrypt() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(8192 + recipients * 600);
+        Apg.encrypt(mContext, BenchmarkSupport.input(mPayload), out, false,
+                    mKeyIds, Id.key.none, null, mProgress,
+                    PGPEncryptedData.AES_256, HashAlgorithmTags.SHA256,
+                    Id.choice.compression.zlib, false, null, false);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle2.bcpg.HashAlgorithmTags;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.os.Bundle;
+
+// clear text signing and verification, and detached signatures with and without armor
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SignatureBenchmark {
+    @Param({ "1024", "65536", "1048576" })
+    public int size;
+
+    private BaseActivity mContext;
+    private BenchmarkSupport.KeyRings mKeyRings;
+    private BenchmarkSupport.NullProgress mProgress = new BenchmarkSupport.NullProgress();
+    private byte[] mPayload;
+    private byte[] mSignedText;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        mContext = BenchmarkSupport.getContext();
+        mKeyRings = BenchmarkSupport.getDefaultKeyRings();
+        mPayload = BenchmarkSupport.payload(size, 2);
+        mSignedText = signText();
+    }
+
+    @Benchmark
+    public byte[] signText() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+        Apg.signText(mContext, BenchmarkSupport.input(mPayload), out,
+                     mKeyRings.masterKeyId, BenchmarkSupport.PASS_PHRASE,
+                     HashAlgorithmTags.SHA256, false, mProgress);
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Bundle verifyText() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 4096);
+        return Apg.verifyText(mContext, BenchmarkSupport.input(mSignedText), out, mProgress);
+    }
+
+    @Benchmark
+    public byte[] generateSignature() throws Exception {
+        return generateSignature(false);
+    }
+
+    @Benchmark
+    public byte[] generateArmoredSignature() throws Exception {
+        return generateSignature(true);
+    }
+
+    private byte[] generateSignature(boolean armored) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
+        Apg.generateSignature(mContext, BenchmarkSupport.input(mPayload), out,
+                              armored, true,
+                              mKeyRings.masterKeyId, BenchmarkSupport.PASS_PHRASE,
+                              HashAlgorithmTags.SHA256, false, mProgress);
+        return out.toByteArray();
+    }
+}
@@ -17,12 +17,14 @@
 package org.thialfihar.android.apg;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -41,9 +43,17 @@ import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 import org.bouncycastle2.bcpg.ArmoredInputStream;
 import org.bouncycastle2.bcpg.ArmoredOutputStream;
@@ -147,6 +157,7 @@ public class Apg {
     public static final String EXTRA_ASCII_ARMOUR = "asciiArmour";
     public static final String EXTRA_BINARY = "binary";
     public static final String EXTRA_KEY_SERVERS = "keyServers";
+    public static final String EXTRA_CONTAINER = "container";
 
     public static final String AUTHORITY = DataProvider.AUTHORITY;
 
@@ -166,6 +177,8 @@ public class Apg {
 
     private static String VERSION = null;
 
+    private static final int IMPORT_BATCH_SIZE = 100;
+
     private static final int[] PREFERRED_SYMMETRIC_ALGORITHMS =
             new int[] {
                     SymmetricKeyAlgorithmTags.AES_256,
@@ -196,11 +209,17 @@ public class Apg {
             Pattern.compile(".*?(-----BEGIN PGP PUBLIC KEY BLOCK-----.*?-----END PGP PUBLIC KEY BLOCK-----).*",
                             Pattern.DOTALL);
 
-    private static HashMap<Long, CachedPassPhrase> mPassPhraseCache =
-            new HashMap<Long, CachedPassPhrase>();
+    private static PassPhraseCache mPassPhraseCache = new PassPhraseCache();
     private static String mEditPassPhrase = null;
 
     private static Database mDatabase = null;
+    private static KeyServerCache mKeyServerCache = null;
+    private static boolean mSymmetricProviderStarted = false;
+
+    // below that it's cheaper to just do the work in the calling thread
+    private static final int MIN_PARALLEL_TASKS = 8;
+    private static ExecutorService mWorkerPool = null;
+    private static ExecutorService mChunkPool = null;
 
     public static class GeneralException extends Exception {
         static final long serialVersionUID = 0xf812773342L;
@@ -221,6 +240,20 @@ public class Apg {
     public static void initialize(Context context) {
         if (mDatabase == null) {
             mDatabase = new Database(context);
+            // once per process, the encryption checkpoints hold chunk keys
+            Checkpoint.expire(context);
+        }
+        if (mKeyServerCache == null) {
+            mKeyServerCache = new KeyServerCache(new File(context.getCacheDir(), "key_servers"));
+        }
+        if (!mSymmetricProviderStarted) {
+            mSymmetricProviderStarted = true;
+            // benchmarks the cipher providers, better done before the first message
+            getWorkerPool().submit(new Runnable() {
+                public void run() {
+                    SymmetricProvider.getInstance();
+                }
+            });
         }
     }
 
@@ -228,6 +261,10 @@ public class Apg {
         return mDatabase;
     }
 
+    public static KeyServerCache getKeyServerCache() {
+        return mKeyServerCache;
+    }
+
     public static void setEditPassPhrase(String passPhrase) {
         mEditPassPhrase = passPhrase;
     }
@@ -236,56 +273,61 @@ public class Apg {
         return mEditPassPhrase;
     }
 
+    public static PassPhraseCache getPassPhraseCache() {
+        return mPassPhraseCache;
+    }
+
     public static void setCachedPassPhrase(long keyId, String passPhrase) {
-        mPassPhraseCache.put(keyId, new CachedPassPhrase(new Date().getTime(), passPhrase));
+        mPassPhraseCache.put(keyId, passPhrase);
     }
 
     public static String getCachedPassPhrase(long keyId) {
         long realId = keyId;
         if (realId != Id.key.symmetric) {
-            PGPSecretKeyRing keyRing = getSecretKeyRing(keyId);
-            if (keyRing == null) {
-                return null;
-            }
-            PGPSecretKey masterKey = getMasterKey(keyRing);
-            if (masterKey == null) {
-                return null;
+            Long masterKeyId = mPassPhraseCache.getMasterKeyId(keyId);
+            if (masterKeyId == null) {
+                // only the first lookup for a ring has to go to the database
+                PGPSecretKeyRing keyRing = getSecretKeyRing(keyId);
+                if (keyRing == null) {
+                    return null;
+                }
+                PGPSecretKey masterKey = getMasterKey(keyRing);
+                if (masterKey == null) {
+                    return null;
+                }
+                masterKeyId = masterKey.getKeyID();
+                for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
+                    mPassPhraseCache.setMasterKeyId(key.getKeyID(), masterKeyId);
+                }
             }
-            realId = masterKey.getKeyID();
+            realId = masterKeyId;
         }
-        CachedPassPhrase cpp = mPassPhraseCache.get(realId);
-        if (cpp == null) {
-            return null;
-        }
-        // set it again to reset the cache life cycle
-        setCachedPassPhrase(realId, cpp.passPhrase);
-        return cpp.passPhrase;
+        return mPassPhraseCache.get(realId);
     }
 
     public static int cleanUpCache(int ttl, int initialDelay) {
-        int delay = initialDelay;
-        long realTtl = ttl * 1000;
-        long now = new Date().getTime();
-        Vector<Long> oldKeys = new Vector<Long>();
-        for (Map.Entry<Long, CachedPassPhrase> pair : mPassPhraseCache.entrySet()) {
-            long lived = now - pair.getValue().timestamp;
-            if (lived >= realTtl) {
-                oldKeys.add(pair.getKey());
-            } else {
-                // see, whether the remaining time for this cache entry improves our
-                // check delay
-                long nextCheck = realTtl - lived + 1000;
-                if (nextCheck < delay) {
-                    delay = (int)nextCheck;
-                }
-            }
-        }
+        mPassPhraseCache.setTtl(ttl * 1000L);
+        return mPassPhraseCache.advance(new Date().getTime(), initialDelay);
+    }
 
-        for (long keyId : oldKeys) {
-            mPassPhraseCache.remove(keyId);
+    // the S2K derivation makes this slow, so with the unlocked key cache enabled a key is only
+    // extracted once for as long as its pass phrase is cached
+    public static PGPPrivateKey extractPrivateKey(PGPSecretKey secretKey, String passPhrase)
+            throws PGPException {
+        long keyId = secretKey.getKeyID();
+        PGPPrivateKey privateKey = mPassPhraseCache.getPrivateKey(keyId, passPhrase);
+        if (privateKey != null) {
+            return privateKey;
         }
 
-        return delay;
+        long startTime = System.nanoTime();
+        privateKey = secretKey.extractPrivateKey(passPhrase.toCharArray(),
+                                                 new BouncyCastleProvider());
+        mPassPhraseCache.countUnlock(System.nanoTime() - startTime);
+        if (privateKey != null) {
+            mPassPhraseCache.putPrivateKey(keyId, passPhrase, privateKey);
+        }
+        return privateKey;
     }
 
     public static PGPSecretKey createKey(Context context,
@@ -595,97 +637,290 @@ public class Apg {
                                         InputData data,
                                         ProgressDialogUpdater progress)
             throws GeneralException, FileNotFoundException, PGPException, IOException {
-        Bundle returnData = new Bundle();
+        if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+            throw new GeneralException(context.getString(R.string.error_externalStorageNotReady));
+        }
 
-        if (type == Id.type.secret_key) {
-            progress.setProgress(R.string.progress_importingSecretKeys, 0, 100);
-        } else {
-            progress.setProgress(R.string.progress_importingPublicKeys, 0, 100);
+        return importKeyRings(context, type, data.getInputStream(), data.getSize(), progress);
+    }
+
+    // counts of an import, added up over all of its inputs
+    private static class ImportCounts {
+        public int newKeys = 0;
+        public int oldKeys = 0;
+        public int unchangedKeys = 0;
+        public int badKeys = 0;
+        public Vector<Long> failedKeyIds = new Vector<Long>();
+        public String lastFailure = null;
+
+        public int getCount() {
+            return newKeys + oldKeys + badKeys;
         }
 
-        if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
-            throw new GeneralException(context.getString(R.string.error_externalStorageNotReady));
+        // a return value of saveKeyRing
+        public void add(int retValue) {
+            if (retValue == Id.return_value.updated ||
+                retValue == Id.return_value.unchanged) {
+                ++oldKeys;
+                if (retValue == Id.return_value.unchanged) {
+                    ++unchangedKeys;
+                }
+            } else if (retValue == Id.return_value.ok) {
+                ++newKeys;
+            } else if (retValue == Id.return_value.bad) {
+                ++badKeys;
+            }
         }
 
-        PositionAwareInputStream progressIn = new PositionAwareInputStream(data.getInputStream());
-        // need to have access to the bufferedInput, so we can reuse it for the possible
-        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
-        // armour blocks
-        BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
-        int newKeys = 0;
-        int oldKeys = 0;
-        int badKeys = 0;
+        public Bundle toBundle() {
+            Bundle returnData = new Bundle();
+            returnData.putInt("added", newKeys);
+            returnData.putInt("updated", oldKeys);
+            // included in "updated"
+            returnData.putInt("unchanged", unchangedKeys);
+            returnData.putInt("bad", badKeys);
+            long failed[] = new long[failedKeyIds.size()];
+            for (int i = 0; i < failed.length; ++i) {
+                failed[i] = failedKeyIds.get(i);
+            }
+            returnData.putInt("failed", failed.length);
+            returnData.putLongArray("failedKeyIds", failed);
+            if (lastFailure != null) {
+                returnData.putString("lastFailure", lastFailure);
+            }
+            return returnData;
+        }
+    }
+
+    // fetches the keys from the key server, several at a time. Each key is parsed completely
+    // before it is saved, so the database isn't locked while waiting on the network, and the
+    // rings are saved IMPORT_BATCH_SIZE at a time. A key that couldn't be fetched is skipped
+    // and reported in "failedKeyIds"
+    public static Bundle importKeyRings(Context context, KeyServer server, List<Long> keyIds,
+                                        ProgressDialogUpdater progress)
+            throws GeneralException, PGPException, IOException, KeyServer.QueryException {
+        progress.setProgress(R.string.progress_importingPublicKeys, 0, 100);
+        ImportCounts counts = new ImportCounts();
+        Vector<PGPPublicKeyRing> pending = new Vector<PGPPublicKeyRing>();
+        KeyServer.KeyStreams streams = server.getKeys(keyIds);
+        try {
+            for (int i = 0; streams.hasMoreElements(); ++i) {
+                InputStream in = streams.nextElement();
+                Vector<PGPPublicKeyRing> keyRings = null;
+                String failure = null;
+                try {
+                    keyRings = readPublicKeyRings(in);
+                } catch (IOException e) {
+                    // cut off or not a key after all, some error page
+                    failure = "" + e;
+                } finally {
+                    try {
+                        in.close();
+                    } catch (IOException e) {
+                        if (failure == null) {
+                            failure = "" + e;
+                        }
+                    }
+                }
+
+                if (failure != null) {
+                    counts.failedKeyIds.add(keyIds.get(i));
+                    counts.lastFailure = failure;
+                } else {
+                    pending.addAll(keyRings);
+                    if (pending.size() >= IMPORT_BATCH_SIZE) {
+                        savePublicKeyRings(context, pending, counts);
+                        pending.clear();
+                    }
+                }
+                progress.setProgress(100 * (i + 1) / keyIds.size(), 100);
+            }
+            savePublicKeyRings(context, pending, counts);
+        } finally {
+            streams.close();
+        }
+
+        progress.setProgress(R.string.progress_done, 100, 100);
+        return counts.toBundle();
+    }
+
+    private static Vector<PGPPublicKeyRing> readPublicKeyRings(InputStream input)
+            throws IOException {
+        Vector<PGPPublicKeyRing> keyRings = new Vector<PGPPublicKeyRing>();
+        // several consecutive ASCII armour blocks are possible, see importKeyRings
+        BufferedInputStream bufferedInput = new BufferedInputStream(input);
         try {
             while (true) {
                 InputStream in = PGPUtil.getDecoderStream(bufferedInput);
                 PGPObjectFactory objectFactory = new PGPObjectFactory(in);
                 Object obj = objectFactory.nextObject();
-                // if the first is already a null object, then we can stop trying
                 if (obj == null) {
                     break;
                 }
                 while (obj != null) {
-                    PGPPublicKeyRing publicKeyRing;
-                    PGPSecretKeyRing secretKeyRing;
-                    // a return value that doesn't match any Id.return_value.* values, in case
-                    // saveKeyRing is never called
-                    int retValue = 2107;
-
-                    try {
-                        if (type == Id.type.secret_key && obj instanceof PGPSecretKeyRing) {
-                            secretKeyRing = (PGPSecretKeyRing) obj;
-                            boolean save = true;
-                            try {
-                                PGPPrivateKey testKey = secretKeyRing.getSecretKey()
-                                        .extractPrivateKey(new char[] {}, new BouncyCastleProvider());
-                                if (testKey == null) {
-                                    // this is bad, something is very wrong... likely a
-                                    // --export-secret-subkeys export
-                                    retValue = Id.return_value.bad;
-                                    save = false;
-                                }
-                            } catch (PGPException e) {
-                                // all good if this fails, we likely didn't use the right password
-                            }
-                            if (save) {
-                                retValue = mDatabase.saveKeyRing(secretKeyRing);
-                            }
-                        } else if (type == Id.type.public_key && obj instanceof PGPPublicKeyRing) {
-                            publicKeyRing = (PGPPublicKeyRing) obj;
-                            retValue = mDatabase.saveKeyRing(publicKeyRing);
-                        }
-                    } catch (IOException e) {
-                        retValue = Id.return_value.error;
-                    } catch (Database.GeneralException e) {
-                        retValue = Id.return_value.error;
-                    }
-
-                    if (retValue == Id.return_value.error) {
-                        throw new GeneralException(context.getString(R.string.error_savingKeys));
+                    if (obj instanceof PGPPublicKeyRing) {
+                        keyRings.add((PGPPublicKeyRing) obj);
                     }
-
-                    if (retValue == Id.return_value.updated) {
-                        ++oldKeys;
-                    } else if (retValue == Id.return_value.ok) {
-                        ++newKeys;
-                    } else if (retValue == Id.return_value.bad) {
-                        ++badKeys;
-                    }
-                    progress.setProgress((int)(100 * progressIn.position() / data.getSize()), 100);
                     obj = objectFactory.nextObject();
                 }
             }
         } catch (EOFException e) {
             // nothing to do, we are done
         }
+        return keyRings;
+    }
+
+    // all in one transaction, saveKeyRing's own transactions nest into it
+    private static void savePublicKeyRings(Context context, Vector<PGPPublicKeyRing> keyRings,
+                                           ImportCounts counts)
+            throws GeneralException {
+        if (keyRings.size() == 0) {
+            return;
+        }
+
+        SQLiteDatabase db = mDatabase.db();
+        db.beginTransaction();
+        try {
+            for (PGPPublicKeyRing keyRing : keyRings) {
+                int retValue;
+                try {
+                    retValue = mDatabase.saveKeyRing(keyRing);
+                } catch (IOException e) {
+                    retValue = Id.return_value.error;
+                } catch (Database.GeneralException e) {
+                    retValue = Id.return_value.error;
+                }
+                if (retValue == Id.return_value.error) {
+                    throw new GeneralException(context.getString(R.string.error_savingKeys));
+                }
+                counts.add(retValue);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static Bundle importKeyRings(Context context, int type,
+                                         InputStream input, long size,
+                                         ProgressDialogUpdater progress)
+            throws GeneralException, PGPException, IOException {
+        if (type == Id.type.secret_key) {
+            progress.setProgress(R.string.progress_importingSecretKeys, 0, 100);
+        } else {
+            progress.setProgress(R.string.progress_importingPublicKeys, 0, 100);
+        }
 
-        returnData.putInt("added", newKeys);
-        returnData.putInt("updated", oldKeys);
-        returnData.putInt("bad", badKeys);
+        ImportCounts counts = new ImportCounts();
+        importKeyRings(context, type, input, size, counts, progress);
 
         progress.setProgress(R.string.progress_done, 100, 100);
 
-        return returnData;
+        return counts.toBundle();
+    }
+
+    // progress is based on the size of the input if it is known, there is none if progress
+    // is null
+    private static void importKeyRings(Context context, int type,
+                                       InputStream input, long size,
+                                       ImportCounts counts, ProgressDialogUpdater progress)
+            throws GeneralException, PGPException, IOException {
+        PositionAwareInputStream progressIn = new PositionAwareInputStream(input);
+        // need to have access to the bufferedInput, so we can reuse it for the possible
+        // PGPObject chunks after the first one, e.g. files with several consecutive ASCII
+        // armour blocks
+        BufferedInputStream bufferedInput = new BufferedInputStream(progressIn);
+
+        // commit every IMPORT_BATCH_SIZE rings instead of once per ring, saveKeyRing's own
+        // transactions nest into this one
+        SQLiteDatabase db = mDatabase.db();
+        int batchCount = 0;
+        long startTime = System.currentTimeMillis();
+        db.beginTransaction();
+        try {
+            try {
+                while (true) {
+                    InputStream in = PGPUtil.getDecoderStream(bufferedInput);
+                    PGPObjectFactory objectFactory = new PGPObjectFactory(in);
+                    Object obj = objectFactory.nextObject();
+                    // if the first is already a null object, then we can stop trying
+                    if (obj == null) {
+                        break;
+                    }
+                    while (obj != null) {
+                        PGPPublicKeyRing publicKeyRing;
+                        PGPSecretKeyRing secretKeyRing;
+                        // a return value that doesn't match any Id.return_value.* values, in case
+                        // saveKeyRing is never called
+                        int retValue = 2107;
+
+                        try {
+                            if (type == Id.type.secret_key && obj instanceof PGPSecretKeyRing) {
+                                secretKeyRing = (PGPSecretKeyRing) obj;
+                                boolean save = true;
+                                try {
+                                    PGPPrivateKey testKey = secretKeyRing.getSecretKey()
+                                            .extractPrivateKey(new char[] {}, new BouncyCastleProvider());
+                                    if (testKey == null) {
+                                        // this is bad, something is very wrong... likely a
+                                        // --export-secret-subkeys export
+                                        retValue = Id.return_value.bad;
+                                        save = false;
+                                    }
+                                } catch (PGPException e) {
+                                    // all good if this fails, we likely didn't use the right password
+                                }
+                                if (save) {
+                                    retValue = mDatabase.saveKeyRing(secretKeyRing);
+                                }
+                            } else if (type == Id.type.public_key && obj instanceof PGPPublicKeyRing) {
+                                publicKeyRing = (PGPPublicKeyRing) obj;
+                                retValue = mDatabase.saveKeyRing(publicKeyRing);
+                            }
+                        } catch (IOException e) {
+                            retValue = Id.return_value.error;
+                        } catch (Database.GeneralException e) {
+                            retValue = Id.return_value.error;
+                        }
+
+                        if (retValue == Id.return_value.error) {
+                            throw new GeneralException(context.getString(R.string.error_savingKeys));
+                        }
+
+                        counts.add(retValue);
+
+                        int numKeys = counts.getCount();
+                        int currentProgress = 0;
+                        if (size > 0) {
+                            currentProgress = (int)(100 * progressIn.position() / size);
+                        }
+                        ++batchCount;
+                        if (batchCount >= IMPORT_BATCH_SIZE) {
+                            db.setTransactionSuccessful();
+                            db.endTransaction();
+                            db.beginTransaction();
+                            batchCount = 0;
+
+                            if (progress != null) {
+                                long elapsed = System.currentTimeMillis() - startTime;
+                                long rate = numKeys * 1000L / Math.max(elapsed, 1);
+                                progress.setProgress(context.getString(R.string.progress_importingKeysRate,
+                                                                       numKeys, rate),
+                                                     currentProgress, 100);
+                            }
+                        } else if (progress != null) {
+                            progress.setProgress(currentProgress, 100);
+                        }
+                        obj = objectFactory.nextObject();
+                    }
+                }
+            } catch (EOFException e) {
+                // nothing to do, we are done
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public static Bundle exportKeyRings(Activity context, Vector<Integer> keyRingIds,
@@ -872,6 +1107,119 @@ public class Apg {
         return encryptKeys.get(0);
     }
 
+    public static Vector<PGPPublicKey> getEncryptPublicKeys(long masterKeyIds[])
+            throws GeneralException {
+        final PGPPublicKey keys[] = new PGPPublicKey[masterKeyIds.length];
+        final PGPPublicKeyRing keyRings[] = new PGPPublicKeyRing[masterKeyIds.length];
+
+        // take what we can from the cache and fetch the rest with a single query
+        final long generation = mDatabase.getPublicKeyRingCache().getGeneration();
+        Vector<Long> missingIds = new Vector<Long>();
+        for (int i = 0; i < masterKeyIds.length; ++i) {
+            keyRings[i] = mDatabase.getPublicKeyRingCache().get(masterKeyIds[i]);
+            if (keyRings[i] == null) {
+                missingIds.add(masterKeyIds[i]);
+            }
+        }
+
+        final HashMap<Long, byte[]> keyRingData = new HashMap<Long, byte[]>();
+        if (missingIds.size() > 0) {
+            long ids[] = new long[missingIds.size()];
+            for (int i = 0; i < ids.length; ++i) {
+                ids[i] = missingIds.get(i);
+            }
+            keyRingData.putAll(mDatabase.getKeyRingDataFromKeyIds(Id.database.type_public, ids));
+        }
+
+        Vector<Callable<Void>> tasks = new Vector<Callable<Void>>();
+        for (int i = 0; i < masterKeyIds.length; ++i) {
+            final int index = i;
+            final long masterKeyId = masterKeyIds[i];
+            tasks.add(new Callable<Void>() {
+                public Void call() {
+                    PGPPublicKeyRing keyRing = keyRings[index];
+                    if (keyRing == null) {
+                        byte[] data = keyRingData.get(masterKeyId);
+                        if (data == null) {
+                            return null;
+                        }
+                        keyRing = mDatabase.loadPublicKeyRing(data, generation);
+                        if (keyRing == null) {
+                            return null;
+                        }
+                    }
+                    Vector<PGPPublicKey> encryptKeys = getUsableEncryptKeys(keyRing);
+                    if (encryptKeys.size() > 0) {
+                        keys[index] = encryptKeys.get(0);
+                    }
+                    return null;
+                }
+            });
+        }
+
+        runTasks(tasks);
+
+        Vector<PGPPublicKey> result = new Vector<PGPPublicKey>();
+        for (PGPPublicKey key : keys) {
+            if (key != null) {
+                result.add(key);
+            }
+        }
+        return result;
+    }
+
+    static synchronized ExecutorService getWorkerPool() {
+        if (mWorkerPool == null) {
+            mWorkerPool = newPool("apg-worker");
+        }
+        return mWorkerPool;
+    }
+
+    // for container chunks only, their tasks never wait for other tasks, so they can't get
+    // stuck behind batch items on the worker pool that wait for them
+    static synchronized ExecutorService getChunkPool() {
+        if (mChunkPool == null) {
+            mChunkPool = newPool("apg-chunk");
+        }
+        return mChunkPool;
+    }
+
+    private static ExecutorService newPool(final String name) {
+        int numThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        return Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // runs the tasks on the worker pool and waits for all of them, or in the calling
+    // thread if there aren't enough of them to make that worth it
+    private static <T> Vector<T> runTasks(Vector<Callable<T>> tasks) throws GeneralException {
+        Vector<T> results = new Vector<T>();
+        try {
+            if (tasks.size() < MIN_PARALLEL_TASKS) {
+                for (Callable<T> task : tasks) {
+                    results.add(task.call());
+                }
+                return results;
+            }
+
+            for (Future<T> future : getWorkerPool().invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            throw new GeneralException("interrupted");
+        } catch (ExecutionException e) {
+            throw new GeneralException("" + e.getCause());
+        } catch (Exception e) {
+            throw new GeneralException("" + e);
+        }
+        return results;
+    }
+
     public static PGPSecretKey getSigningKey(long masterKeyId) {
         PGPSecretKeyRing keyRing = getSecretKeyRing(masterKeyId);
         if (keyRing == null) {
@@ -1040,8 +1388,11 @@ public class Apg {
             key = secretKey.getPublicKey();
         }
 
+        return getFingerPrint(key.getFingerprint());
+    }
+
+    public static String getFingerPrint(byte fp[]) {
         String fingerPrint = "";
-        byte fp[] = key.getFingerprint();
         for (int i = 0; i < fp.length; ++i) {
             if (i != 0 && i % 10 == 0) {
                 fingerPrint += "  ";
@@ -1086,34 +1437,11 @@ public class Apg {
     }
 
     public static PGPSecretKeyRing getSecretKeyRing(long keyId) {
-        byte[] data = mDatabase.getKeyRingDataFromKeyId(Id.database.type_secret, keyId);
-        if (data == null) {
-            return null;
-        }
-        try {
-            return new PGPSecretKeyRing(data);
-        } catch (IOException e) {
-            // no good way to handle this, return null
-            // TODO: some info?
-        } catch (PGPException e) {
-            // no good way to handle this, return null
-            // TODO: some info?
-        }
-        return null;
+        return mDatabase.getSecretKeyRingFromKeyId(keyId);
     }
 
     public static PGPPublicKeyRing getPublicKeyRing(long keyId) {
-        byte[] data = mDatabase.getKeyRingDataFromKeyId(Id.database.type_public, keyId);
-        if (data == null) {
-            return null;
-        }
-        try {
-            return new PGPPublicKeyRing(data);
-        } catch (IOException e) {
-            // no good way to handle this, return null
-            // TODO: some info?
-        }
-        return null;
+        return mDatabase.getPublicKeyRingFromKeyId(keyId);
     }
 
     public static PGPSecretKey getSecretKey(long keyId) {
@@ -1191,43 +1519,43 @@ public class Apg {
         return userId;
     }
 
-    public static void encrypt(Context context,
-                               InputData data, OutputStream outStream,
-                               boolean armored,
-                               long encryptionKeyIds[], long signatureKeyId,
-                               String signaturePassPhrase,
-                               ProgressDialogUpdater progress,
-                               int symmetricAlgorithm, int hashAlgorithm, int compression,
-                               boolean forceV3Signature,
-                               String passPhrase)
-            throws IOException, GeneralException, PGPException, NoSuchProviderException,
-            NoSuchAlgorithmException, SignatureException {
-        Security.addProvider(new BouncyCastleProvider());
+    // everything encrypt() needs from the key rings, so batches can look it up only once
+    public static class EncryptionKeys {
+        public final Vector<PGPPublicKey> publicKeys;
+        public final boolean symmetric;
+        public final PGPSecretKey signingKey;
+        public final PGPPrivateKey signaturePrivateKey;
+        public final String signerUserId;
 
-        if (encryptionKeyIds == null) {
-            encryptionKeyIds = new long[0];
+        EncryptionKeys(Vector<PGPPublicKey> publicKeys, boolean symmetric,
+                       PGPSecretKey signingKey, PGPPrivateKey signaturePrivateKey,
+                       String signerUserId) {
+            this.publicKeys = publicKeys;
+            this.symmetric = symmetric;
+            this.signingKey = signingKey;
+            this.signaturePrivateKey = signaturePrivateKey;
+            this.signerUserId = signerUserId;
         }
+    }
 
-        ArmoredOutputStream armorOut = null;
-        OutputStream out = null;
-        OutputStream encryptOut = null;
-        if (armored) {
-            armorOut = new ArmoredOutputStream(outStream);
-            armorOut.setHeader("Version", getFullVersion(context));
-            out = armorOut;
-        } else {
-            out = outStream;
+    public static EncryptionKeys getEncryptionKeys(Context context,
+                                                   long encryptionKeyIds[], long signatureKeyId,
+                                                   String signaturePassPhrase, String passPhrase,
+                                                   ProgressDialogUpdater progress)
+            throws GeneralException, PGPException {
+        if (encryptionKeyIds == null) {
+            encryptionKeyIds = new long[0];
         }
-        PGPSecretKey signingKey = null;
-        PGPSecretKeyRing signingKeyRing = null;
-        PGPPrivateKey signaturePrivateKey = null;
 
         if (encryptionKeyIds.length == 0 && passPhrase == null) {
             throw new GeneralException(context.getString(R.string.error_noEncryptionKeysOrPassPhrase));
         }
 
+        PGPSecretKey signingKey = null;
+        PGPPrivateKey signaturePrivateKey = null;
+        String signerUserId = null;
         if (signatureKeyId != 0) {
-            signingKeyRing = getSecretKeyRing(signatureKeyId);
+            PGPSecretKeyRing signingKeyRing = getSecretKeyRing(signatureKeyId);
             signingKey = getSigningKey(signatureKeyId);
             if (signingKey == null) {
                 throw new GeneralException(context.getString(R.string.error_signatureFailed));
@@ -1237,34 +1565,82 @@ public class Apg {
                 throw new GeneralException(context.getString(R.string.error_noSignaturePassPhrase));
             }
             progress.setProgress(R.string.progress_extractingSignatureKey, 0, 100);
-            signaturePrivateKey = signingKey.extractPrivateKey(signaturePassPhrase.toCharArray(),
-                                                               new BouncyCastleProvider());
+            signaturePrivateKey = extractPrivateKey(signingKey, signaturePassPhrase);
             if (signaturePrivateKey == null) {
                 throw new GeneralException(context.getString(R.string.error_couldNotExtractPrivateKey));
             }
+            signerUserId = getMainUserId(getMasterKey(signingKeyRing));
+        }
+
+        return new EncryptionKeys(getEncryptPublicKeys(encryptionKeyIds),
+                                  encryptionKeyIds.length == 0,
+                                  signingKey, signaturePrivateKey, signerUserId);
+    }
+
+    public static CompressionChoice encrypt(Context context,
+                                           InputData data, OutputStream outStream,
+                                           boolean armored,
+                                           long encryptionKeyIds[], long signatureKeyId,
+                                           String signaturePassPhrase,
+                                           ProgressDialogUpdater progress,
+                                           int symmetricAlgorithm, int hashAlgorithm,
+                                           int compression,
+                                           boolean forceV3Signature,
+                                           String passPhrase, boolean pipelined)
+            throws IOException, GeneralException, PGPException, NoSuchProviderException,
+            NoSuchAlgorithmException, SignatureException {
+        EncryptionKeys keys = getEncryptionKeys(context, encryptionKeyIds, signatureKeyId,
+                                                signaturePassPhrase, passPhrase, progress);
+        return encrypt(context, data, outStream, armored, keys, progress, symmetricAlgorithm,
+                       hashAlgorithm, compression, forceV3Signature, passPhrase, pipelined);
+    }
+
+    // returns what Id.choice.compression.auto decided on, null for the other choices
+    public static CompressionChoice encrypt(Context context,
+                                           InputData data, OutputStream outStream,
+                                           boolean armored, EncryptionKeys keys,
+                                           ProgressDialogUpdater progress,
+                                           int symmetricAlgorithm, int hashAlgorithm,
+                                           int compression,
+                                           boolean forceV3Signature,
+                                           String passPhrase, boolean pipelined)
+            throws IOException, GeneralException, PGPException, NoSuchProviderException,
+            NoSuchAlgorithmException, SignatureException {
+        Security.addProvider(new BouncyCastleProvider());
+
+        ArmoredOutputStream armorOut = null;
+        OutputStream out = null;
+        OutputStream encryptOut = null;
+        if (armored) {
+            armorOut = new ArmoredOutputStream(outStream);
+            armorOut.setHeader("Version", getFullVersion(context));
+            out = armorOut;
+        } else {
+            out = outStream;
         }
+        PGPSecretKey signingKey = keys.signingKey;
+        PGPPrivateKey signaturePrivateKey = keys.signaturePrivateKey;
+        boolean sign = signingKey != null;
+
         progress.setProgress(R.string.progress_preparingStreams, 5, 100);
         // encrypt and compress input file content
         PGPEncryptedDataGenerator cPk =
                 new PGPEncryptedDataGenerator(symmetricAlgorithm, true, new SecureRandom(),
-                                              new BouncyCastleProvider());
+                                              SymmetricProvider.getInstance());
 
-        if (encryptionKeyIds.length == 0) {
+        if (keys.symmetric) {
             // symmetric encryption
             cPk.addMethod(passPhrase.toCharArray());
         }
-        for (int i = 0; i < encryptionKeyIds.length; ++i) {
-            PGPPublicKey key = getEncryptPublicKey(encryptionKeyIds[i]);
-            if (key != null) {
-                cPk.addMethod(key);
-            }
+        for (PGPPublicKey key : keys.publicKeys) {
+            cPk.addMethod(key);
         }
         encryptOut = cPk.open(out, new byte[1 << 16]);
 
         PGPSignatureGenerator signatureGenerator = null;
         PGPV3SignatureGenerator signatureV3Generator = null;
 
-        if (signatureKeyId != 0) {
+        if (sign) {
             progress.setProgress(R.string.progress_preparingSignature, 10, 100);
             if (forceV3Signature) {
                 signatureV3Generator =
@@ -1279,22 +1655,31 @@ public class Apg {
                                                   new BouncyCastleProvider());
                 signatureGenerator.initSign(PGPSignature.BINARY_DOCUMENT, signaturePrivateKey);
 
-                String userId = getMainUserId(getMasterKey(signingKeyRing));
                 PGPSignatureSubpacketGenerator spGen = new PGPSignatureSubpacketGenerator();
-                spGen.setSignerUserID(false, userId);
+                spGen.setSignerUserID(false, keys.signerUserId);
                 signatureGenerator.setHashedSubpackets(spGen.generate());
             }
         }
 
+        InputStream in = data.getInputStream();
+        CompressionChoice compressionChoice = null;
+        int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+        if (compression == Id.choice.compression.auto) {
+            in = CompressionChoice.getSampleableStream(in);
+            compressionChoice = CompressionChoice.choose(in, data.getSize());
+            compression = compressionChoice.algorithm;
+            compressionLevel = compressionChoice.level;
+        }
+
         PGPCompressedDataGenerator compressGen = null;
         BCPGOutputStream bcpgOut = null;
         if (compression == Id.choice.compression.none) {
             bcpgOut = new BCPGOutputStream(encryptOut);
         } else {
-            compressGen = new PGPCompressedDataGenerator(compression);
+            compressGen = new PGPCompressedDataGenerator(compression, compressionLevel);
             bcpgOut = new BCPGOutputStream(compressGen.open(encryptOut));
         }
-        if (signatureKeyId != 0) {
+        if (sign) {
             if (forceV3Signature) {
                 signatureV3Generator.generateOnePassVersion(false).encode(bcpgOut);
             } else {
@@ -1308,27 +1693,51 @@ public class Apg {
                                             new Date(), new byte[1 << 16]);
         progress.setProgress(R.string.progress_encrypting, 20, 100);
         long done = 0;
-        int n = 0;
-        byte[] buffer = new byte[1 << 16];
-        InputStream in = data.getInputStream();
-        while ((n = in.read(buffer)) > 0) {
-            pOut.write(buffer, 0, n);
-            if (signatureKeyId != 0) {
-                if (forceV3Signature) {
-                    signatureV3Generator.update(buffer, 0, n);
-                } else {
-                    signatureGenerator.update(buffer, 0, n);
+        if (pipelined) {
+            // reading and signature hashing run on their own threads, this one only
+            // compresses and encrypts
+            StreamPipeline.Hasher hasher = null;
+            if (sign) {
+                hasher = getSignatureHasher(signatureGenerator, signatureV3Generator);
+            }
+            StreamPipeline pipeline = new StreamPipeline(in, hasher);
+            pipeline.start();
+            try {
+                StreamPipeline.Chunk chunk;
+                while ((chunk = pipeline.take()) != null) {
+                    pOut.write(chunk.data, 0, chunk.length);
+                    done += chunk.length;
+                    pipeline.release(chunk);
+                    if (data.getSize() != 0) {
+                        progress.setProgress((int) (20 + (95 - 20) * done / data.getSize()), 100);
+                    }
                 }
+                pipeline.finish();
+            } finally {
+                pipeline.close();
             }
-            done += n;
-            if (data.getSize() != 0) {
-                progress.setProgress((int) (20 + (95 - 20) * done / data.getSize()), 100);
+        } else {
+            int n = 0;
+            byte[] buffer = new byte[1 << 16];
+            while ((n = in.read(buffer)) > 0) {
+                pOut.write(buffer, 0, n);
+                if (sign) {
+                    if (forceV3Signature) {
+                        signatureV3Generator.update(buffer, 0, n);
+                    } else {
+                        signatureGenerator.update(buffer, 0, n);
+                    }
+                }
+                done += n;
+                if (data.getSize() != 0) {
+                    progress.setProgress((int) (20 + (95 - 20) * done / data.getSize()), 100);
+                }
             }
         }
 
         literalGen.close();
 
-        if (signatureKeyId != 0) {
+        if (sign) {
             progress.setProgress(R.string.progress_generatingSignature, 95, 100);
             if (forceV3Signature) {
                 signatureV3Generator.generate().encode(pOut);
@@ -1345,6 +1754,22 @@ public class Apg {
         }
 
         progress.setProgress(R.string.progress_done, 100, 100);
+        return compressionChoice;
+    }
+
+    private static StreamPipeline.Hasher getSignatureHasher(
+            final PGPSignatureGenerator signatureGenerator,
+            final PGPV3SignatureGenerator signatureV3Generator) {
+        return new StreamPipeline.Hasher() {
+            public void update(byte[] buffer, int offset, int length)
+                    throws SignatureException {
+                if (signatureV3Generator != null) {
+                    signatureV3Generator.update(buffer, offset, length);
+                } else {
+                    signatureGenerator.update(buffer, offset, length);
+                }
+            }
+        };
     }
 
     public static void signText(Context context,
@@ -1377,9 +1802,7 @@ public class Apg {
         if (signaturePassPhrase == null) {
             throw new GeneralException(context.getString(R.string.error_noSignaturePassPhrase));
         }
-        signaturePrivateKey =
-                signingKey.extractPrivateKey(signaturePassPhrase.toCharArray(),
-                                             new BouncyCastleProvider());
+        signaturePrivateKey = extractPrivateKey(signingKey, signaturePassPhrase);
         if (signaturePrivateKey == null) {
             throw new GeneralException(context.getString(R.string.error_couldNotExtractPrivateKey));
         }
@@ -1493,9 +1916,7 @@ public class Apg {
         if (signaturePassPhrase == null) {
             throw new GeneralException(context.getString(R.string.error_noSignaturePassPhrase));
         }
-        signaturePrivateKey =
-                signingKey.extractPrivateKey(signaturePassPhrase.toCharArray(),
-                                             new BouncyCastleProvider());
+        signaturePrivateKey = extractPrivateKey(signingKey, signaturePassPhrase);
         if (signaturePrivateKey == null) {
             throw new GeneralException(context.getString(R.string.error_couldNotExtractPrivateKey));
         }
@@ -1651,39 +2072,27 @@ public class Apg {
         return false;
     }
 
-    public static Bundle decrypt(Context context,
-                                 InputData data, OutputStream outStream,
-                                 String passPhrase, ProgressDialogUpdater progress,
-                                 boolean assumeSymmetric)
-            throws IOException, GeneralException, PGPException, SignatureException {
-        if (passPhrase == null) {
-            passPhrase = "";
-        }
-        Bundle returnData = new Bundle();
-        InputStream in = PGPUtil.getDecoderStream(data.getInputStream());
-        PGPObjectFactory pgpF = new PGPObjectFactory(in);
-        PGPEncryptedDataList enc;
-        Object o = pgpF.nextObject();
-        long signatureKeyId = 0;
-
-        int currentProgress = 0;
-        progress.setProgress(R.string.progress_readingData, currentProgress, 100);
+    // the decrypted contents of an encrypted data packet and where the progress bar got to
+    static class DecryptedStream {
+        public final PGPEncryptedData encryptedData;
+        public final InputStream clear;
+        public final int progress;
 
-        if (o instanceof PGPEncryptedDataList) {
-            enc = (PGPEncryptedDataList) o;
-        } else {
-            enc = (PGPEncryptedDataList) pgpF.nextObject();
+        DecryptedStream(PGPEncryptedData encryptedData, InputStream clear, int progress) {
+            this.encryptedData = encryptedData;
+            this.clear = clear;
+            this.progress = progress;
         }
+    }
 
-        if (enc == null) {
-            throw new GeneralException(context.getString(R.string.error_invalidData));
+    static DecryptedStream openEncryptedData(Context context, PGPEncryptedDataList enc,
+                                             String passPhrase, ProgressDialogUpdater progress,
+                                             int currentProgress, boolean assumeSymmetric,
+                                             Map<Long, PGPPrivateKey> unlockedKeys)
+            throws GeneralException, PGPException {
+        if (passPhrase == null) {
+            passPhrase = "";
         }
-
-        InputStream clear = null;
-        PGPEncryptedData encryptedData = null;
-
-        currentProgress += 5;
-
         // TODO: currently we always only look at the first known key or symmetric encryption,
         // there might be more...
         if (assumeSymmetric) {
@@ -1703,19 +2112,26 @@ public class Apg {
             }
 
             progress.setProgress(R.string.progress_preparingStreams, currentProgress, 100);
-            clear = pbe.getDataStream(passPhrase.toCharArray(), new BouncyCastleProvider());
-            encryptedData = pbe;
-            currentProgress += 5;
+            InputStream clear =
+                    pbe.getDataStream(passPhrase.toCharArray(),
+                                      SymmetricProvider.get(pbe.isIntegrityProtected()));
+            return new DecryptedStream(pbe, clear, currentProgress + 5);
         } else {
             progress.setProgress(R.string.progress_findingKey, currentProgress, 100);
             PGPPublicKeyEncryptedData pbe = null;
             PGPSecretKey secretKey = null;
+            PGPPrivateKey privateKey = null;
             Iterator<?> it = enc.getEncryptedDataObjects();
             // find secret key
             while (it.hasNext()) {
                 Object obj = it.next();
                 if (obj instanceof PGPPublicKeyEncryptedData) {
                     PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
+                    if (unlockedKeys != null && unlockedKeys.get(encData.getKeyID()) != null) {
+                        privateKey = unlockedKeys.get(encData.getKeyID());
+                        pbe = encData;
+                        break;
+                    }
                     secretKey = getSecretKey(encData.getKeyID());
                     if (secretKey != null) {
                         pbe = encData;
@@ -1724,28 +2140,76 @@ public class Apg {
                 }
             }
 
-            if (secretKey == null) {
+            if (secretKey == null && privateKey == null) {
                 throw new GeneralException(context.getString(R.string.error_noSecretKeyFound));
             }
 
             currentProgress += 5;
             progress.setProgress(R.string.progress_extractingKey, currentProgress, 100);
-            PGPPrivateKey privateKey = null;
-            try {
-                privateKey = secretKey.extractPrivateKey(passPhrase.toCharArray(),
-                                                         new BouncyCastleProvider());
-            } catch (PGPException e) {
-                throw new PGPException(context.getString(R.string.error_wrongPassPhrase));
+            if (privateKey == null) {
+                try {
+                    privateKey = extractPrivateKey(secretKey, passPhrase);
+                } catch (PGPException e) {
+                    throw new PGPException(context.getString(R.string.error_wrongPassPhrase));
+                }
             }
             if (privateKey == null) {
                 throw new GeneralException(context.getString(R.string.error_couldNotExtractPrivateKey));
             }
             currentProgress += 5;
             progress.setProgress(R.string.progress_preparingStreams, currentProgress, 100);
-            clear = pbe.getDataStream(privateKey, new BouncyCastleProvider());
-            encryptedData = pbe;
-            currentProgress += 5;
+            InputStream clear =
+                    pbe.getDataStream(privateKey,
+                                      SymmetricProvider.get(pbe.isIntegrityProtected()));
+            return new DecryptedStream(pbe, clear, currentProgress + 5);
         }
+    }
+
+    public static Bundle decrypt(Context context,
+                                 InputData data, OutputStream outStream,
+                                 String passPhrase, ProgressDialogUpdater progress,
+                                 boolean assumeSymmetric)
+            throws IOException, GeneralException, PGPException, SignatureException {
+        return decrypt(context, data, outStream, passPhrase, progress, assumeSymmetric, null);
+    }
+
+    // unlockedKeys are private keys by key ID that were extracted already, see BatchDecryptor
+    public static Bundle decrypt(Context context,
+                                 InputData data, OutputStream outStream,
+                                 String passPhrase, ProgressDialogUpdater progress,
+                                 boolean assumeSymmetric,
+                                 Map<Long, PGPPrivateKey> unlockedKeys)
+            throws IOException, GeneralException, PGPException, SignatureException {
+        if (passPhrase == null) {
+            passPhrase = "";
+        }
+        Bundle returnData = new Bundle();
+        InputStream in = PGPUtil.getDecoderStream(data.getInputStream());
+        PGPObjectFactory pgpF = new PGPObjectFactory(in);
+        PGPEncryptedDataList enc;
+        Object o = pgpF.nextObject();
+        long signatureKeyId = 0;
+
+        int currentProgress = 0;
+        progress.setProgress(R.string.progress_readingData, currentProgress, 100);
+
+        if (o instanceof PGPEncryptedDataList) {
+            enc = (PGPEncryptedDataList) o;
+        } else {
+            enc = (PGPEncryptedDataList) pgpF.nextObject();
+        }
+
+        if (enc == null) {
+            throw new GeneralException(context.getString(R.string.error_invalidData));
+        }
+
+        currentProgress += 5;
+        DecryptedStream decrypted = openEncryptedData(context, enc, passPhrase, progress,
+                                                      currentProgress, assumeSymmetric,
+                                                      unlockedKeys);
+        InputStream clear = decrypted.clear;
+        PGPEncryptedData encryptedData = decrypted.encryptedData;
+        currentProgress = decrypted.progress;
 
         PGPObjectFactory plainFact = new PGPObjectFactory(clear);
         Object dataChunk = plainFact.nextObject();
@@ -1799,6 +2263,19 @@ public class Apg {
             currentProgress += 10;
         }
 
+        if (dataChunk instanceof PGPLiteralData &&
+            ChunkedContainer.HEADER_NAME.equals(((PGPLiteralData) dataChunk).getFileName())) {
+            // the rest of the stream are the chunks of an APG container
+            ChunkedContainer.Header header =
+                    ChunkedContainer.readHeader(context, (PGPLiteralData) dataChunk,
+                                                encryptedData);
+            ChunkedContainer.decryptChunks(context, header, pgpF, outStream, data, progress,
+                                           currentProgress);
+            returnData.putBoolean(EXTRA_CONTAINER, true);
+            progress.setProgress(R.string.progress_done, 100, 100);
+            return returnData;
+        }
+
         if (dataChunk instanceof PGPLiteralData) {
             progress.setProgress(R.string.progress_decrypting, currentProgress, 100);
             PGPLiteralData literalData = (PGPLiteralData) dataChunk;
@@ -1873,106 +2350,110 @@ public class Apg {
             throws IOException, GeneralException, PGPException, SignatureException {
         Bundle returnData = new Bundle();
 
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
         ArmoredInputStream aIn = new ArmoredInputStream(data.getInputStream());
 
         progress.setProgress(R.string.progress_done, 0, 100);
 
-        // mostly taken from ClearSignedFileProcessor
-        ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
-        int lookAhead = readInputLine(lineOut, aIn);
-        byte[] lineSep = getLineSeparator();
-
-        byte[] line = lineOut.toByteArray();
-        out.write(line, 0, getLengthWithoutSeparator(line));
-        out.write(lineSep);
-
-        while (lookAhead != -1 && aIn.isClearText()) {
-            lookAhead = readInputLine(lineOut, lookAhead, aIn);
-            line = lineOut.toByteArray();
-            out.write(line, 0, getLengthWithoutSeparator(line));
-            out.write(lineSep);
-        }
-
-        out.close();
-
-        byte[] clearText = out.toByteArray();
-        outStream.write(clearText);
+        // the signature only comes after the clear text, so the canonicalized text is spooled
+        // to a file while the clear text is streamed out, that way at most a line of the
+        // document is held in memory
+        File spoolFile = File.createTempFile("verify", null, context.getCacheDir());
+        try {
+            OutputStream spool = new BufferedOutputStream(new FileOutputStream(spoolFile));
+            try {
+                // mostly taken from ClearSignedFileProcessor
+                ByteArrayOutputStream lineOut = new ByteArrayOutputStream();
+                int lookAhead = readInputLine(lineOut, aIn);
+                byte[] lineSep = getLineSeparator();
+
+                byte[] line = lineOut.toByteArray();
+                outStream.write(line, 0, getLengthWithoutSeparator(line));
+                outStream.write(lineSep);
+                spool.write(line, 0, getLengthWithoutWhiteSpace(line));
+
+                while (lookAhead != -1 && aIn.isClearText()) {
+                    lookAhead = readInputLine(lineOut, lookAhead, aIn);
+                    line = lineOut.toByteArray();
+                    outStream.write(line, 0, getLengthWithoutSeparator(line));
+                    outStream.write(lineSep);
+                    spool.write('\r');
+                    spool.write('\n');
+                    spool.write(line, 0, getLengthWithoutWhiteSpace(line));
+                }
+            } finally {
+                spool.close();
+            }
 
-        returnData.putBoolean(EXTRA_SIGNATURE, true);
+            returnData.putBoolean(EXTRA_SIGNATURE, true);
 
-        progress.setProgress(R.string.progress_processingSignature, 60, 100);
-        PGPObjectFactory pgpFact = new PGPObjectFactory(aIn);
+            progress.setProgress(R.string.progress_processingSignature, 60, 100);
+            PGPObjectFactory pgpFact = new PGPObjectFactory(aIn);
 
-        PGPSignatureList sigList = (PGPSignatureList) pgpFact.nextObject();
-        if (sigList == null) {
-            throw new GeneralException(context.getString(R.string.error_corruptData));
-        }
-        PGPSignature signature = null;
-        long signatureKeyId = 0;
-        PGPPublicKey signatureKey = null;
-        for (int i = 0; i < sigList.size(); ++i) {
-            signature = sigList.get(i);
-            signatureKey = getPublicKey(signature.getKeyID());
-            if (signatureKeyId == 0) {
-                signatureKeyId = signature.getKeyID();
-            }
-            if (signatureKey == null) {
-                Bundle pauseData = new Bundle();
-                pauseData.putInt(Constants.extras.status, Id.message.unknown_signature_key);
-                pauseData.putLong(Constants.extras.key_id, signatureKeyId);
-                Message msg = new Message();
-                msg.setData(pauseData);
-                context.sendMessage(msg);
-                // pause here
-                context.getRunningThread().pause();
-                // see whether the key was found in the meantime
-                signatureKey = getPublicKey(signature.getKeyID());
+            PGPSignatureList sigList = (PGPSignatureList) pgpFact.nextObject();
+            if (sigList == null) {
+                throw new GeneralException(context.getString(R.string.error_corruptData));
             }
+            PGPSignature signature = null;
+            long signatureKeyId = 0;
+            PGPPublicKey signatureKey = null;
+            for (int i = 0; i < sigList.size(); ++i) {
+                signature = sigList.get(i);
+                signatureKey = getPublicKey(signature.getKeyID());
+                if (signatureKeyId == 0) {
+                    signatureKeyId = signature.getKeyID();
+                }
+                if (signatureKey == null) {
+                    Bundle pauseData = new Bundle();
+                    pauseData.putInt(Constants.extras.status, Id.message.unknown_signature_key);
+                    pauseData.putLong(Constants.extras.key_id, signatureKeyId);
+                    Message msg = new Message();
+                    msg.setData(pauseData);
+                    context.sendMessage(msg);
+                    // pause here
+                    context.getRunningThread().pause();
+                    // see whether the key was found in the meantime
+                    signatureKey = getPublicKey(signature.getKeyID());
+                }
 
-            if (signatureKey == null) {
-                signature = null;
-            } else {
-                signatureKeyId = signature.getKeyID();
-                String userId = null;
-                PGPPublicKeyRing sigKeyRing = getPublicKeyRing(signatureKeyId);
-                if (sigKeyRing != null) {
-                    userId = getMainUserId(getMasterKey(sigKeyRing));
+                if (signatureKey == null) {
+                    signature = null;
+                } else {
+                    signatureKeyId = signature.getKeyID();
+                    String userId = null;
+                    PGPPublicKeyRing sigKeyRing = getPublicKeyRing(signatureKeyId);
+                    if (sigKeyRing != null) {
+                        userId = getMainUserId(getMasterKey(sigKeyRing));
+                    }
+                    returnData.putString(EXTRA_SIGNATURE_USER_ID, userId);
+                    break;
                 }
-                returnData.putString(EXTRA_SIGNATURE_USER_ID, userId);
-                break;
             }
-        }
-
-        returnData.putLong(EXTRA_SIGNATURE_KEY_ID, signatureKeyId);
-
-        if (signature == null) {
-            returnData.putBoolean(EXTRA_SIGNATURE_UNKNOWN, true);
-            progress.setProgress(R.string.progress_done, 100, 100);
-            return returnData;
-        }
-
-        signature.initVerify(signatureKey, new BouncyCastleProvider());
-
-        InputStream sigIn = new BufferedInputStream(new ByteArrayInputStream(clearText));
-
-        lookAhead = readInputLine(lineOut, sigIn);
 
-        processLine(signature, lineOut.toByteArray());
+            returnData.putLong(EXTRA_SIGNATURE_KEY_ID, signatureKeyId);
 
-        if (lookAhead != -1) {
-            do {
-                lookAhead = readInputLine(lineOut, lookAhead, sigIn);
+            if (signature == null) {
+                returnData.putBoolean(EXTRA_SIGNATURE_UNKNOWN, true);
+                progress.setProgress(R.string.progress_done, 100, 100);
+                return returnData;
+            }
 
-                signature.update((byte)'\r');
-                signature.update((byte)'\n');
+            signature.initVerify(signatureKey, new BouncyCastleProvider());
 
-                processLine(signature, lineOut.toByteArray());
+            InputStream sigIn = new FileInputStream(spoolFile);
+            try {
+                byte[] buffer = new byte[1 << 16];
+                int n = 0;
+                while ((n = sigIn.read(buffer)) > 0) {
+                    signature.update(buffer, 0, n);
+                }
+            } finally {
+                sigIn.close();
             }
-            while (lookAhead != -1);
-        }
 
-        returnData.putBoolean(EXTRA_SIGNATURE_SUCCESS, signature.verify());
+            returnData.putBoolean(EXTRA_SIGNATURE_SUCCESS, signature.verify());
+        } finally {
+            spoolFile.delete();
+        }
 
         progress.setProgress(R.string.progress_done, 100, 100);
         return returnData;
@@ -2050,15 +2531,6 @@ public class Apg {
         pSignatureGenerator.update(data);
     }
 
-    // taken from ClearSignedFileProcessor in BC
-    private static void processLine(PGPSignature sig, byte[] line)
-        throws SignatureException, IOException {
-        int length = getLengthWithoutWhiteSpace(line);
-        if (length > 0) {
-            sig.update(line, 0, length);
-        }
-    }
-
     private static int readInputLine(ByteArrayOutputStream bOut, InputStream fIn)
         throws IOException {
         bOut.reset();
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.Log;
+
+// runs a cursor query off the UI thread and delivers the cursor back on it. Starting a new
+// load or cancelling drops the results of older ones, stale queries that haven't started
+// yet are skipped altogether. Changes to the notification URI trigger a reload.
+public abstract class AsyncQuery {
+    // changes tend to come in bursts, one per key ring during an import
+    private static final long RELOAD_DELAY = 300;
+
+    private static final ExecutorService sExecutor = Executors.newSingleThreadExecutor();
+
+    private Handler mHandler = new Handler();
+    private ContentResolver mContentResolver;
+    private ContentObserver mObserver;
+    private volatile int mGeneration = 0;
+    private boolean mCancelled = false;
+
+    private Runnable mReload = new Runnable() {
+        public void run() {
+            load();
+        }
+    };
+
+    public AsyncQuery(Context context, Uri notificationUri) {
+        if (notificationUri != null) {
+            mContentResolver = context.getContentResolver();
+            mObserver = new ContentObserver(mHandler) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    mHandler.removeCallbacks(mReload);
+                    mHandler.postDelayed(mReload, RELOAD_DELAY);
+                }
+            };
+            mContentResolver.registerContentObserver(notificationUri, true, mObserver);
+        }
+    }
+
+    // called on the loader thread
+    protected abstract Cursor query();
+
+    // called on the UI thread, the cursor belongs to the receiver from then on
+    protected abstract void onLoaded(Cursor cursor);
+
+    public void load() {
+        if (mCancelled) {
+            return;
+        }
+        mHandler.removeCallbacks(mReload);
+        final int generation = ++mGeneration;
+        sExecutor.execute(new Runnable() {
+            public void run() {
+                if (generation != mGeneration) {
+                    return;
+                }
+
+                Cursor cursor = null;
+                try {
+                    cursor = query();
+                    if (cursor != null) {
+                        // the query really runs when the cursor window is filled
+                        cursor.getCount();
+                    }
+                } catch (SQLiteException e) {
+                    Log.e("apg.query", "query failed: " + e);
+                    if (cursor != null) {
+                        cursor.close();
+                        cursor = null;
+                    }
+                }
+
+                final Cursor result = cursor;
+                mHandler.post(new Runnable() {
+                    public void run() {
+                        if (generation != mGeneration || mCancelled) {
+                            if (result != null) {
+                                result.close();
+                            }
+                            return;
+                        }
+                        onLoaded(result);
+                    }
+                });
+            }
+        });
+    }
+
+    public void cancel() {
+        mCancelled = true;
+        ++mGeneration;
+        mHandler.removeCallbacks(mReload);
+        if (mObserver != null) {
+            mContentResolver.unregisterContentObserver(mObserver);
+            mObserver = null;
+        }
+    }
+}
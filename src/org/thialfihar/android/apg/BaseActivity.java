@@ -83,6 +83,8 @@ public class BaseActivity extends Activity
     public static void startCacheService(Activity activity, Preferences preferences) {
         Intent intent = new Intent(activity, Service.class);
         intent.putExtra(Service.EXTRA_TTL, preferences.getPassPhraseCacheTtl());
+        intent.putExtra(Service.EXTRA_REFRESH_KEYS, preferences.getRefreshKeys());
+        intent.putExtra(Service.EXTRA_CACHE_PRIVATE_KEYS, preferences.getCachePrivateKeys());
         activity.startService(intent);
     }
 
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.SignatureException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.bouncycastle2.openpgp.PGPException;
+import org.bouncycastle2.openpgp.PGPPrivateKey;
+import org.bouncycastle2.openpgp.PGPSecretKey;
+import org.thialfihar.android.apg.Apg.GeneralException;
+import org.thialfihar.android.apg.Apg.NoAsymmetricEncryptionException;
+
+import android.content.Context;
+import android.os.Bundle;
+
+// decrypts many inputs in one go: they are grouped by the key they are encrypted for, each key
+// is unlocked once and the inputs are decrypted on the worker pool
+public class BatchDecryptor {
+    public static class Item {
+        public final DataSource source;
+        public final DataDestination destination;
+        // known after scan()
+        public long keyId = Id.key.none;
+        // known after run(), result is what Apg.decrypt() returns, null if it failed
+        public OutputStream output = null;
+        public Bundle result = null;
+        public String error = null;
+        public long size = 0;
+        // in milliseconds
+        public long time = 0;
+
+        public Item(DataSource source, DataDestination destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    private Context mContext;
+    private Vector<Item> mItems = new Vector<Item>();
+    private HashMap<Long, String> mPassPhrases = new HashMap<Long, String>();
+
+    private int mSucceeded = 0;
+    private int mFailed = 0;
+    private int mUnlocks = 0;
+    private long mUnlockTime = 0;
+    private long mSize = 0;
+    private long mTime = 0;
+
+    public BatchDecryptor(Context context) {
+        mContext = context;
+    }
+
+    public Item add(DataSource source, DataDestination destination) {
+        Item item = new Item(source, destination);
+        mItems.add(item);
+        return item;
+    }
+
+    public Vector<Item> getItems() {
+        return mItems;
+    }
+
+    // without one, the cached pass phrase is used
+    public void setPassPhrase(long keyId, String passPhrase) {
+        mPassPhrases.put(keyId, passPhrase);
+    }
+
+    private String getPassPhrase(long keyId) {
+        String passPhrase = mPassPhrases.get(keyId);
+        if (passPhrase == null) {
+            passPhrase = Apg.getCachedPassPhrase(keyId);
+        }
+        return passPhrase;
+    }
+
+    // reads the start of every input to find the key it needs, Id.key.symmetric for the ones
+    // encrypted with a pass phrase only
+    public void scan() {
+        for (Item item : mItems) {
+            if (item.keyId != Id.key.none || item.error != null) {
+                continue;
+            }
+            InputData data = null;
+            try {
+                data = item.source.getInputData(mContext, false);
+                item.keyId = Apg.getDecryptionKeyId(mContext, data);
+                if (item.keyId == Id.key.none) {
+                    item.error = mContext.getString(R.string.error_noSecretKeyFound);
+                }
+            } catch (NoAsymmetricEncryptionException e) {
+                item.keyId = Id.key.symmetric;
+            } catch (GeneralException e) {
+                item.error = "" + e;
+            } catch (IOException e) {
+                item.error = "" + e;
+            } finally {
+                close(data);
+            }
+        }
+    }
+
+    // the keys the batch needs and has no pass phrase for, ask for these before run()
+    public Vector<Long> getMissingPassPhrases() {
+        scan();
+        Vector<Long> keyIds = new Vector<Long>();
+        for (Item item : mItems) {
+            if (item.error == null && !keyIds.contains(item.keyId) &&
+                getPassPhrase(item.keyId) == null) {
+                keyIds.add(item.keyId);
+            }
+        }
+        return keyIds;
+    }
+
+    // items that were decrypted or failed in an earlier run are left alone, so run() can be
+    // called again for items added since
+    public void run(ProgressDialogUpdater progress) throws GeneralException {
+        long startTime = System.currentTimeMillis();
+        Vector<Item> items = new Vector<Item>();
+        for (Item item : mItems) {
+            if (item.result == null && item.error == null) {
+                items.add(item);
+            }
+        }
+        progress.setProgress(R.string.progress_findingKey, 0, 100);
+        scan();
+
+        HashMap<Long, Vector<Item>> groups = new HashMap<Long, Vector<Item>>();
+        for (Item item : items) {
+            if (item.error != null) {
+                continue;
+            }
+            Vector<Item> group = groups.get(item.keyId);
+            if (group == null) {
+                group = new Vector<Item>();
+                groups.put(item.keyId, group);
+            }
+            group.add(item);
+        }
+
+        progress.setProgress(R.string.progress_extractingKey, 0, 100);
+        final HashMap<Long, PGPPrivateKey> unlockedKeys = new HashMap<Long, PGPPrivateKey>();
+        for (Map.Entry<Long, Vector<Item>> group : groups.entrySet()) {
+            long keyId = group.getKey();
+            String error = null;
+            if (getPassPhrase(keyId) == null) {
+                error = mContext.getString(R.string.error_noSignaturePassPhrase);
+            } else if (keyId != Id.key.symmetric) {
+                error = unlock(keyId, unlockedKeys);
+            }
+            if (error != null) {
+                for (Item item : group.getValue()) {
+                    item.error = error;
+                }
+            }
+        }
+
+        Vector<Future<Item>> futures = new Vector<Future<Item>>();
+        for (final Item item : items) {
+            if (item.error != null) {
+                continue;
+            }
+            final String passPhrase = getPassPhrase(item.keyId);
+            futures.add(Apg.getWorkerPool().submit(new Callable<Item>() {
+                public Item call() {
+                    decrypt(item, passPhrase, unlockedKeys);
+                    return item;
+                }
+            }));
+        }
+
+        int done = 0;
+        for (Future<Item> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                throw new GeneralException("interrupted");
+            } catch (ExecutionException e) {
+                // decrypt() records its own failures
+                throw new GeneralException("" + e.getCause());
+            }
+            ++done;
+            progress.setProgress(R.string.progress_decrypting, done, futures.size());
+        }
+
+        for (Item item : items) {
+            if (item.result != null) {
+                ++mSucceeded;
+                mSize += item.size;
+            } else {
+                ++mFailed;
+            }
+        }
+        mTime += System.currentTimeMillis() - startTime;
+        progress.setProgress(R.string.progress_done, 100, 100);
+    }
+
+    private String unlock(long keyId, HashMap<Long, PGPPrivateKey> unlockedKeys) {
+        PGPSecretKey secretKey = Apg.getSecretKey(keyId);
+        if (secretKey == null) {
+            return mContext.getString(R.string.error_noSecretKeyFound);
+        }
+        long startTime = System.currentTimeMillis();
+        PGPPrivateKey privateKey = null;
+        try {
+            privateKey = Apg.extractPrivateKey(secretKey, getPassPhrase(keyId));
+        } catch (PGPException e) {
+            return mContext.getString(R.string.error_wrongPassPhrase);
+        }
+        mUnlockTime += System.currentTimeMillis() - startTime;
+        ++mUnlocks;
+        if (privateKey == null) {
+            return mContext.getString(R.string.error_couldNotExtractPrivateKey);
+        }
+        unlockedKeys.put(keyId, privateKey);
+        return null;
+    }
+
+    private void decrypt(Item item, String passPhrase, Map<Long, PGPPrivateKey> unlockedKeys) {
+        long startTime = System.currentTimeMillis();
+        InputData data = null;
+        try {
+            data = item.source.getInputData(mContext, false);
+            item.output = item.destination.getOutputStream(mContext);
+            item.result = Apg.decrypt(mContext, data, item.output, passPhrase, NoProgress.INSTANCE,
+                                      item.keyId == Id.key.symmetric, unlockedKeys);
+            item.size = data.getStreamPosition();
+        } catch (IOException e) {
+            item.error = "" + e;
+        } catch (GeneralException e) {
+            item.error = "" + e;
+        } catch (PGPException e) {
+            item.error = "" + e;
+        } catch (SignatureException e) {
+            item.error = "" + e;
+        } finally {
+            close(data);
+            if (item.output != null) {
+                try {
+                    item.output.close();
+                } catch (IOException e) {
+                    if (item.error == null) {
+                        item.error = "" + e;
+                        item.result = null;
+                    }
+                }
+            }
+        }
+        item.time = System.currentTimeMillis() - startTime;
+    }
+
+    private static void close(InputData data) {
+        if (data == null) {
+            return;
+        }
+        try {
+            data.getInputStream().close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    public int getSucceeded() {
+        return mSucceeded;
+    }
+
+    public int getFailed() {
+        return mFailed;
+    }
+
+    @Override
+    public String toString() {
+        long rate = mSize * 1000L / Math.max(mTime, 1);
+        return "BatchDecryptor(" + mItems.size() + " items, " + mSucceeded + " decrypted, " +
+               mFailed + " failed, " + mUnlocks + " keys unlocked in " + mUnlockTime + " ms, " +
+               mSize + " bytes in " + mTime + " ms, " + rate + " bytes/s)";
+    }
+}
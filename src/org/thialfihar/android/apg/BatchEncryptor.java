@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.bouncycastle2.openpgp.PGPException;
+import org.thialfihar.android.apg.Apg.GeneralException;
+
+import android.content.Context;
+
+// encrypts and/or signs many inputs for the same recipients in one go: the keys are looked up
+// and the signing key is unlocked once, then the inputs are encrypted on the worker pool
+public class BatchEncryptor {
+    public static class Item {
+        public final DataSource source;
+        public final DataDestination destination;
+        // known after run(), error is null for the ones that were encrypted
+        public boolean done = false;
+        public String error = null;
+        // only for Id.choice.compression.auto
+        public CompressionChoice compression = null;
+        public long size = 0;
+        // in milliseconds
+        public long time = 0;
+
+        public Item(DataSource source, DataDestination destination) {
+            this.source = source;
+            this.destination = destination;
+        }
+    }
+
+    // lets cancel() stop the items that are in the middle of being encrypted
+    private class CancellableInputStream extends FilterInputStream {
+        public CancellableInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            checkCancelled();
+            return super.read();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            checkCancelled();
+            return super.read(buffer, offset, length);
+        }
+
+        private void checkCancelled() throws IOException {
+            if (mCancelled) {
+                throw new IOException("cancelled");
+            }
+        }
+    }
+
+    private Context mContext;
+    private Vector<Item> mItems = new Vector<Item>();
+    private volatile boolean mCancelled = false;
+
+    private long mEncryptionKeyIds[] = null;
+    private long mSignatureKeyId = 0;
+    private String mSignaturePassPhrase = null;
+    private String mPassPhrase = null;
+    private boolean mArmored = false;
+    private int mSymmetricAlgorithm;
+    private int mHashAlgorithm;
+    private int mCompression;
+    private boolean mForceV3Signature;
+    // 0 for regular messages, otherwise APG containers with chunks of that size
+    private int mChunkSize = 0;
+
+    private int mSucceeded = 0;
+    private int mFailed = 0;
+    private long mKeyTime = 0;
+    private long mSize = 0;
+    private long mTime = 0;
+
+    public BatchEncryptor(Context context) {
+        mContext = context;
+        mSymmetricAlgorithm = Preferences.getPreferences(context).getDefaultEncryptionAlgorithm();
+        mHashAlgorithm = Preferences.getPreferences(context).getDefaultHashAlgorithm();
+        mCompression = Preferences.getPreferences(context).getDefaultMessageCompression();
+        mForceV3Signature = Preferences.getPreferences(context).getForceV3Signatures();
+    }
+
+    public Item add(DataSource source, DataDestination destination) {
+        Item item = new Item(source, destination);
+        mItems.add(item);
+        return item;
+    }
+
+    public Vector<Item> getItems() {
+        return mItems;
+    }
+
+    public void setEncryptionKeys(long encryptionKeyIds[]) {
+        mEncryptionKeyIds = encryptionKeyIds;
+    }
+
+    public void setSignatureKey(long signatureKeyId, String signaturePassPhrase) {
+        mSignatureKeyId = signatureKeyId;
+        mSignaturePassPhrase = signaturePassPhrase;
+    }
+
+    // symmetric encryption, used when there are no encryption keys
+    public void setPassPhrase(String passPhrase) {
+        mPassPhrase = passPhrase;
+    }
+
+    public void setArmored(boolean armored) {
+        mArmored = armored;
+    }
+
+    public void setAlgorithms(int symmetricAlgorithm, int hashAlgorithm, int compression,
+                              boolean forceV3Signature) {
+        mSymmetricAlgorithm = symmetricAlgorithm;
+        mHashAlgorithm = hashAlgorithm;
+        mCompression = compression;
+        mForceV3Signature = forceV3Signature;
+    }
+
+    // containers can't be signed, see ChunkedContainer
+    public void setChunkSize(int chunkSize) {
+        mChunkSize = chunkSize;
+    }
+
+    // can be called from any thread, items that haven't finished yet fail with "cancelled",
+    // only affects the current run(), a later one retries them
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public void run(ProgressDialogUpdater progress) throws GeneralException {
+        long startTime = System.currentTimeMillis();
+        mCancelled = false;
+        Vector<Item> items = new Vector<Item>();
+        for (Item item : mItems) {
+            if (!item.done) {
+                item.error = null;
+                items.add(item);
+            }
+        }
+
+        String signaturePassPhrase = mSignaturePassPhrase;
+        if (mSignatureKeyId != 0 && signaturePassPhrase == null) {
+            signaturePassPhrase = Apg.getCachedPassPhrase(mSignatureKeyId);
+        }
+
+        final Apg.EncryptionKeys keys;
+        try {
+            keys = Apg.getEncryptionKeys(mContext, mEncryptionKeyIds, mSignatureKeyId,
+                                         signaturePassPhrase, mPassPhrase, progress);
+        } catch (PGPException e) {
+            throw new GeneralException(mContext.getString(R.string.error_wrongPassPhrase));
+        }
+        mKeyTime += System.currentTimeMillis() - startTime;
+
+        Vector<Future<Item>> futures = new Vector<Future<Item>>();
+        for (final Item item : items) {
+            futures.add(Apg.getWorkerPool().submit(new Callable<Item>() {
+                public Item call() {
+                    encrypt(item, keys);
+                    return item;
+                }
+            }));
+        }
+
+        int done = 0;
+        progress.setProgress(R.string.progress_encrypting, 0, futures.size());
+        for (Future<Item> future : futures) {
+            if (mCancelled) {
+                // the ones still waiting for a thread don't need to start at all
+                future.cancel(false);
+            }
+            try {
+                future.get();
+            } catch (CancellationException e) {
+                // counted as failed below
+            } catch (InterruptedException e) {
+                mCancelled = true;
+            } catch (ExecutionException e) {
+                // encrypt() records its own failures
+                throw new GeneralException("" + e.getCause());
+            }
+            ++done;
+            progress.setProgress(R.string.progress_encrypting, done, futures.size());
+        }
+
+        for (Item item : items) {
+            if (!item.done) {
+                item.error = "cancelled";
+            }
+            if (item.error == null) {
+                ++mSucceeded;
+                mSize += item.size;
+            } else {
+                ++mFailed;
+            }
+        }
+        mTime += System.currentTimeMillis() - startTime;
+        progress.setProgress(R.string.progress_done, 100, 100);
+    }
+
+    private void encrypt(Item item, Apg.EncryptionKeys keys) {
+        if (mCancelled) {
+            return;
+        }
+        long startTime = System.currentTimeMillis();
+        InputData data = null;
+        OutputStream out = null;
+        try {
+            InputData source = item.source.getInputData(mContext, true);
+            data = new InputData(new CancellableInputStream(source.getInputStream()),
+                                 source.getSize());
+            out = item.destination.getOutputStream(mContext);
+            if (mChunkSize > 0) {
+                ChunkedContainer.encrypt(mContext, data, out, keys, mPassPhrase,
+                                         mSymmetricAlgorithm, mChunkSize, NoProgress.INSTANCE);
+            } else {
+                item.compression =
+                        Apg.encrypt(mContext, data, out, mArmored, keys, NoProgress.INSTANCE,
+                                    mSymmetricAlgorithm, mHashAlgorithm, mCompression,
+                                    mForceV3Signature, mPassPhrase, false);
+            }
+            item.size = data.getStreamPosition();
+        } catch (Exception e) {
+            item.error = "" + e;
+        } finally {
+            if (data != null) {
+                try {
+                    data.getInputStream().close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (item.error == null) {
+                        item.error = "" + e;
+                    }
+                }
+            }
+        }
+        item.time = System.currentTimeMillis() - startTime;
+        item.done = true;
+    }
+
+    public int getSucceeded() {
+        return mSucceeded;
+    }
+
+    public int getFailed() {
+        return mFailed;
+    }
+
+    @Override
+    public String toString() {
+        long rate = mSize * 1000L / Math.max(mTime, 1);
+        return "BatchEncryptor(" + mItems.size() + " items, " + mSucceeded + " encrypted, " +
+               mFailed + " failed, keys ready in " + mKeyTime + " ms, " +
+               mSize + " bytes in " + mTime + " ms, " + rate + " bytes/s)";
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Vector;
+
+import android.content.Context;
+
+// how far a resumable ChunkedContainer.encryptFile() or decryptFile() got. The output is
+// synced before every save and the checkpoint file is replaced atomically, so whatever is
+// saved is on disk. Checkpoints of encryptions include the chunk key, which is why they are
+// kept in the app's private storage, overwritten when the operation is done and expire after
+// MAX_AGE if it is never resumed.
+public class Checkpoint {
+    private static final int VERSION = 1;
+    private static final int ENCRYPTION = 1;
+    private static final int DECRYPTION = 2;
+    // in milliseconds
+    private static final long MAX_AGE = 24 * 3600 * 1000L;
+
+    private File mFile;
+    private File mInput;
+    private File mOutput;
+    // checkpoints are put together here, then written in one go
+    private ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+
+    public Checkpoint(File file, File input, File output) {
+        mFile = file;
+        mInput = input.getAbsoluteFile();
+        mOutput = output.getAbsoluteFile();
+    }
+
+    public static Checkpoint get(Context context, File input, File output) {
+        File dir = expire(context);
+        String name = input.getAbsolutePath() + "\n" + output.getAbsolutePath();
+        return new Checkpoint(new File(dir, Integer.toHexString(name.hashCode())),
+                              input, output);
+    }
+
+    // drops the checkpoints older than MAX_AGE, returns their directory
+    public static File expire(Context context) {
+        File dir = context.getDir("checkpoints", Context.MODE_PRIVATE);
+        File files[] = dir.listFiles();
+        if (files != null) {
+            long oldest = System.currentTimeMillis() - MAX_AGE;
+            for (File file : files) {
+                if (file.lastModified() < oldest) {
+                    wipe(file);
+                }
+            }
+        }
+        return dir;
+    }
+
+    public File getInput() {
+        return mInput;
+    }
+
+    public File getOutput() {
+        return mOutput;
+    }
+
+    public boolean exists() {
+        return mFile.exists();
+    }
+
+    public void delete() {
+        wipe(mFile);
+        wipe(new File(mFile.getPath() + ".tmp"));
+    }
+
+    // gives up on the operation, dropping what it wrote so far
+    public void discard() {
+        mOutput.delete();
+        delete();
+    }
+
+    ChunkedContainer.State loadEncryption() {
+        DataInputStream in = open(ENCRYPTION);
+        if (in == null) {
+            return null;
+        }
+        try {
+            long length = in.readLong();
+            long headerLength = in.readLong();
+            byte header[] = new byte[in.readInt()];
+            in.readFully(header);
+            long size = in.readLong();
+            int count = in.readInt();
+            Vector<Long> offsets = new Vector<Long>(count);
+            for (int i = 0; i < count; ++i) {
+                offsets.add(in.readLong());
+            }
+            if (mOutput.length() < length) {
+                return null;
+            }
+            return new ChunkedContainer.State(ChunkedContainer.Header.decode(header),
+                                              headerLength, offsets, size, length);
+        } catch (IOException e) {
+            // unreadable, start over
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    void saveEncryption(FileOutputStream fileOut, ChunkedContainer.State state)
+            throws IOException {
+        sync(fileOut);
+        DataOutputStream out = create(ENCRYPTION);
+        out.writeLong(state.length);
+        out.writeLong(state.headerLength);
+        byte header[] = state.header.encode();
+        out.writeInt(header.length);
+        out.write(header);
+        out.writeLong(state.size);
+        out.writeInt(state.offsets.size());
+        for (long offset : state.offsets) {
+            out.writeLong(offset);
+        }
+        commit(out);
+    }
+
+    // -1 if there is nothing to resume
+    long loadDecryption() {
+        DataInputStream in = open(DECRYPTION);
+        if (in == null) {
+            return -1;
+        }
+        try {
+            long length = in.readLong();
+            if (mOutput.length() < length) {
+                return -1;
+            }
+            return length;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            close(in);
+        }
+    }
+
+    void saveDecryption(FileOutputStream fileOut, long length) throws IOException {
+        sync(fileOut);
+        DataOutputStream out = create(DECRYPTION);
+        out.writeLong(length);
+        commit(out);
+    }
+
+    // null unless the checkpoint is of that kind and still matches input and output
+    private DataInputStream open(int kind) {
+        if (!mFile.exists()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+            if (in.readInt() != VERSION || in.readInt() != kind ||
+                !in.readUTF().equals(mInput.getPath()) ||
+                in.readLong() != mInput.length() ||
+                in.readLong() != mInput.lastModified() ||
+                !in.readUTF().equals(mOutput.getPath())) {
+                close(in);
+                return null;
+            }
+            return in;
+        } catch (IOException e) {
+            close(in);
+            return null;
+        }
+    }
+
+    private DataOutputStream create(int kind) throws IOException {
+        mBuffer.reset();
+        DataOutputStream out = new DataOutputStream(mBuffer);
+        out.writeInt(VERSION);
+        out.writeInt(kind);
+        out.writeUTF(mInput.getPath());
+        out.writeLong(mInput.length());
+        out.writeLong(mInput.lastModified());
+        out.writeUTF(mOutput.getPath());
+        return out;
+    }
+
+    private void commit(DataOutputStream data) throws IOException {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            data.flush();
+            mBuffer.writeTo(out);
+            sync(out);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(mFile)) {
+            throw new IOException("couldn't save checkpoint " + mFile);
+        }
+    }
+
+    // overwrites the file before deleting it, so the chunk key doesn't linger in free space,
+    // as far as the file system allows
+    private static void wipe(File file) {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            RandomAccessFile out = new RandomAccessFile(file, "rw");
+            try {
+                byte zeros[] = new byte[1 << 10];
+                for (long left = out.length(); left > 0; left -= zeros.length) {
+                    out.write(zeros, 0, (int) Math.min(left, zeros.length));
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            // delete it anyway
+        }
+        file.delete();
+    }
+
+    private static void sync(FileOutputStream out) throws IOException {
+        out.flush();
+        out.getFD().sync();
+    }
+
+    private static void close(DataInputStream in) {
+        if (in == null) {
+            return;
+        }
+        try {
+            in.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+}
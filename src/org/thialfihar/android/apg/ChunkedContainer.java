@@ -0,0 +1,862 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.SecureRandom;
+import java.util.Date;
+import java.util.Map;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.bouncycastle2.openpgp.PGPEncryptedData;
+import org.bouncycastle2.openpgp.PGPEncryptedDataGenerator;
+import org.bouncycastle2.openpgp.PGPEncryptedDataList;
+import org.bouncycastle2.openpgp.PGPException;
+import org.bouncycastle2.openpgp.PGPLiteralData;
+import org.bouncycastle2.openpgp.PGPLiteralDataGenerator;
+import org.bouncycastle2.openpgp.PGPObjectFactory;
+import org.bouncycastle2.openpgp.PGPPBEEncryptedData;
+import org.bouncycastle2.openpgp.PGPPrivateKey;
+import org.bouncycastle2.openpgp.PGPPublicKey;
+import org.thialfihar.android.apg.Apg.GeneralException;
+
+import android.content.Context;
+
+// APG container: large inputs split into chunks that can be decrypted independently, in
+// parallel and from any offset. Everything is made of plain OpenPGP packets:
+//
+//   header   encrypted to the recipients (or pass phrase) like any message, its literal data
+//            "_apg_container" holds the format version, the chunk size and a random chunk key
+//   chunks   one symmetrically encrypted, integrity protected message per chunk, using the
+//            chunk key as pass phrase, literal data "_apg_chunk_<n>" ties a chunk to its place
+//   index    another such message, literal data "_apg_index", holding the total size and
+//            the offsets of all chunks
+//   footer   an unencrypted literal data packet "_apg_footer" of fixed size, holding the
+//            header length and the index offset, so a reader can find the index from the end
+//
+// Apg.decrypt() recognizes the header and simply streams through the chunks, Reader needs a
+// file but can decrypt any byte range in parallel.
+public class ChunkedContainer {
+    public static final String HEADER_NAME = "_apg_container";
+    public static final String CHUNK_PREFIX = "_apg_chunk_";
+    public static final String INDEX_NAME = "_apg_index";
+    public static final String FOOTER_NAME = "_apg_footer";
+    public static final int VERSION = 1;
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+    // bytes written between two checkpoints of encryptFile() and decryptFile()
+    public static final int CHECKPOINT_INTERVAL = 8 << 20;
+
+    private static final int FOOTER_BODY_LENGTH = 16;
+    // the footer isn't authenticated, these keep a corrupt one from making the reader allocate
+    // anything it wouldn't need for a valid container. The header is a few hundred bytes
+    // plus a session key packet per recipient, under 1 KiB each even for 8192 bit keys
+    private static final int MAX_HEADER_LENGTH = 256 << 10;
+    // no encrypted chunk is shorter than this: packet headers, cipher prefix, literal data
+    // header with the name and the modification detection code
+    private static final int MIN_CHUNK_PACKET_LENGTH = 48;
+    // packet headers and the like of the index, on top of its data
+    private static final int INDEX_PACKET_OVERHEAD = 512;
+    private static byte[] mEmptyFooter = null;
+
+    public static class Header {
+        public final int version;
+        public final int chunkSize;
+        public final char[] key;
+
+        public Header(int version, int chunkSize, char[] key) {
+            this.version = version;
+            this.chunkSize = chunkSize;
+            this.key = key;
+        }
+
+        public byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(version);
+            out.writeInt(chunkSize);
+            out.writeUTF(new String(key));
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        public static Header decode(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            int version = in.readInt();
+            int chunkSize = in.readInt();
+            char[] key = in.readUTF().toCharArray();
+            return new Header(version, chunkSize, key);
+        }
+    }
+
+    // offsets has one more entry than there are chunks, the last one is the end of the chunks
+    public static class Index {
+        public final long size;
+        public final long offsets[];
+
+        public Index(long size, long offsets[]) {
+            this.size = size;
+            this.offsets = offsets;
+        }
+
+        public int getChunkCount() {
+            return offsets.length - 1;
+        }
+
+        public byte[] encode() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(size);
+            out.writeInt(offsets.length);
+            for (long offset : offsets) {
+                out.writeLong(offset);
+            }
+            out.close();
+            return bytes.toByteArray();
+        }
+
+        public static Index decode(byte[] data) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+            long size = in.readLong();
+            int count = in.readInt();
+            if (count < 1 || count > data.length / 8) {
+                throw new IOException("invalid index");
+            }
+            long offsets[] = new long[count];
+            for (int i = 0; i < count; ++i) {
+                offsets[i] = in.readLong();
+            }
+            return new Index(size, offsets);
+        }
+    }
+
+    // how far an encryption got, enough for a Checkpoint to continue it
+    static class State {
+        public final Header header;
+        public final long headerLength;
+        // of the chunks written so far
+        public final Vector<Long> offsets;
+        // plain text that went into those chunks
+        public long size;
+        // container bytes written
+        public long length;
+
+        public State(Header header, long headerLength, Vector<Long> offsets, long size,
+                     long length) {
+            this.header = header;
+            this.headerLength = headerLength;
+            this.offsets = offsets;
+            this.size = size;
+            this.length = length;
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        public long count;
+
+        public CountingOutputStream(OutputStream out, long count) {
+            super(out);
+            this.count = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++count;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            count += length;
+        }
+    }
+
+    public static void encrypt(Context context, InputData data, OutputStream outStream,
+                               Apg.EncryptionKeys keys, String passPhrase,
+                               int symmetricAlgorithm, int chunkSize,
+                               ProgressDialogUpdater progress)
+            throws IOException, GeneralException, PGPException {
+        CountingOutputStream out = new CountingOutputStream(outStream, 0);
+        progress.setProgress(R.string.progress_preparingStreams, 5, 100);
+        State state = writeHeader(out, keys, passPhrase, symmetricAlgorithm, chunkSize);
+        writeChunks(data.getInputStream(), out, symmetricAlgorithm, state, data.getSize(),
+                    null, null, progress);
+        writeIndex(out, symmetricAlgorithm, state);
+        out.flush();
+        progress.setProgress(R.string.progress_done, 100, 100);
+    }
+
+    // like encrypt(), but from file to file with a checkpoint every CHECKPOINT_INTERVAL
+    // bytes. If it is interrupted, calling it again with the same checkpoint continues at the
+    // last one. The output is left in place for that, Checkpoint.discard() drops both.
+    // The keys of a resumed encryption are the ones it was started with.
+    public static void encryptFile(Context context, Checkpoint checkpoint,
+                                   Apg.EncryptionKeys keys, String passPhrase,
+                                   int symmetricAlgorithm, int chunkSize,
+                                   ProgressDialogUpdater progress)
+            throws IOException, GeneralException, PGPException {
+        progress.setProgress(R.string.progress_preparingStreams, 5, 100);
+        File input = checkpoint.getInput();
+        File output = checkpoint.getOutput();
+        State state = checkpoint.loadEncryption();
+        InputStream in = new FileInputStream(input);
+        FileOutputStream fileOut = null;
+        try {
+            CountingOutputStream out;
+            if (state != null) {
+                truncate(output, state.length);
+                skipFully(in, state.size);
+                fileOut = new FileOutputStream(output, true);
+                out = new CountingOutputStream(fileOut, state.length);
+            } else {
+                fileOut = new FileOutputStream(output);
+                out = new CountingOutputStream(fileOut, 0);
+                // no checkpoint before the first CHECKPOINT_INTERVAL of chunks, starting over
+                // is cheap until then and the chunk key isn't stored for nothing
+                state = writeHeader(out, keys, passPhrase, symmetricAlgorithm, chunkSize);
+            }
+            writeChunks(in, out, symmetricAlgorithm, state, input.length(), checkpoint,
+                        fileOut, progress);
+            writeIndex(out, symmetricAlgorithm, state);
+            fileOut.getFD().sync();
+        } finally {
+            in.close();
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+        checkpoint.delete();
+        progress.setProgress(R.string.progress_done, 100, 100);
+    }
+
+    private static State writeHeader(CountingOutputStream out, Apg.EncryptionKeys keys,
+                                     String passPhrase, int symmetricAlgorithm, int chunkSize)
+            throws IOException, GeneralException, PGPException {
+        if (keys.signingKey != null) {
+            // there is no single signature that would survive decrypting only a range
+            throw new GeneralException("containers can't be signed");
+        }
+        if (chunkSize <= 0) {
+            chunkSize = DEFAULT_CHUNK_SIZE;
+        }
+        SecureRandom random = new SecureRandom();
+        byte keyBytes[] = new byte[32];
+        random.nextBytes(keyBytes);
+        char key[] = new char[keyBytes.length * 2];
+        for (int i = 0; i < keyBytes.length; ++i) {
+            key[i * 2] = Character.forDigit((keyBytes[i] >> 4) & 0xf, 16);
+            key[i * 2 + 1] = Character.forDigit(keyBytes[i] & 0xf, 16);
+        }
+        Header header = new Header(VERSION, chunkSize, key);
+
+        PGPEncryptedDataGenerator headerGen =
+                new PGPEncryptedDataGenerator(symmetricAlgorithm, true, random,
+                                              SymmetricProvider.getInstance());
+        if (keys.symmetric) {
+            headerGen.addMethod(passPhrase.toCharArray());
+        }
+        for (PGPPublicKey publicKey : keys.publicKeys) {
+            headerGen.addMethod(publicKey);
+        }
+        writeLiteral(headerGen.open(out, new byte[1 << 10]), HEADER_NAME, header.encode());
+        if (out.count > MAX_HEADER_LENGTH) {
+            // no Reader would open it
+            throw new GeneralException("too many recipients for a container");
+        }
+        return new State(header, out.count, new Vector<Long>(), 0, out.count);
+    }
+
+    // a few chunks per thread are encrypted ahead, they are written in order
+    private static void writeChunks(InputStream in, CountingOutputStream out,
+                                    int symmetricAlgorithm, final State state, long totalSize,
+                                    Checkpoint checkpoint, FileOutputStream fileOut,
+                                    ProgressDialogUpdater progress)
+            throws IOException, GeneralException, PGPException {
+        final Header header = state.header;
+        final int algorithm = symmetricAlgorithm;
+        int window = 2 * Math.max(2, Runtime.getRuntime().availableProcessors());
+        Vector<Future<byte[]>> pending = new Vector<Future<byte[]>>();
+        Vector<Integer> pendingLengths = new Vector<Integer>();
+        int chunk = state.offsets.size();
+        long lastCheckpoint = out.count;
+        boolean eof = false;
+        progress.setProgress(R.string.progress_encrypting, 10, 100);
+        try {
+            while (!eof || !pending.isEmpty()) {
+                if (!eof && pending.size() < window) {
+                    final byte buffer[] = new byte[header.chunkSize];
+                    final int length = readFully(in, buffer);
+                    if (length > 0) {
+                        final int number = chunk++;
+                        pending.add(Apg.getChunkPool().submit(new Callable<byte[]>() {
+                            public byte[] call() throws Exception {
+                                return encryptChunk(header, algorithm, CHUNK_PREFIX + number,
+                                                    buffer, length);
+                            }
+                        }));
+                        pendingLengths.add(length);
+                    }
+                    if (length < header.chunkSize) {
+                        eof = true;
+                    }
+                    continue;
+                }
+
+                byte encrypted[] = getResult(pending.remove(0));
+                state.offsets.add(out.count);
+                out.write(encrypted);
+                state.size += pendingLengths.remove(0);
+                state.length = out.count;
+                if (checkpoint != null && out.count - lastCheckpoint >= CHECKPOINT_INTERVAL) {
+                    checkpoint.saveEncryption(fileOut, state);
+                    lastCheckpoint = out.count;
+                }
+                if (totalSize > 0) {
+                    progress.setProgress((int) (10 + 85 * state.size / totalSize), 100);
+                }
+            }
+        } finally {
+            for (Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static void writeIndex(CountingOutputStream out, int symmetricAlgorithm,
+                                   State state)
+            throws IOException, PGPException {
+        long offsets[] = new long[state.offsets.size() + 1];
+        for (int i = 0; i < state.offsets.size(); ++i) {
+            offsets[i] = state.offsets.get(i);
+        }
+        long indexOffset = out.count;
+        offsets[offsets.length - 1] = indexOffset;
+        byte index[] = new Index(state.size, offsets).encode();
+        out.write(encryptChunk(state.header, symmetricAlgorithm, INDEX_NAME, index,
+                               index.length));
+        out.write(encodeFooter(state.headerLength, indexOffset));
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void skipFully(InputStream in, long length) throws IOException {
+        while (length > 0) {
+            long n = in.skip(length);
+            if (n <= 0) {
+                throw new IOException("input shorter than the checkpoint");
+            }
+            length -= n;
+        }
+    }
+
+    private static byte[] getResult(Future<byte[]> future)
+            throws IOException, GeneralException, PGPException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            throw new GeneralException("interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof GeneralException) {
+                throw (GeneralException) cause;
+            }
+            if (cause instanceof PGPException) {
+                throw (PGPException) cause;
+            }
+            throw new GeneralException("" + cause);
+        }
+    }
+
+    private static int readFully(InputStream in, byte buffer[]) throws IOException {
+        int length = 0;
+        while (length < buffer.length) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if (n <= 0) {
+                break;
+            }
+            length += n;
+        }
+        return length;
+    }
+
+    private static void writeLiteral(OutputStream encryptOut, String name, byte data[])
+            throws IOException {
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream out = literalGen.open(encryptOut, PGPLiteralData.BINARY, name,
+                                           data.length, new Date());
+        out.write(data);
+        literalGen.close();
+        encryptOut.close();
+    }
+
+    private static byte[] encryptChunk(Header header, int symmetricAlgorithm, String name,
+                                       byte data[], int length)
+            throws IOException, PGPException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length + 256);
+        PGPEncryptedDataGenerator gen =
+                new PGPEncryptedDataGenerator(symmetricAlgorithm, true, new SecureRandom(),
+                                              SymmetricProvider.getInstance());
+        gen.addMethod(header.key);
+        OutputStream encryptOut = gen.open(out, new byte[1 << 16]);
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGen.open(encryptOut, PGPLiteralData.BINARY, name,
+                                                  length, new Date());
+        literalOut.write(data, 0, length);
+        literalGen.close();
+        encryptOut.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] encodeFooter(long headerLength, long indexOffset) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream bodyOut = new DataOutputStream(body);
+        bodyOut.writeLong(headerLength);
+        bodyOut.writeLong(indexOffset);
+        bodyOut.close();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PGPLiteralDataGenerator literalGen = new PGPLiteralDataGenerator();
+        OutputStream literalOut = literalGen.open(out, PGPLiteralData.BINARY, FOOTER_NAME,
+                                                  body.size(), new Date(0));
+        literalOut.write(body.toByteArray());
+        literalGen.close();
+        return out.toByteArray();
+    }
+
+    // everything but the last FOOTER_BODY_LENGTH bytes is the same in every footer
+    private static synchronized byte[] getEmptyFooter() throws IOException {
+        if (mEmptyFooter == null) {
+            mEmptyFooter = encodeFooter(0, 0);
+        }
+        return mEmptyFooter;
+    }
+
+    // called by Apg.decrypt() once it found a container header
+    static Header readHeader(Context context, PGPLiteralData literalData,
+                             PGPEncryptedData encryptedData)
+            throws IOException, GeneralException, PGPException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copy(literalData.getInputStream(), bytes);
+        checkIntegrity(context, encryptedData);
+        Header header = Header.decode(bytes.toByteArray());
+        if (header.version != VERSION || header.chunkSize <= 0) {
+            throw new GeneralException(context.getString(R.string.error_invalidData));
+        }
+        return header;
+    }
+
+    private static void checkIntegrity(Context context, PGPEncryptedData encryptedData)
+            throws IOException, GeneralException, PGPException {
+        if (!encryptedData.isIntegrityProtected() || !encryptedData.verify()) {
+            throw new GeneralException(context.getString(R.string.error_corruptData));
+        }
+    }
+
+    private static long copy(InputStream in, OutputStream out) throws IOException {
+        byte buffer[] = new byte[1 << 16];
+        long done = 0;
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+            done += n;
+        }
+        return done;
+    }
+
+    // decrypts a chunk into out or the index into indexOut and returns the name of its
+    // literal data, nothing is written before the chunk's integrity was checked
+    private static String decryptChunk(Context context, Header header, Object packet,
+                                       String expectedName, OutputStream out,
+                                       OutputStream indexOut)
+            throws IOException, GeneralException, PGPException {
+        if (!(packet instanceof PGPEncryptedDataList) ||
+            ((PGPEncryptedDataList) packet).size() == 0) {
+            throw corrupt(context);
+        }
+        Object first = ((PGPEncryptedDataList) packet).getEncryptedDataObjects().next();
+        if (!(first instanceof PGPPBEEncryptedData)) {
+            throw corrupt(context);
+        }
+        PGPPBEEncryptedData pbe = (PGPPBEEncryptedData) first;
+        InputStream clear =
+                pbe.getDataStream(header.key, SymmetricProvider.get(pbe.isIntegrityProtected()));
+        Object literal = new PGPObjectFactory(clear).nextObject();
+        if (!(literal instanceof PGPLiteralData)) {
+            throw corrupt(context);
+        }
+        PGPLiteralData literalData = (PGPLiteralData) literal;
+        String name = literalData.getFileName();
+        if (!name.equals(expectedName) && !(name.equals(INDEX_NAME) && indexOut != null)) {
+            throw corrupt(context);
+        }
+        ByteArrayOutputStream plain = new ByteArrayOutputStream(header.chunkSize);
+        copy(literalData.getInputStream(), plain);
+        checkIntegrity(context, pbe);
+        if (!name.equals(INDEX_NAME) && plain.size() > header.chunkSize) {
+            throw corrupt(context);
+        }
+        plain.writeTo(name.equals(INDEX_NAME) ? indexOut : out);
+        return name;
+    }
+
+    private static GeneralException corrupt(Context context) {
+        if (context == null) {
+            return new GeneralException("corrupt data");
+        }
+        return new GeneralException(context.getString(R.string.error_corruptData));
+    }
+
+    // called by Apg.decrypt() after the header, streams through the chunks up to the index
+    static void decryptChunks(Context context, Header header, PGPObjectFactory factory,
+                              OutputStream outStream, InputData data,
+                              ProgressDialogUpdater progress, int startProgress)
+            throws IOException, GeneralException, PGPException {
+        progress.setProgress(R.string.progress_decrypting, startProgress, 100);
+        CountingOutputStream out = new CountingOutputStream(outStream, 0);
+        ByteArrayOutputStream indexOut = new ByteArrayOutputStream();
+        long startPos = data.getStreamPosition();
+        int chunk = 0;
+        while (true) {
+            Object packet = factory.nextObject();
+            if (packet == null) {
+                // cut off before the index
+                throw corrupt(context);
+            }
+            String name = decryptChunk(context, header, packet, CHUNK_PREFIX + chunk, out,
+                                       indexOut);
+            if (name.equals(INDEX_NAME)) {
+                break;
+            }
+            ++chunk;
+            if (data.getSize() - startPos > 0) {
+                progress.setProgress((int) (startProgress + (100 - startProgress) *
+                                            (data.getStreamPosition() - startPos) /
+                                            (data.getSize() - startPos)), 100);
+            }
+        }
+
+        // chunks might have been dropped from the end
+        Index index = Index.decode(indexOut.toByteArray());
+        if (index.getChunkCount() != chunk || index.size != out.count) {
+            throw corrupt(context);
+        }
+    }
+
+    // saves a checkpoint whenever CHECKPOINT_INTERVAL more bytes went to the file, the
+    // plain text is written in order, so its length is all there is to remember
+    private static class CheckpointOutputStream extends FilterOutputStream {
+        private Checkpoint mCheckpoint;
+        private FileOutputStream mFileOut;
+        private long mCount;
+        private long mLastCheckpoint;
+
+        public CheckpointOutputStream(Checkpoint checkpoint, FileOutputStream fileOut,
+                                      long count) {
+            super(fileOut);
+            mCheckpoint = checkpoint;
+            mFileOut = fileOut;
+            mCount = count;
+            mLastCheckpoint = count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            ++mCount;
+            checkpoint();
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
+            mCount += length;
+            checkpoint();
+        }
+
+        private void checkpoint() throws IOException {
+            if (mCount - mLastCheckpoint >= CHECKPOINT_INTERVAL) {
+                mCheckpoint.saveDecryption(mFileOut, mCount);
+                mLastCheckpoint = mCount;
+            }
+        }
+    }
+
+    // the counterpart of encryptFile(), the other arguments are the same as for Apg.decrypt()
+    public static void decryptFile(Context context, Checkpoint checkpoint, String passPhrase,
+                                   boolean assumeSymmetric,
+                                   Map<Long, PGPPrivateKey> unlockedKeys,
+                                   ProgressDialogUpdater progress)
+            throws IOException, GeneralException, PGPException {
+        File output = checkpoint.getOutput();
+        Reader reader = new Reader(context, checkpoint.getInput());
+        FileOutputStream fileOut = null;
+        try {
+            reader.open(passPhrase, assumeSymmetric, unlockedKeys, progress);
+            long start = checkpoint.loadDecryption();
+            if (start > 0) {
+                truncate(output, start);
+                fileOut = new FileOutputStream(output, true);
+            } else {
+                start = 0;
+                fileOut = new FileOutputStream(output);
+            }
+            reader.decrypt(start, reader.getSize(),
+                           new CheckpointOutputStream(checkpoint, fileOut, start), progress);
+            fileOut.getFD().sync();
+        } finally {
+            reader.close();
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+        checkpoint.delete();
+    }
+
+    public static boolean isContainer(File file) {
+        Reader reader = null;
+        try {
+            reader = new Reader(null, file);
+            reader.readFooter();
+            return true;
+        } catch (IOException e) {
+            return false;
+        } catch (GeneralException e) {
+            return false;
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+    }
+
+    // random access to a container file, open() it first
+    public static class Reader {
+        private Context mContext;
+        private RandomAccessFile mFile;
+        private long mHeaderLength;
+        private long mIndexOffset;
+        private Header mHeader = null;
+        private Index mIndex = null;
+
+        public Reader(Context context, File file) throws IOException {
+            mContext = context;
+            mFile = new RandomAccessFile(file, "r");
+        }
+
+        private GeneralException corrupt() {
+            return ChunkedContainer.corrupt(mContext);
+        }
+
+        private void readFooter() throws IOException, GeneralException {
+            byte emptyFooter[] = getEmptyFooter();
+            long length = mFile.length();
+            if (length < emptyFooter.length) {
+                throw corrupt();
+            }
+            // compared rather than parsed, anything could be at the end of other files
+            byte footer[] = read(length - emptyFooter.length, emptyFooter.length);
+            int bodyStart = emptyFooter.length - FOOTER_BODY_LENGTH;
+            for (int i = 0; i < bodyStart; ++i) {
+                if (footer[i] != emptyFooter[i]) {
+                    throw corrupt();
+                }
+            }
+            DataInputStream in =
+                    new DataInputStream(new ByteArrayInputStream(footer, bodyStart,
+                                                                 FOOTER_BODY_LENGTH));
+            mHeaderLength = in.readLong();
+            mIndexOffset = in.readLong();
+            if (mHeaderLength <= 0 || mHeaderLength > MAX_HEADER_LENGTH ||
+                mIndexOffset < mHeaderLength || mIndexOffset > length - emptyFooter.length) {
+                throw corrupt();
+            }
+            // the index holds the size, a count and an offset per chunk plus the index offset
+            long maxChunks = (mIndexOffset - mHeaderLength) / MIN_CHUNK_PACKET_LENGTH;
+            long maxIndexLength = 8 + 4 + 8 * (maxChunks + 1);
+            // partial body lengths add a few bytes per 64 KiB
+            maxIndexLength += maxIndexLength / 1024 + INDEX_PACKET_OVERHEAD;
+            if (length - emptyFooter.length - mIndexOffset > maxIndexLength) {
+                throw corrupt();
+            }
+        }
+
+        private synchronized byte[] read(long offset, long length) throws IOException {
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("invalid chunk length");
+            }
+            byte buffer[] = new byte[(int) length];
+            mFile.seek(offset);
+            mFile.readFully(buffer);
+            return buffer;
+        }
+
+        // the same arguments as for Apg.decrypt()
+        public void open(String passPhrase, boolean assumeSymmetric,
+                         Map<Long, PGPPrivateKey> unlockedKeys, ProgressDialogUpdater progress)
+                throws IOException, GeneralException, PGPException {
+            readFooter();
+            progress.setProgress(R.string.progress_readingData, 0, 100);
+            PGPObjectFactory factory = new PGPObjectFactory(read(0, mHeaderLength));
+            Object packet = factory.nextObject();
+            if (!(packet instanceof PGPEncryptedDataList)) {
+                // might be a marker packet first
+                packet = factory.nextObject();
+            }
+            if (!(packet instanceof PGPEncryptedDataList)) {
+                throw new GeneralException(mContext.getString(R.string.error_invalidData));
+            }
+            Apg.DecryptedStream decrypted =
+                    Apg.openEncryptedData(mContext, (PGPEncryptedDataList) packet, passPhrase,
+                                          progress, 5, assumeSymmetric, unlockedKeys);
+            Object literal = new PGPObjectFactory(decrypted.clear).nextObject();
+            if (!(literal instanceof PGPLiteralData) ||
+                !HEADER_NAME.equals(((PGPLiteralData) literal).getFileName())) {
+                throw new GeneralException(mContext.getString(R.string.error_invalidData));
+            }
+            mHeader = readHeader(mContext, (PGPLiteralData) literal, decrypted.encryptedData);
+
+            long footerOffset = mFile.length() - getEmptyFooter().length;
+            ByteArrayOutputStream index = new ByteArrayOutputStream();
+            Object indexPacket =
+                    new PGPObjectFactory(read(mIndexOffset, footerOffset - mIndexOffset))
+                            .nextObject();
+            String name = ChunkedContainer.decryptChunk(mContext, mHeader, indexPacket,
+                                                        INDEX_NAME, index, index);
+            if (!name.equals(INDEX_NAME)) {
+                throw corrupt();
+            }
+            mIndex = Index.decode(index.toByteArray());
+            long offsets[] = mIndex.offsets;
+            if (offsets[0] != mHeaderLength || offsets[offsets.length - 1] != mIndexOffset ||
+                mIndex.size > (long) mHeader.chunkSize * mIndex.getChunkCount() ||
+                mIndex.size <= (long) mHeader.chunkSize * (mIndex.getChunkCount() - 1)) {
+                throw corrupt();
+            }
+            for (int i = 1; i < offsets.length; ++i) {
+                if (offsets[i] <= offsets[i - 1]) {
+                    throw corrupt();
+                }
+            }
+            progress.setProgress(R.string.progress_done, 100, 100);
+        }
+
+        public long getSize() {
+            return mIndex.size;
+        }
+
+        public int getChunkSize() {
+            return mHeader.chunkSize;
+        }
+
+        public int getChunkCount() {
+            return mIndex.getChunkCount();
+        }
+
+        public byte[] decryptChunk(int chunk)
+                throws IOException, GeneralException, PGPException {
+            byte data[] = read(mIndex.offsets[chunk],
+                               mIndex.offsets[chunk + 1] - mIndex.offsets[chunk]);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(mHeader.chunkSize);
+            String name = ChunkedContainer.decryptChunk(mContext, mHeader,
+                                                        new PGPObjectFactory(data).nextObject(),
+                                                        CHUNK_PREFIX + chunk, out, null);
+            int expected = (int) Math.min(mHeader.chunkSize,
+                                          mIndex.size - (long) chunk * mHeader.chunkSize);
+            if (!name.equals(CHUNK_PREFIX + chunk) || out.size() != expected) {
+                throw corrupt();
+            }
+            return out.toByteArray();
+        }
+
+        // writes the plain text from start up to end, resuming an interrupted decryption is
+        // decrypt(<bytes written so far>, getSize(), ...)
+        public void decrypt(long start, long end, OutputStream out, ProgressDialogUpdater progress)
+                throws IOException, GeneralException, PGPException {
+            end = Math.min(end, mIndex.size);
+            if (start >= end) {
+                progress.setProgress(R.string.progress_done, 100, 100);
+                return;
+            }
+            int chunkSize = mHeader.chunkSize;
+            int first = (int) (start / chunkSize);
+            int last = (int) ((end - 1) / chunkSize);
+            int window = 2 * Math.max(2, Runtime.getRuntime().availableProcessors());
+
+            progress.setProgress(R.string.progress_decrypting, 0, 100);
+            Vector<Future<byte[]>> pending = new Vector<Future<byte[]>>();
+            int next = first;
+            int done = first;
+            try {
+                while (done <= last) {
+                    if (next <= last && pending.size() < window) {
+                        final int chunk = next++;
+                        pending.add(Apg.getChunkPool().submit(new Callable<byte[]>() {
+                            public byte[] call() throws Exception {
+                                return decryptChunk(chunk);
+                            }
+                        }));
+                        continue;
+                    }
+                    byte plain[] = getResult(pending.remove(0));
+                    long chunkStart = (long) done * chunkSize;
+                    int from = (int) Math.max(0, start - chunkStart);
+                    int to = (int) Math.min(plain.length, end - chunkStart);
+                    out.write(plain, from, to - from);
+                    ++done;
+                    progress.setProgress(done - first, last - first + 1);
+                }
+            } finally {
+                for (Future<byte[]> future : pending) {
+                    future.cancel(true);
+                }
+            }
+            progress.setProgress(R.string.progress_done, 100, 100);
+        }
+
+        public void close() {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Deflater;
+
+// picks the compression for Id.choice.compression.auto: the start of the input is deflated
+// at the fastest level and the ratio decides. Already compressed data (media, archives)
+// barely shrinks and isn't compressed again, very redundant data (text, logs) gets the
+// strongest compression that is still affordable for its size.
+public class CompressionChoice {
+    public static final int SAMPLE_SIZE = 256 << 10;
+    // a sample that deflates to more than this is not worth compressing
+    public static final float INCOMPRESSIBLE_RATIO = 0.9f;
+    // below this it's text or similar, where a higher level or BZIP2 pays off
+    public static final float REDUNDANT_RATIO = 0.3f;
+    // BZIP2 is very slow on phones, so it's only used for inputs up to this size
+    public static final long BZIP2_MAX_SIZE = 4 << 20;
+
+    // Id.choice.compression.*
+    public final int algorithm;
+    // deflate level for ZIP and ZLIB, Deflater.DEFAULT_COMPRESSION otherwise
+    public final int level;
+    public final int sampleSize;
+    // deflated size of the sample relative to its size
+    public final float ratio;
+    // the trial deflate, in bytes per second
+    public final long speed;
+
+    public CompressionChoice(int algorithm, int level, int sampleSize, float ratio, long speed) {
+        this.algorithm = algorithm;
+        this.level = level;
+        this.sampleSize = sampleSize;
+        this.ratio = ratio;
+        this.speed = speed;
+    }
+
+    // the input has to support mark(), see getSampleableStream()
+    public static CompressionChoice choose(InputStream in, long size) throws IOException {
+        byte sample[] = new byte[SAMPLE_SIZE];
+        in.mark(SAMPLE_SIZE);
+        int length = 0;
+        try {
+            while (length < sample.length) {
+                int n = in.read(sample, length, sample.length - length);
+                if (n <= 0) {
+                    break;
+                }
+                length += n;
+            }
+        } finally {
+            in.reset();
+        }
+        if (length == 0) {
+            return new CompressionChoice(Id.choice.compression.none,
+                                         Deflater.DEFAULT_COMPRESSION, 0, 1, 0);
+        }
+
+        long startTime = System.nanoTime();
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setInput(sample, 0, length);
+        deflater.finish();
+        byte buffer[] = new byte[1 << 16];
+        long deflated = 0;
+        while (!deflater.finished()) {
+            deflated += deflater.deflate(buffer);
+        }
+        deflater.end();
+        long time = Math.max(1, System.nanoTime() - startTime);
+        float ratio = (float) deflated / length;
+        long speed = length * 1000000000L / time;
+
+        int algorithm;
+        int level;
+        if (ratio > INCOMPRESSIBLE_RATIO) {
+            algorithm = Id.choice.compression.none;
+            level = Deflater.DEFAULT_COMPRESSION;
+        } else if (ratio < REDUNDANT_RATIO && size > 0 && size <= BZIP2_MAX_SIZE) {
+            algorithm = Id.choice.compression.bzip2;
+            level = Deflater.DEFAULT_COMPRESSION;
+        } else if (ratio < REDUNDANT_RATIO) {
+            algorithm = Id.choice.compression.zlib;
+            level = Deflater.BEST_COMPRESSION;
+        } else if (length < SAMPLE_SIZE) {
+            // all of it fits into the sample, small enough for the better level
+            algorithm = Id.choice.compression.zlib;
+            level = Deflater.BEST_COMPRESSION;
+        } else {
+            algorithm = Id.choice.compression.zlib;
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+        return new CompressionChoice(algorithm, level, length, ratio, speed);
+    }
+
+    // a stream that can be sampled without losing the sample
+    public static InputStream getSampleableStream(InputStream in) {
+        if (in.markSupported()) {
+            return in;
+        }
+        return new BufferedInputStream(in, SAMPLE_SIZE);
+    }
+
+    public String getAlgorithmName() {
+        switch (algorithm) {
+            case Id.choice.compression.zip: {
+                return "ZIP";
+            }
+
+            case Id.choice.compression.zlib: {
+                return "ZLIB";
+            }
+
+            case Id.choice.compression.bzip2: {
+                return "BZIP2";
+            }
+
+            default: {
+                return "none";
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionChoice(" + getAlgorithmName() +
+               (level != Deflater.DEFAULT_COMPRESSION ? " level " + level : "") + ", " +
+               sampleSize + " bytes sampled, ratio " + ratio + ", " + speed + " bytes/s)";
+    }
+}
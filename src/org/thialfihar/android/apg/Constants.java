@@ -35,6 +35,9 @@ public final class Constants {
         public static final String language = "language";
         public static final String force_v3_signatures = "forceV3Signatures";
         public static final String key_servers = "keyServers";
+        public static final String pipelined_encryption = "pipelinedEncryption";
+        public static final String refresh_keys = "refreshKeys";
+        public static final String cache_private_keys = "cachePrivateKeys";
     }
 
     public static final class defaults {
@@ -1,7 +1,6 @@
 package org.thialfihar.android.apg;
 
 import java.io.ByteArrayInputStream;
-import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -12,8 +11,12 @@ import org.thialfihar.android.apg.Apg.GeneralException;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Environment;
+import android.os.ParcelFileDescriptor;
 
 public class DataSource {
+    // below this, setting up the mapping costs more than the reads it saves
+    private static final long MIN_MAPPED_SIZE = 1 << 20;
+
     private Uri mContentUri = null;
     private String mText = null;
     private byte[] mData = null;
@@ -70,17 +73,38 @@ public class DataSource {
                         throw new GeneralException(context.getString(R.string.error_externalStorageNotReady));
                     }
                 }
-                in = new FileInputStream(path);
-                File file = new File(path);
+                FileInputStream fileIn = new FileInputStream(path);
+                long fileSize = fileIn.getChannel().size();
+                in = openFile(fileIn, fileSize);
                 if (withSize) {
-                    size = file.length();
+                    size = fileSize;
                 }
             } else {
-                in = context.getContentResolver().openInputStream(mContentUri);
-                if (withSize) {
-                    InputStream tmp = context.getContentResolver().openInputStream(mContentUri);
-                    size = Apg.getLengthOfStream(tmp);
-                    tmp.close();
+                ParcelFileDescriptor fd = null;
+                try {
+                    fd = context.getContentResolver().openFileDescriptor(mContentUri, "r");
+                } catch (FileNotFoundException e) {
+                    // provider only hands out streams
+                }
+
+                // pipes and sockets report -1, only real files can be mapped or sized up front
+                if (fd != null && fd.getStatSize() >= 0) {
+                    long fileSize = fd.getStatSize();
+                    in = openFile(new ParcelFileDescriptor.AutoCloseInputStream(fd), fileSize);
+                    if (withSize) {
+                        size = fileSize;
+                    }
+                } else {
+                    if (fd != null) {
+                        in = new ParcelFileDescriptor.AutoCloseInputStream(fd);
+                    } else {
+                        in = context.getContentResolver().openInputStream(mContentUri);
+                    }
+                    if (withSize) {
+                        InputStream tmp = context.getContentResolver().openInputStream(mContentUri);
+                        size = Apg.getLengthOfStream(tmp);
+                        tmp.close();
+                    }
                 }
             }
         } else if (mText != null || mData != null) {
@@ -99,4 +123,16 @@ public class DataSource {
         return new InputData(in, size);
     }
 
+    private static InputStream openFile(FileInputStream in, long size) throws IOException {
+        if (size < MIN_MAPPED_SIZE) {
+            return in;
+        }
+        try {
+            return new MappedInputStream(in.getChannel(), size, in);
+        } catch (IOException e) {
+            // some file systems can't be mapped, read it the usual way then
+            return in;
+        }
+    }
+
 }
@@ -41,6 +41,7 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.os.Message;
 import android.text.ClipboardManager;
+import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.animation.AnimationUtils;
@@ -210,6 +211,7 @@ public class EncryptActivity extends BaseActivity {
                 new Choice(Id.choice.compression.zip, "ZIP (" + getString(R.string.fast) + ")"),
                 new Choice(Id.choice.compression.zlib, "ZLIB (" + getString(R.string.fast) + ")"),
                 new Choice(Id.choice.compression.bzip2, "BZIP2 (" + getString(R.string.very_slow) + ")"),
+                new Choice(Id.choice.compression.auto, getString(R.string.choice_automatic)),
         };
         ArrayAdapter<Choice> adapter =
                 new ArrayAdapter<Choice>(this, android.R.layout.simple_spinner_item, choices);
@@ -679,14 +681,22 @@ public class EncryptActivity extends BaseActivity {
                              mPreferences.getForceV3Signatures(),
                              this);
             } else {
-                Apg.encrypt(this, in, out, useAsciiArmour,
-                            encryptionKeyIds, signatureKeyId,
-                            Apg.getCachedPassPhrase(signatureKeyId), this,
-                            mPreferences.getDefaultEncryptionAlgorithm(),
-                            mPreferences.getDefaultHashAlgorithm(),
-                            compressionId,
-                            mPreferences.getForceV3Signatures(),
-                            passPhrase);
+                CompressionChoice compression =
+                        Apg.encrypt(this, in, out, useAsciiArmour,
+                                    encryptionKeyIds, signatureKeyId,
+                                    Apg.getCachedPassPhrase(signatureKeyId), this,
+                                    mPreferences.getDefaultEncryptionAlgorithm(),
+                                    mPreferences.getDefaultHashAlgorithm(),
+                                    compressionId,
+                                    mPreferences.getForceV3Signatures(),
+                                    passPhrase,
+                                    mEncryptTarget == Id.target.file &&
+                                        mPreferences.getPipelinedEncryption());
+                if (compression != null) {
+                    Log.i("apg.compression", compression.toString());
+                    data.putString("compression", compression.getAlgorithmName());
+                    data.putFloat("compressionRatio", compression.ratio);
+                }
             }
 
             out.close();
@@ -916,7 +926,16 @@ public class EncryptActivity extends BaseActivity {
             }
 
             case Id.target.file: {
-                Toast.makeText(this, R.string.encryptionSuccessful, Toast.LENGTH_SHORT).show();
+                String compression = data.getString("compression");
+                if (compression != null) {
+                    // the automatic choice, tell what it went for
+                    Toast.makeText(this,
+                                   getString(R.string.encryptionSuccessfulCompression, compression,
+                                             (int) (100 * data.getFloat("compressionRatio"))),
+                                   Toast.LENGTH_SHORT).show();
+                } else {
+                    Toast.makeText(this, R.string.encryptionSuccessful, Toast.LENGTH_SHORT).show();
+                }
                 if (mDeleteAfter.isChecked()) {
                     setDeleteFile(mInputFilename);
                     showDialog(Id.dialog.delete_file);
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// runs alternative attempts at the same request: the first one right away, the next one
+// as soon as one failed or the hedge delay passed without an answer. The first
+// non-null result wins and the remaining attempts are cancelled. Attempts that are already
+// running might still finish after run() returned, they have to clean up after themselves.
+public class HedgedRequest<T> {
+    private ExecutorService mExecutor;
+    private long mHedgeDelay;
+    private long mTimeout;
+
+    public HedgedRequest(ExecutorService executor, long hedgeDelay, long timeout) {
+        mExecutor = executor;
+        mHedgeDelay = hedgeDelay;
+        mTimeout = timeout;
+    }
+
+    // returns null if no attempt had an answer, throws the last failure if there were any
+    public T run(List<Callable<T>> attempts) throws Exception {
+        ExecutorCompletionService<T> completion = new ExecutorCompletionService<T>(mExecutor);
+        Vector<Future<T>> futures = new Vector<Future<T>>();
+        Exception lastError = null;
+        long deadline = System.currentTimeMillis() + mTimeout;
+        int finished = 0;
+
+        try {
+            if (attempts.size() > 0) {
+                futures.add(completion.submit(attempts.get(0)));
+            }
+            while (finished < futures.size()) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    break;
+                }
+                boolean moreLeft = futures.size() < attempts.size();
+                Future<T> future = completion.poll(moreLeft ? Math.min(mHedgeDelay, left) : left,
+                                                   TimeUnit.MILLISECONDS);
+                if (future == null) {
+                    // slow, give the next one a go as well
+                    if (moreLeft) {
+                        futures.add(completion.submit(attempts.get(futures.size())));
+                    }
+                    continue;
+                }
+
+                ++finished;
+                try {
+                    T result = future.get();
+                    if (result != null) {
+                        return result;
+                    }
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        lastError = (Exception) e.getCause();
+                    } else {
+                        lastError = e;
+                    }
+                }
+
+                // a failed attempt is replaced right away
+                if (moreLeft) {
+                    futures.add(completion.submit(attempts.get(futures.size())));
+                }
+            }
+        } finally {
+            for (Future<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+
+        if (lastError != null) {
+            throw lastError;
+        }
+        return null;
+    }
+}
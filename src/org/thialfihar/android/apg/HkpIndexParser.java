@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.thialfihar.android.apg.KeyServer.KeyInfo;
+
+import android.text.Html;
+
+// incremental parser for op=index responses, fed one line at a time. It understands the
+// machine readable format (options=mr) as well as the HTML pages of older servers and
+// hands every key to the listener as soon as its last user ID was seen.
+public class HkpIndexParser {
+    // example:
+    // pub  2048R/<a href="/pks/lookup?op=get&search=0x887DF4BE9F5C9090">9F5C9090</a> 2009-08-17 <a href="/pks/lookup?op=vindex&search=0x887DF4BE9F5C9090">Jörg Runge &lt;joerg@joergrunge.de&gt;</a>
+    // the matcher only ever sees a single line, so it can't run away
+    public static Pattern PUB_KEY_LINE =
+            Pattern.compile("pub +([0-9]+)([a-z]+)/.*?0x([0-9a-z]+).*? +([0-9-]+) +(.+)",
+                            Pattern.CASE_INSENSITIVE);
+    public static Pattern USER_ID_LINE =
+            Pattern.compile("^    +(.+)$", Pattern.CASE_INSENSITIVE);
+
+    private KeyServer.SearchListener mListener;
+    private KeyInfo mCurrent = null;
+    private boolean mMachineReadable = false;
+    private int mCount = 0;
+
+    public HkpIndexParser(KeyServer.SearchListener listener) {
+        mListener = listener;
+    }
+
+    public void parseLine(String line) {
+        if (line.startsWith("pub:")) {
+            flush();
+            parseMachineReadableKey(line);
+            return;
+        }
+        if (line.startsWith("uid:")) {
+            if (mCurrent != null) {
+                String fields[] = line.split(":", -1);
+                if (fields.length > 1 && fields[1].length() > 0) {
+                    mCurrent.userIds.add(percentDecode(fields[1]));
+                }
+            }
+            return;
+        }
+        if (line.startsWith("info:")) {
+            return;
+        }
+
+        if (line.indexOf("pub ") != -1) {
+            Matcher matcher = PUB_KEY_LINE.matcher(line);
+            if (matcher.find()) {
+                flush();
+                parseHtmlKey(matcher);
+                return;
+            }
+        }
+
+        if (mCurrent != null && !mMachineReadable) {
+            Matcher matcher = USER_ID_LINE.matcher(line);
+            if (matcher.find()) {
+                mCurrent.userIds.add(htmlToText(matcher.group(1)));
+                return;
+            }
+            // anything else ends an HTML key, machine readable ones end with the next "pub:"
+            flush();
+        }
+    }
+
+    // the end of the response, hands out the last key
+    public void finish() {
+        flush();
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    private void flush() {
+        if (mCurrent != null) {
+            ++mCount;
+            mListener.onKeyFound(mCurrent);
+            mCurrent = null;
+        }
+    }
+
+    private void parseHtmlKey(Matcher matcher) {
+        mMachineReadable = false;
+        KeyInfo info = new KeyInfo();
+        info.size = Integer.parseInt(matcher.group(1));
+        info.algorithm = matcher.group(2);
+        info.keyId = Apg.keyFromHex(matcher.group(3));
+        info.fingerPrint = Apg.getSmallFingerPrint(info.keyId);
+        String chunks[] = matcher.group(4).split("-");
+        info.date = new GregorianCalendar(Integer.parseInt(chunks[0]),
+                                          Integer.parseInt(chunks[1]) - 1,
+                                          Integer.parseInt(chunks[2])).getTime();
+        info.userIds = new Vector<String>();
+        if (matcher.group(5).startsWith("*** KEY")) {
+            info.revoked = matcher.group(5);
+        } else {
+            info.userIds.add(htmlToText(matcher.group(5)));
+        }
+        mCurrent = info;
+    }
+
+    // pub:<keyid>:<algo>:<keylen>:<creationdate>:<expirationdate>:<flags>
+    private void parseMachineReadableKey(String line) {
+        mMachineReadable = true;
+        String fields[] = line.split(":", -1);
+        // short key IDs are of no use for fetching the key later on
+        if (fields.length < 2 || fields[1].length() < 16) {
+            return;
+        }
+
+        KeyInfo info = new KeyInfo();
+        // might be a fingerprint, the key ID is at its end
+        String keyId = fields[1];
+        if (keyId.length() > 16) {
+            keyId = keyId.substring(keyId.length() - 16);
+        }
+        try {
+            info.keyId = Apg.keyFromHex(keyId);
+            info.algorithm = fields.length > 2 ? algorithmLetter(fields[2]) : "";
+            info.size = (fields.length > 3 && fields[3].length() > 0 ?
+                         Integer.parseInt(fields[3]) : 0);
+            if (fields.length > 4 && fields[4].length() > 0) {
+                info.date = new Date(Long.parseLong(fields[4]) * 1000);
+            }
+        } catch (NumberFormatException e) {
+            return;
+        }
+        info.fingerPrint = Apg.getSmallFingerPrint(info.keyId);
+        if (fields.length > 6 && fields[6].indexOf('r') != -1) {
+            info.revoked = "*** KEY REVOKED ***";
+        }
+        info.userIds = new Vector<String>();
+        mCurrent = info;
+    }
+
+    // the letters SKS uses on its HTML pages
+    private static String algorithmLetter(String algorithm) {
+        if (algorithm.length() == 0) {
+            return "";
+        }
+        switch (Integer.parseInt(algorithm)) {
+            case 1:
+            case 2:
+            case 3: {
+                return "R";
+            }
+
+            case 16:
+            case 20: {
+                return "g";
+            }
+
+            case 17: {
+                return "D";
+            }
+
+            default: {
+                return algorithm;
+            }
+        }
+    }
+
+    private static String percentDecode(String text) {
+        if (text.indexOf('%') == -1) {
+            return text;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(text.length());
+            int start = 0;
+            for (int i = 0; i + 2 < text.length(); ++i) {
+                if (text.charAt(i) != '%') {
+                    continue;
+                }
+                int value;
+                try {
+                    value = Integer.parseInt(text.substring(i + 1, i + 3), 16);
+                } catch (NumberFormatException e) {
+                    // not an escape, keep it
+                    continue;
+                }
+                byte plain[] = text.substring(start, i).getBytes("utf8");
+                bytes.write(plain, 0, plain.length);
+                bytes.write(value);
+                i += 2;
+                start = i + 1;
+            }
+            byte plain[] = text.substring(start).getBytes("utf8");
+            bytes.write(plain, 0, plain.length);
+            return bytes.toString("utf8");
+        } catch (UnsupportedEncodingException e) {
+            return text;
+        }
+    }
+
+    // drops the tags and decodes the entities, without regular expressions
+    static String htmlToText(String html) {
+        StringBuilder stripped = new StringBuilder(html.length());
+        boolean inTag = false;
+        for (int i = 0; i < html.length(); ++i) {
+            char c = html.charAt(i);
+            if (c == '<') {
+                inTag = true;
+            } else if (c == '>' && inTag) {
+                inTag = false;
+            } else if (!inTag) {
+                stripped.append(c);
+            }
+        }
+        if (stripped.indexOf("&") == -1) {
+            return stripped.toString();
+        }
+
+        StringBuilder text = new StringBuilder(stripped.length());
+        for (int i = 0; i < stripped.length(); ++i) {
+            char c = stripped.charAt(i);
+            if (c != '&') {
+                text.append(c);
+                continue;
+            }
+            int end = stripped.indexOf(";", i);
+            String decoded = null;
+            if (end != -1 && end - i <= 10) {
+                decoded = decodeEntity(stripped.substring(i + 1, end));
+            }
+            if (decoded == null) {
+                // named entities beyond the basic ones are rare, let Android deal with them
+                return Html.fromHtml(stripped.toString()).toString();
+            }
+            text.append(decoded);
+            i = end;
+        }
+        return text.toString();
+    }
+
+    private static String decodeEntity(String entity) {
+        if (entity == null || entity.length() == 0) {
+            return null;
+        }
+        if (entity.equals("lt")) {
+            return "<";
+        } else if (entity.equals("gt")) {
+            return ">";
+        } else if (entity.equals("amp")) {
+            return "&";
+        } else if (entity.equals("quot")) {
+            return "\"";
+        } else if (entity.equals("apos")) {
+            return "'";
+        } else if (entity.charAt(0) == '#') {
+            try {
+                int code;
+                if (entity.length() > 1 && (entity.charAt(1) == 'x' || entity.charAt(1) == 'X')) {
+                    code = Integer.parseInt(entity.substring(2), 16);
+                } else {
+                    code = Integer.parseInt(entity.substring(1));
+                }
+                return new String(Character.toChars(code));
+            } catch (NumberFormatException e) {
+                return null;
+            } catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
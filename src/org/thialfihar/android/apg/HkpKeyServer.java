@@ -1,22 +1,28 @@
 package org.thialfihar.android.apg;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.InetAddress;
-import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.net.UnknownHostException;
-import java.util.GregorianCalendar;
+import java.util.Date;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import android.text.Html;
 
 public class HkpKeyServer extends KeyServer {
     private static class HttpError extends Exception {
@@ -38,26 +44,145 @@ public class HkpKeyServer extends KeyServer {
             return mData;
         }
     }
-    private String mHost;
-    private short mPort = 11371;
 
-    // example:
-    // pub  2048R/<a href="/pks/lookup?op=get&search=0x887DF4BE9F5C9090">9F5C9090</a> 2009-08-17 <a href="/pks/lookup?op=vindex&search=0x887DF4BE9F5C9090">Jörg Runge &lt;joerg@joergrunge.de&gt;</a>
-    public static Pattern PUB_KEY_LINE =
-            Pattern.compile("pub +([0-9]+)([a-z]+)/.*?0x([0-9a-z]+).*? +([0-9-]+) +(.+)[\n\r]+((?:    +.+[\n\r]+)*)",
-                            Pattern.CASE_INSENSITIVE);
-    public static Pattern USER_ID_LINE =
-            Pattern.compile("^   +(.+)$", Pattern.MULTILINE | Pattern.CASE_INSENSITIVE);
+    private static class Response {
+        public int code;
+        // the body of an error, successful bodies are read from the connection
+        public String data;
+        public String eTag;
+        public String lastModified;
+        public String charset;
+        public HttpURLConnection connection;
+
+        public void close() {
+            if (connection != null) {
+                connection.disconnect();
+                connection = null;
+            }
+        }
+    }
+
+    // reads a successful body off the connection and puts it into the cache once it was
+    // read completely, unless it turned out to be too big for that
+    private class ResponseStream extends InputStream {
+        private Response mResponse;
+        private InputStream mIn;
+        private String mRequest;
+        private ByteArrayOutputStream mCopy = null;
+        private boolean mComplete = false;
+
+        public ResponseStream(Response response, String request) throws IOException {
+            mResponse = response;
+            mRequest = request;
+            mIn = response.connection.getInputStream();
+            if (mCache != null) {
+                mCopy = new ByteArrayOutputStream();
+            }
+        }
+
+        public String getCharset() {
+            return mResponse.charset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte buffer[] = new byte[1];
+            int n = read(buffer, 0, 1);
+            if (n == -1) {
+                return -1;
+            }
+            return buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte buffer[], int offset, int length) throws IOException {
+            int n = mIn.read(buffer, offset, length);
+            if (n == -1) {
+                mComplete = true;
+            } else if (mCopy != null) {
+                mCopy.write(buffer, offset, n);
+                if (mCopy.size() > MAX_CACHED_RESPONSE) {
+                    mCopy = null;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                mIn.close();
+            } finally {
+                mResponse.close();
+            }
+            if (mComplete && mCopy != null) {
+                KeyServerCache.Entry entry = new KeyServerCache.Entry();
+                entry.code = mResponse.code;
+                entry.data = mCopy.toString(mResponse.charset);
+                entry.eTag = mResponse.eTag;
+                entry.lastModified = mResponse.lastModified;
+                entry.fetched = new Date().getTime();
+                mCache.put(getCacheName(), mRequest, entry);
+                mCopy = null;
+            }
+        }
+    }
+
+    // a dead or slow address of a pool gets company from the next one after this long
+    private static final long HEDGE_DELAY = 2000;
+    private static final long QUERY_TIMEOUT = 30000;
+    // in bytes, bigger responses are only ever read from the network
+    private static final int MAX_CACHED_RESPONSE = 1 << 20;
+    // keys fetched at the same time by getKeys()
+    private static final int KEY_FETCHES = 4;
+
+    private static final Response NO_RESPONSE = new Response();
+
+    // shared by all key server requests, they spend their time waiting on the network
+    static final ExecutorService sExecutor = Executors.newCachedThreadPool();
+
+    private String mHost;
+    private int mPort = 11371;
+    private KeyServerCache mCache = Apg.getKeyServerCache();
 
     public HkpKeyServer(String host) {
         mHost = host;
     }
 
-    public HkpKeyServer(String host, short port) {
+    public HkpKeyServer(String host, int port) {
         mHost = host;
         mPort = port;
     }
 
+    // key servers in the preferences are "host" or "host:port"
+    public static HkpKeyServer fromPreference(String server) {
+        int index = server.lastIndexOf(':');
+        if (index != -1 && server.indexOf(':') == index) {
+            try {
+                int port = Integer.parseInt(server.substring(index + 1));
+                if (port >= 1 && port <= 65535) {
+                    return new HkpKeyServer(server.substring(0, index), port);
+                }
+            } catch (NumberFormatException e) {
+                // not a port, use the whole thing
+            }
+        }
+        return new HkpKeyServer(server);
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    // null disables caching
+    public void setCache(KeyServerCache cache) {
+        mCache = cache;
+    }
+
+    private String getCacheName() {
+        return mHost + ":" + mPort;
+    }
+
     static private String readAll(InputStream in, String encoding)
             throws IOException {
         ByteArrayOutputStream raw = new ByteArrayOutputStream();
@@ -76,42 +201,218 @@ public class HkpKeyServer extends KeyServer {
 
     private String query(String request)
             throws QueryException, HttpError {
+        Reader reader = queryReader(request);
+        try {
+            StringBuilder data = new StringBuilder();
+            char buffer[] = new char[1 << 14];
+            int n = 0;
+            while ((n = reader.read(buffer)) != -1) {
+                data.append(buffer, 0, n);
+            }
+            return data.toString();
+        } catch (IOException e) {
+            throw new QueryException("reading from '" + mHost + "' failed: " + e);
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    private Reader queryReader(String request)
+            throws QueryException, HttpError {
+        InputStream in = queryStream(request);
+        String charset = "utf8";
+        if (in instanceof ResponseStream) {
+            charset = ((ResponseStream) in).getCharset();
+        }
+        try {
+            return new InputStreamReader(in, charset);
+        } catch (UnsupportedEncodingException e) {
+            try {
+                in.close();
+            } catch (IOException e2) {
+                // nothing to do
+            }
+            throw new QueryException("unsupported charset " + charset);
+        }
+    }
+
+    // the body of a successful response, from the cache if it is fresh there, the caller
+    // has to close it
+    private InputStream queryStream(final String request)
+            throws QueryException, HttpError {
+        KeyServerCache.Entry cached = null;
+        if (mCache != null) {
+            cached = mCache.get(getCacheName(), request);
+            if (cached != null && mCache.isFresh(cached)) {
+                mCache.countHit();
+                return answer(cached.code, cached.data);
+            }
+            mCache.countMiss();
+        }
+
         InetAddress ips[];
         try {
             ips = InetAddress.getAllByName(mHost);
         } catch (UnknownHostException e) {
+            if (cached != null) {
+                return answer(cached.code, cached.data);
+            }
             throw new QueryException(e.toString());
         }
-        for (int i = 0; i < ips.length; ++i) {
-            try {
-                String url = "http://" + ips[i].getHostAddress() + ":" + mPort + request;
-                URL realUrl = new URL(url);
-                HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
-                conn.setConnectTimeout(5000);
-                conn.setReadTimeout(25000);
-                conn.connect();
-                int response = conn.getResponseCode();
-                if (response >= 200 && response < 300) {
-                    return readAll(conn.getInputStream(), conn.getContentEncoding());
-                }
-                else {
-                    String data = readAll(conn.getErrorStream(), conn.getContentEncoding());
-                    throw new HttpError(response, data);
+
+        final KeyServerCache.Entry conditional = cached;
+        // only one response can be used, the first attempt to get one claims it, the others
+        // close theirs, as nobody else would. Once the hedged request is over it is claimed
+        // by NO_RESPONSE, so attempts still connecting after a timeout close theirs as well
+        final AtomicReference<Response> claimed = new AtomicReference<Response>();
+        Vector<Callable<Response>> attempts = new Vector<Callable<Response>>();
+        for (final InetAddress ip : ips) {
+            attempts.add(new Callable<Response>() {
+                public Response call() throws IOException {
+                    Response response = open(ip, request, conditional);
+                    if (!claimed.compareAndSet(null, response)) {
+                        response.close();
+                        return null;
+                    }
+                    return response;
                 }
-            } catch (MalformedURLException e) {
-                // nothing to do, try next IP
+            });
+        }
+
+        try {
+            new HedgedRequest<Response>(sExecutor, HEDGE_DELAY, QUERY_TIMEOUT).run(attempts);
+        } catch (Exception e) {
+            // nothing to do, all IPs failed
+        }
+        // an attempt might have claimed its response right as the timeout hit, it is used
+        // rather than leaked then
+        claimed.compareAndSet(null, NO_RESPONSE);
+        Response response = claimed.get();
+        if (response == NO_RESPONSE) {
+            response = null;
+        }
+
+        if (response == null) {
+            // a stale answer beats none
+            if (cached != null) {
+                return answer(cached.code, cached.data);
+            }
+            throw new QueryException("querying server(s) for '" + mHost + "' failed");
+        }
+
+        if (response.code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            response.close();
+            mCache.countRevalidation();
+            cached.fetched = new Date().getTime();
+            mCache.put(getCacheName(), request, cached);
+            return answer(cached.code, cached.data);
+        }
+
+        if (response.code >= 200 && response.code < 300) {
+            try {
+                return new ResponseStream(response, request);
             } catch (IOException e) {
-                // nothing to do, try next IP
+                response.close();
+                throw new QueryException("reading from '" + mHost + "' failed: " + e);
             }
         }
 
-        throw new QueryException("querying server(s) for '" + mHost + "' failed");
+        if (mCache != null && response.code == HttpURLConnection.HTTP_NOT_FOUND) {
+            KeyServerCache.Entry entry = new KeyServerCache.Entry();
+            entry.code = response.code;
+            entry.data = response.data;
+            entry.fetched = new Date().getTime();
+            mCache.put(getCacheName(), request, entry);
+        }
+        throw new HttpError(response.code, response.data);
+    }
+
+    // cached bodies are kept as strings, they go back out as utf8
+    private static InputStream answer(int code, String data) throws HttpError {
+        if (code >= 200 && code < 300) {
+            try {
+                return new ByteArrayInputStream(data.getBytes("utf8"));
+            } catch (UnsupportedEncodingException e) {
+                // every VM has utf8
+                return new ByteArrayInputStream(data.getBytes());
+            }
+        }
+        throw new HttpError(code, data);
+    }
+
+    // connects and reads the status, error bodies are read right away
+    private Response open(InetAddress ip, String request, KeyServerCache.Entry cached)
+            throws IOException {
+        String host = ip.getHostAddress();
+        if (host.indexOf(':') != -1) {
+            host = "[" + host + "]";
+        }
+        URL realUrl = new URL("http://" + host + ":" + mPort + request);
+        HttpURLConnection conn = (HttpURLConnection) realUrl.openConnection();
+        boolean keepOpen = false;
+        try {
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(25000);
+            if (cached != null && cached.eTag != null) {
+                conn.setRequestProperty("If-None-Match", cached.eTag);
+            }
+            if (cached != null && cached.lastModified != null) {
+                conn.setRequestProperty("If-Modified-Since", cached.lastModified);
+            }
+            conn.connect();
+            Response response = new Response();
+            response.code = conn.getResponseCode();
+            response.eTag = conn.getHeaderField("ETag");
+            response.lastModified = conn.getHeaderField("Last-Modified");
+            response.charset = getCharset(conn.getContentType());
+            if (response.code >= 200 && response.code < 300) {
+                response.connection = conn;
+                keepOpen = true;
+            } else if (conn.getErrorStream() != null) {
+                response.data = readAll(conn.getErrorStream(), response.charset);
+            } else {
+                response.data = "";
+            }
+            return response;
+        } finally {
+            if (!keepOpen) {
+                conn.disconnect();
+            }
+        }
+    }
+
+    private static String getCharset(String contentType) {
+        if (contentType != null) {
+            int index = contentType.toLowerCase().indexOf("charset=");
+            if (index != -1) {
+                String charset = contentType.substring(index + 8).trim();
+                int end = charset.indexOf(';');
+                if (end != -1) {
+                    charset = charset.substring(0, end).trim();
+                }
+                charset = charset.replace("\"", "");
+                if (charset.length() > 0) {
+                    return charset;
+                }
+            }
+        }
+        return "utf8";
     }
 
     @Override
     List<KeyInfo> search(String query)
             throws QueryException, TooManyResponses, InsufficientQuery {
-        Vector<KeyInfo> results = new Vector<KeyInfo>();
+        return search(query, null);
+    }
+
+    @Override
+    List<KeyInfo> search(String query, final SearchListener listener)
+            throws QueryException, TooManyResponses, InsufficientQuery {
+        final Vector<KeyInfo> results = new Vector<KeyInfo>();
 
         if (query.length() < 3) {
             throw new InsufficientQuery();
@@ -123,11 +424,25 @@ public class HkpKeyServer extends KeyServer {
         } catch (UnsupportedEncodingException e) {
             return null;
         }
-        String request = "/pks/lookup?op=index&search=" + encodedQuery;
+        // servers that don't know options=mr send their HTML page, the parser takes both
+        String request = "/pks/lookup?op=index&options=mr&search=" + encodedQuery;
 
-        String data = null;
+        BufferedReader reader = null;
         try {
-            data = query(request);
+            reader = new BufferedReader(queryReader(request), 1 << 14);
+            HkpIndexParser parser = new HkpIndexParser(new SearchListener() {
+                public void onKeyFound(KeyInfo info) {
+                    results.add(info);
+                    if (listener != null) {
+                        listener.onKeyFound(info);
+                    }
+                }
+            });
+            String line;
+            while ((line = reader.readLine()) != null) {
+                parser.parseLine(line);
+            }
+            parser.finish();
         } catch (HttpError e) {
             if (e.getCode() == 404) {
                 return results;
@@ -141,36 +456,16 @@ public class HkpKeyServer extends KeyServer {
                 }
             }
             throw new QueryException("querying server(s) for '" + mHost + "' failed");
-        }
-
-        Matcher matcher = PUB_KEY_LINE.matcher(data);
-        while (matcher.find()) {
-            KeyInfo info = new KeyInfo();
-            info.size = Integer.parseInt(matcher.group(1));
-            info.algorithm = matcher.group(2);
-            info.keyId = Apg.keyFromHex(matcher.group(3));
-            info.fingerPrint = Apg.getSmallFingerPrint(info.keyId);
-            String chunks[] = matcher.group(4).split("-");
-            info.date = new GregorianCalendar(Integer.parseInt(chunks[0]),
-                                              Integer.parseInt(chunks[1]),
-                                              Integer.parseInt(chunks[2])).getTime();
-            info.userIds = new Vector<String>();
-            if (matcher.group(5).startsWith("*** KEY")) {
-                info.revoked = matcher.group(5);
-            } else {
-                String tmp = matcher.group(5).replaceAll("<.*?>", "");
-                tmp = Html.fromHtml(tmp).toString();
-                info.userIds.add(tmp);
-            }
-            if (matcher.group(6).length() > 0) {
-                Matcher matcher2 = USER_ID_LINE.matcher(matcher.group(6));
-                while (matcher2.find()) {
-                    String tmp = matcher2.group(1).replaceAll("<.*?>", "");
-                    tmp = Html.fromHtml(tmp).toString();
-                    info.userIds.add(tmp);
+        } catch (IOException e) {
+            throw new QueryException("reading from '" + mHost + "' failed: " + e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
                 }
             }
-            results.add(info);
         }
 
         return results;
@@ -194,4 +489,116 @@ public class HkpKeyServer extends KeyServer {
 
         return null;
     }
+
+    // HKP has no lookup for several keys at once, so KEY_FETCHES requests run ahead of the
+    // one being read and the responses are handed out raw, the armor is left to the reader
+    private class KeyFetches extends KeyStreams {
+        private List<Long> mKeyIds;
+        private Vector<Future<InputStream>> mFetches = new Vector<Future<InputStream>>();
+        // responses that arrived and weren't handed out yet, close() closes them
+        private Vector<InputStream> mArrived = new Vector<InputStream>();
+        private int mNext = 0;
+        private boolean mClosed = false;
+
+        public KeyFetches(List<Long> keyIds) {
+            mKeyIds = keyIds;
+            for (int i = 0; i < Math.min(KEY_FETCHES, keyIds.size()); ++i) {
+                mFetches.add(fetch(keyIds.get(i)));
+            }
+        }
+
+        public synchronized boolean hasMoreElements() {
+            return mNext < mKeyIds.size();
+        }
+
+        public InputStream nextElement() {
+            Future<InputStream> fetch;
+            long keyId;
+            synchronized (this) {
+                if (mClosed) {
+                    mNext = mKeyIds.size();
+                    return new ByteArrayInputStream(new byte[0]);
+                }
+
+                fetch = mFetches.get(mNext);
+                mFetches.set(mNext, null);
+                keyId = mKeyIds.get(mNext++);
+                if (mFetches.size() < mKeyIds.size()) {
+                    mFetches.add(fetch(mKeyIds.get(mFetches.size())));
+                }
+            }
+
+            // not holding the lock, the fetch needs it to hand over its response
+            try {
+                InputStream in = fetch.get();
+                synchronized (this) {
+                    mArrived.remove(in);
+                }
+                return in;
+            } catch (InterruptedException e) {
+                return new FailedStream("fetching key " + Apg.keyToHex(keyId) +
+                                        " was interrupted");
+            } catch (ExecutionException e) {
+                return new FailedStream("fetching key " + Apg.keyToHex(keyId) + " failed: " +
+                                        e.getCause().getMessage());
+            }
+        }
+
+        // drops the fetches that ran ahead, those still running close their responses
+        // themselves once they have them
+        @Override
+        public synchronized void close() {
+            mClosed = true;
+            for (Future<InputStream> fetch : mFetches) {
+                if (fetch != null) {
+                    fetch.cancel(false);
+                }
+            }
+            mFetches.clear();
+            for (InputStream in : mArrived) {
+                closeQuietly(in);
+            }
+            mArrived.clear();
+        }
+
+        private Future<InputStream> fetch(long keyId) {
+            final String request =
+                    "/pks/lookup?op=get&options=mr&search=0x" + Apg.keyToHex(keyId);
+            return sExecutor.submit(new Callable<InputStream>() {
+                public InputStream call() throws QueryException {
+                    InputStream in;
+                    try {
+                        in = queryStream(request);
+                    } catch (HttpError e) {
+                        if (e.getCode() == 404) {
+                            // not on the server, nothing to import then
+                            return new ByteArrayInputStream(new byte[0]);
+                        }
+                        throw new QueryException("" + e);
+                    }
+                    synchronized (KeyFetches.this) {
+                        if (mClosed) {
+                            closeQuietly(in);
+                            return new ByteArrayInputStream(new byte[0]);
+                        }
+                        mArrived.add(in);
+                    }
+                    return in;
+                }
+            });
+        }
+    }
+
+    @Override
+    KeyStreams getKeys(List<Long> keyIds) throws QueryException {
+        return new KeyFetches(keyIds);
+    }
+
+    private static void closeQuietly(InputStream in) {
+        try {
+            in.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
 }
@@ -117,6 +117,8 @@ public final class Id {
             public static final int zlib = CompressionAlgorithmTags.ZLIB;
             public static final int bzip2 = CompressionAlgorithmTags.BZIP2;
             public static final int zip = CompressionAlgorithmTags.ZIP;
+            // picked per input, see CompressionChoice
+            public static final int auto = 0x21070002;
         }
 
         public static final class usage {
@@ -139,6 +141,7 @@ public final class Id {
         public static final int no_master_key = -2;
         public static final int updated = 1;
         public static final int bad = -3;
+        public static final int unchanged = 2;
     }
 
     public static final class target {
@@ -3,11 +3,20 @@ package org.thialfihar.android.apg;
 import java.io.InputStream;
 
 public class InputData {
-    private PositionAwareInputStream mInputStream;
+    private InputStream mInputStream;
+    private PositionAwareInputStream mCountingStream = null;
+    private MappedInputStream mMappedStream = null;
     private long mSize;
 
     InputData(InputStream inputStream, long size) {
-        mInputStream = new PositionAwareInputStream(inputStream);
+        if (inputStream instanceof MappedInputStream) {
+            // knows its position already, no need to count every read
+            mMappedStream = (MappedInputStream) inputStream;
+            mInputStream = inputStream;
+        } else {
+            mCountingStream = new PositionAwareInputStream(inputStream);
+            mInputStream = mCountingStream;
+        }
         mSize = size;
     }
 
@@ -20,6 +29,9 @@ public class InputData {
     }
 
     public long getStreamPosition() {
-        return mInputStream.position();
+        if (mMappedStream != null) {
+            return mMappedStream.position();
+        }
+        return mCountingStream.position();
     }
 }
@@ -24,11 +24,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.HashMap;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.bouncycastle2.openpgp.PGPException;
 import org.bouncycastle2.openpgp.PGPPublicKeyRing;
 import org.bouncycastle2.openpgp.PGPSecretKeyRing;
+import org.thialfihar.android.apg.provider.Database;
 import org.thialfihar.android.apg.provider.KeyRings;
 import org.thialfihar.android.apg.provider.Keys;
 import org.thialfihar.android.apg.provider.UserIds;
@@ -44,6 +48,7 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.Message;
 import android.view.LayoutInflater;
 import android.view.MenuItem;
@@ -105,6 +110,14 @@ public class KeyListActivity extends BaseActivity {
         handleIntent(intent);
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mListAdapter != null) {
+            mListAdapter.cleanup();
+        }
+        super.onDestroy();
+    }
+
     protected void handleIntent(Intent intent) {
         String searchString = null;
         if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
@@ -372,7 +385,6 @@ public class KeyListActivity extends BaseActivity {
 
     protected void refreshList() {
         mListAdapter.rebuild(true);
-        mListAdapter.notifyDataSetChanged();
     }
 
     @Override
@@ -464,12 +476,25 @@ public class KeyListActivity extends BaseActivity {
     }
 
     protected class KeyListAdapter extends BaseExpandableListAdapter {
+        // number of groups whose children are fetched together
+        private static final int CHILD_WINDOW = 16;
+
         private LayoutInflater mInflater;
         private Vector<Vector<KeyChild>> mChildren;
+        private boolean mChildrenRequested[];
+        // user IDs of the groups split into name and rest, filled in as groups get bound
+        private String mUserIds[][];
         private SQLiteDatabase mDatabase;
         private Cursor mCursor;
+        private AsyncQuery mQuery;
         private String mSearchString;
 
+        // children are loaded on this thread and handed back to the UI thread via mHandler,
+        // results of a load started before the last rebuild() are dropped
+        private ExecutorService mChildLoader = Executors.newSingleThreadExecutor();
+        private Handler mHandler = new Handler();
+        private int mGeneration = 0;
+
         private class KeyChild {
             public static final int KEY = 0;
             public static final int USER_ID = 1;
@@ -512,7 +537,7 @@ public class KeyListActivity extends BaseActivity {
 
             mInflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
             mDatabase = Apg.getDatabase().db();
-            SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+            final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
             qb.setTables(KeyRings.TABLE_NAME + " INNER JOIN " + Keys.TABLE_NAME + " ON " +
                                           "(" + KeyRings.TABLE_NAME + "." + KeyRings._ID + " = " +
                                           Keys.TABLE_NAME + "." + Keys.KEY_RING_ID + " AND " +
@@ -524,28 +549,34 @@ public class KeyListActivity extends BaseActivity {
                                           UserIds.TABLE_NAME + "." + UserIds.RANK + " = '0')");
 
             if (searchString != null && searchString.trim().length() > 0) {
-                String[] chunks = searchString.trim().split(" +");
-                qb.appendWhere("EXISTS (SELECT tmp." + UserIds._ID + " FROM " +
-                                        UserIds.TABLE_NAME + " AS tmp WHERE " +
-                                        "tmp." + UserIds.KEY_ID + " = " +
-                                        Keys.TABLE_NAME + "." + Keys._ID);
-                for (int i = 0; i < chunks.length; ++i) {
-                    qb.appendWhere(" AND tmp." + UserIds.USER_ID + " LIKE ");
-                    qb.appendWhereEscapeString("%" + chunks[i] + "%");
+                String search = Database.buildUserIdSearch(Keys.TABLE_NAME + "." + Keys._ID,
+                                                           searchString);
+                qb.appendWhere(search);
+            }
+
+            final int type = (mKeyType == Id.type.public_key ?
+                                  Id.database.type_public : Id.database.type_secret);
+            mQuery = new AsyncQuery(context, type == Id.database.type_public ?
+                                                 Apg.CONTENT_URI_PUBLIC_KEY_RINGS :
+                                                 Apg.CONTENT_URI_SECRET_KEY_RINGS) {
+                @Override
+                protected Cursor query() {
+                    return qb.query(mDatabase,
+                            new String[] {
+                                KeyRings.TABLE_NAME + "." + KeyRings._ID,           // 0
+                                KeyRings.TABLE_NAME + "." + KeyRings.MASTER_KEY_ID, // 1
+                                UserIds.TABLE_NAME + "." + UserIds.USER_ID,         // 2
+                            },
+                            KeyRings.TABLE_NAME + "." + KeyRings.TYPE + " = ?",
+                            new String[] { "" + type },
+                            null, null, UserIds.TABLE_NAME + "." + UserIds.USER_ID + " ASC");
                 }
-                qb.appendWhere(")");
-            }
 
-            mCursor = qb.query(mDatabase,
-                    new String[] {
-                        KeyRings.TABLE_NAME + "." + KeyRings._ID,           // 0
-                        KeyRings.TABLE_NAME + "." + KeyRings.MASTER_KEY_ID, // 1
-                        UserIds.TABLE_NAME + "." + UserIds.USER_ID,         // 2
-                    },
-                    KeyRings.TABLE_NAME + "." + KeyRings.TYPE + " = ?",
-                    new String[] { "" + (mKeyType == Id.type.public_key ?
-                                             Id.database.type_public : Id.database.type_secret) },
-                    null, null, UserIds.TABLE_NAME + "." + UserIds.USER_ID + " ASC");
+                @Override
+                protected void onLoaded(Cursor cursor) {
+                    changeCursor(cursor);
+                }
+            };
 
             // content provider way for reference, might have to go back to it sometime:
             /*Uri contentUri = null;
@@ -563,81 +594,158 @@ public class KeyListActivity extends BaseActivity {
                     },
                     null, null, null);*/
 
-            startManagingCursor(mCursor);
             rebuild(false);
+            mQuery.load();
         }
 
         public void cleanup() {
+            mQuery.cancel();
+            mChildLoader.shutdownNow();
+            ++mGeneration;
             if (mCursor != null) {
-                stopManagingCursor(mCursor);
                 mCursor.close();
+                mCursor = null;
             }
         }
 
+        protected void changeCursor(Cursor cursor) {
+            if (mCursor != null) {
+                mCursor.close();
+            }
+            mCursor = cursor;
+            rebuild(false);
+            notifyDataSetChanged();
+        }
+
+        // with requery the list is reloaded in the background and rebuilt once that's done
         public void rebuild(boolean requery) {
             if (requery) {
-                mCursor.requery();
+                mQuery.load();
+                return;
             }
+            ++mGeneration;
             mChildren = new Vector<Vector<KeyChild>>();
-            for (int i = 0; i < mCursor.getCount(); ++i) {
+            int count = (mCursor == null ? 0 : mCursor.getCount());
+            for (int i = 0; i < count; ++i) {
                 mChildren.add(null);
             }
+            mChildrenRequested = new boolean[mChildren.size()];
+            mUserIds = new String[mChildren.size()][];
         }
 
-        protected Vector<KeyChild> getChildrenOfGroup(int groupPosition) {
-            Vector<KeyChild> children = mChildren.get(groupPosition);
-            if (children != null) {
-                return children;
+        // schedules loading the children of the groups around groupPosition that aren't
+        // loaded or on their way yet
+        protected void requestChildren(int groupPosition) {
+            if (mChildren.get(groupPosition) != null || mChildrenRequested[groupPosition]) {
+                return;
+            }
+
+            int start = Math.max(0, groupPosition - CHILD_WINDOW / 2);
+            int end = Math.min(mChildren.size(), start + CHILD_WINDOW);
+            final Vector<Integer> positions = new Vector<Integer>();
+            final Vector<Long> keyRingIds = new Vector<Long>();
+            for (int i = start; i < end; ++i) {
+                if (mChildren.get(i) != null || mChildrenRequested[i]) {
+                    continue;
+                }
+                mChildrenRequested[i] = true;
+                mCursor.moveToPosition(i);
+                positions.add(i);
+                keyRingIds.add(mCursor.getLong(0)); // _ID
+            }
+
+            final int generation = mGeneration;
+            mChildLoader.execute(new Runnable() {
+                public void run() {
+                    final HashMap<Long, Vector<KeyChild>> children = loadChildren(keyRingIds);
+                    mHandler.post(new Runnable() {
+                        public void run() {
+                            if (generation != mGeneration) {
+                                return;
+                            }
+                            for (int i = 0; i < positions.size(); ++i) {
+                                Vector<KeyChild> groupChildren = children.get(keyRingIds.get(i));
+                                if (groupChildren == null) {
+                                    groupChildren = new Vector<KeyChild>();
+                                }
+                                mChildren.set(positions.get(i), groupChildren);
+                            }
+                            notifyDataSetChanged();
+                        }
+                    });
+                }
+            });
+        }
+
+        // runs on the loader thread, so it must not touch mCursor
+        protected HashMap<Long, Vector<KeyChild>> loadChildren(Vector<Long> keyRingIds) {
+            HashMap<Long, Vector<KeyChild>> result = new HashMap<Long, Vector<KeyChild>>();
+            String inIdList = "";
+            for (int i = 0; i < keyRingIds.size(); ++i) {
+                if (i != 0) {
+                    inIdList += ", ";
+                }
+                inIdList += keyRingIds.get(i);
             }
 
-            mCursor.moveToPosition(groupPosition);
-            children = new Vector<KeyChild>();
             Cursor c = mDatabase.query(Keys.TABLE_NAME,
                     new String[] {
-                        Keys._ID,           // 0
+                        Keys.KEY_RING_ID,   // 0
                         Keys.KEY_ID,        // 1
                         Keys.IS_MASTER_KEY, // 2
                         Keys.ALGORITHM,     // 3
                         Keys.KEY_SIZE,      // 4
                         Keys.CAN_SIGN,      // 5
                         Keys.CAN_ENCRYPT,   // 6
+                        Keys.FINGERPRINT,   // 7
                     },
-                    Keys.KEY_RING_ID + " = ?",
-                    new String[] { mCursor.getString(0) },
-                    null, null, Keys.RANK + " ASC");
+                    Keys.KEY_RING_ID + " IN (" + inIdList + ")",
+                    null, null, null, Keys.KEY_RING_ID + " ASC, " + Keys.RANK + " ASC");
 
-            int masterKeyId = -1;
-            long fingerPrintId = -1;
             for (int i = 0; i < c.getCount(); ++i) {
                 c.moveToPosition(i);
+                long keyRingId = c.getLong(0);
+                Vector<KeyChild> children = result.get(keyRingId);
+                if (children == null) {
+                    // the first key is the master key, its fingerprint goes on top
+                    children = new Vector<KeyChild>();
+                    byte fingerPrint[] = c.getBlob(7);
+                    if (fingerPrint != null) {
+                        children.add(new KeyChild(Apg.getFingerPrint(fingerPrint), true));
+                    } else {
+                        children.add(new KeyChild(Apg.getFingerPrint(c.getLong(1)), true));
+                    }
+                    result.put(keyRingId, children);
+                }
                 children.add(new KeyChild(c.getLong(1), c.getInt(2) == 1, c.getInt(3), c.getInt(4),
                                           c.getInt(5) == 1, c.getInt(6) == 1));
-                if (i == 0) {
-                    masterKeyId = c.getInt(0);
-                    fingerPrintId = c.getLong(1);
-                }
             }
             c.close();
 
-            if (masterKeyId != -1) {
-                children.insertElementAt(new KeyChild(Apg.getFingerPrint(fingerPrintId), true), 0);
-                c = mDatabase.query(UserIds.TABLE_NAME,
-                         new String[] {
-                             UserIds.USER_ID, // 0
-                         },
-                         UserIds.KEY_ID + " = ? AND " + UserIds.RANK + " > 0",
-                         new String[] { "" + masterKeyId },
-                         null, null, UserIds.RANK + " ASC");
+            c = mDatabase.query(UserIds.TABLE_NAME + " INNER JOIN " + Keys.TABLE_NAME + " ON " +
+                                "(" + Keys.TABLE_NAME + "." + Keys._ID + " = " +
+                                UserIds.TABLE_NAME + "." + UserIds.KEY_ID + " AND " +
+                                Keys.TABLE_NAME + "." + Keys.IS_MASTER_KEY + " = '1')",
+                    new String[] {
+                        Keys.TABLE_NAME + "." + Keys.KEY_RING_ID,   // 0
+                        UserIds.TABLE_NAME + "." + UserIds.USER_ID, // 1
+                    },
+                    Keys.TABLE_NAME + "." + Keys.KEY_RING_ID + " IN (" + inIdList + ") AND " +
+                    UserIds.TABLE_NAME + "." + UserIds.RANK + " > 0",
+                    null, null, null,
+                    Keys.TABLE_NAME + "." + Keys.KEY_RING_ID + " ASC, " +
+                    UserIds.TABLE_NAME + "." + UserIds.RANK + " ASC");
 
-                 for (int i = 0; i < c.getCount(); ++i) {
-                     c.moveToPosition(i);
-                     children.add(new KeyChild(c.getString(0)));
-                 }
-                 c.close();
+            for (int i = 0; i < c.getCount(); ++i) {
+                c.moveToPosition(i);
+                Vector<KeyChild> children = result.get(c.getLong(0));
+                if (children != null) {
+                    children.add(new KeyChild(c.getString(1)));
+                }
             }
+            c.close();
 
-            mChildren.set(groupPosition, children);
-            return children;
+            return result;
         }
 
         public boolean hasStableIds() {
@@ -649,7 +757,7 @@ public class KeyListActivity extends BaseActivity {
         }
 
         public int getGroupCount() {
-            return mCursor.getCount();
+            return mChildren.size();
         }
 
         public Object getChild(int groupPosition, int childPosition) {
@@ -661,7 +769,13 @@ public class KeyListActivity extends BaseActivity {
         }
 
         public int getChildrenCount(int groupPosition) {
-            return getChildrenOfGroup(groupPosition).size();
+            Vector<KeyChild> children = mChildren.get(groupPosition);
+            if (children == null) {
+                // shows up once the loader is done
+                requestChildren(groupPosition);
+                return 0;
+            }
+            return children.size();
         }
 
         public Object getGroup(int position) {
@@ -680,88 +794,70 @@ public class KeyListActivity extends BaseActivity {
 
         public View getGroupView(int groupPosition, boolean isExpanded, View convertView,
                                  ViewGroup parent) {
+            // prefetch, so expanding a visible group usually finds its children ready
+            requestChildren(groupPosition);
             mCursor.moveToPosition(groupPosition);
 
-            View view = mInflater.inflate(R.layout.key_list_group_item, null);
-            view.setBackgroundResource(android.R.drawable.list_selector_background);
+            RowViews row = RowViews.obtain(mInflater, R.layout.key_list_group_item, convertView);
+            row.getView().setBackgroundResource(android.R.drawable.list_selector_background);
 
-            TextView mainUserId = (TextView) view.findViewById(R.id.mainUserId);
-            mainUserId.setText("");
-            TextView mainUserIdRest = (TextView) view.findViewById(R.id.mainUserIdRest);
-            mainUserIdRest.setText("");
-
-            String userId = mCursor.getString(2); // USER_ID
-            if (userId != null) {
-                String chunks[] = userId.split(" <", 2);
-                userId = chunks[0];
-                if (chunks.length > 1) {
-                    mainUserIdRest.setText("<" + chunks[1]);
-                }
-                mainUserId.setText(userId);
+            if (mUserIds[groupPosition] == null) {
+                mUserIds[groupPosition] = RowViews.splitUserId(mCursor.getString(2)); // USER_ID
             }
-
-            if (mainUserId.getText().length() == 0) {
-                mainUserId.setText(R.string.unknownUserId);
-            }
-
-            if (mainUserIdRest.getText().length() == 0) {
-                mainUserIdRest.setVisibility(View.GONE);
-            }
-            return view;
+            row.setUserId(mUserIds[groupPosition]);
+            return row.getView();
         }
 
         public View getChildView(int groupPosition, int childPosition,
                                  boolean isLastChild, View convertView,
                                  ViewGroup parent) {
-            mCursor.moveToPosition(groupPosition);
-
-            Vector<KeyChild> children = getChildrenOfGroup(groupPosition);
+            Vector<KeyChild> children = mChildren.get(groupPosition);
 
             KeyChild child = children.get(childPosition);
-            View view = null;
+            RowViews row = null;
             switch (child.type) {
                 case KeyChild.KEY: {
                     if (child.isMasterKey) {
-                        view = mInflater.inflate(R.layout.key_list_child_item_master_key, null);
+                        row = RowViews.obtain(mInflater, R.layout.key_list_child_item_master_key,
+                                              convertView);
                     } else {
-                        view = mInflater.inflate(R.layout.key_list_child_item_sub_key, null);
+                        row = RowViews.obtain(mInflater, R.layout.key_list_child_item_sub_key,
+                                              convertView);
                     }
 
-                    TextView keyId = (TextView) view.findViewById(R.id.keyId);
+                    TextView keyId = row.getText(R.id.keyId);
                     String keyIdStr = Apg.getSmallFingerPrint(child.keyId);
                     keyId.setText(keyIdStr);
-                    TextView keyDetails = (TextView) view.findViewById(R.id.keyDetails);
+                    TextView keyDetails = row.getText(R.id.keyDetails);
                     String algorithmStr = Apg.getAlgorithmInfo(child.algorithm, child.keySize);
                     keyDetails.setText("(" + algorithmStr + ")");
 
-                    ImageView encryptIcon = (ImageView) view.findViewById(R.id.ic_encryptKey);
-                    if (!child.canEncrypt) {
-                        encryptIcon.setVisibility(View.GONE);
-                    }
+                    ImageView encryptIcon = (ImageView) row.get(R.id.ic_encryptKey);
+                    encryptIcon.setVisibility(child.canEncrypt ? View.VISIBLE : View.GONE);
 
-                    ImageView signIcon = (ImageView) view.findViewById(R.id.ic_signKey);
-                    if (!child.canSign) {
-                        signIcon.setVisibility(View.GONE);
-                    }
+                    ImageView signIcon = (ImageView) row.get(R.id.ic_signKey);
+                    signIcon.setVisibility(child.canSign ? View.VISIBLE : View.GONE);
                     break;
                 }
 
                 case KeyChild.USER_ID: {
-                    view = mInflater.inflate(R.layout.key_list_child_item_user_id, null);
-                    TextView userId = (TextView) view.findViewById(R.id.userId);
+                    row = RowViews.obtain(mInflater, R.layout.key_list_child_item_user_id,
+                                          convertView);
+                    TextView userId = row.getText(R.id.userId);
                     userId.setText(child.userId);
                     break;
                 }
 
                 case KeyChild.FINGER_PRINT: {
-                    view = mInflater.inflate(R.layout.key_list_child_item_user_id, null);
-                    TextView userId = (TextView) view.findViewById(R.id.userId);
+                    row = RowViews.obtain(mInflater, R.layout.key_list_child_item_user_id,
+                                          convertView);
+                    TextView userId = row.getText(R.id.userId);
                     userId.setText(getString(R.string.fingerprint) + ":\n" +
                                    child.fingerPrint.replace("  ", "\n"));
                     break;
                 }
             }
-            return view;
+            return row.getView();
         }
     }
 
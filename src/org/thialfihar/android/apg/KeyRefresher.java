@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import org.bouncycastle2.openpgp.PGPException;
+import org.thialfihar.android.apg.KeyServer.QueryException;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+// looks up public key rings that weren't refreshed for a while on the key servers, to pick up
+// new signatures, revocations and expiry changes, a few rings per server and run
+public class KeyRefresher {
+    // rings are due again after this long, in seconds
+    private static final long REFRESH_AGE = 7 * 24 * 3600;
+    // rings that couldn't be fetched are tried again after this long, in seconds, so they
+    // don't keep the ones behind them from their turn
+    private static final long RETRY_AGE = 24 * 3600;
+    // per server and run, so the key servers see at most that many lookups per RUN_INTERVAL
+    private static final int RINGS_PER_SERVER = 25;
+    static final long RUN_INTERVAL = 30 * 60 * 1000;
+
+    private Context mContext;
+    private Random mRandom = new Random();
+
+    private int mRuns = 0;
+    private int mRings = 0;
+    private int mChanged = 0;
+    private int mFailedBatches = 0;
+    private int mFailedRings = 0;
+    private long mTime = 0;
+    private String mLastRun = "never";
+
+    public KeyRefresher(Context context) {
+        mContext = context;
+    }
+
+    // RUN_INTERVAL give or take half of it, so runs of many devices don't line up
+    public long getNextDelay() {
+        return RUN_INTERVAL / 2 + (long) (mRandom.nextDouble() * RUN_INTERVAL);
+    }
+
+    // refreshes the stalest rings, returns the number of rings that changed
+    public synchronized int refresh() {
+        Apg.initialize(mContext);
+        String servers[] = Preferences.getPreferences(mContext).getKeyServers();
+        if (servers.length == 0) {
+            return 0;
+        }
+
+        long startTime = System.currentTimeMillis();
+        long now = startTime / 1000;
+        Vector<Long> stale = Apg.getDatabase().getStaleKeyRings(now - REFRESH_AGE,
+                                                               RINGS_PER_SERVER * servers.length);
+        if (stale.size() == 0) {
+            return 0;
+        }
+
+        // each server gets its own batch, so a slow or broken one only holds up its own rings
+        Vector<Vector<Long>> batches = new Vector<Vector<Long>>();
+        for (int i = 0; i < servers.length; ++i) {
+            batches.add(new Vector<Long>());
+        }
+        for (int i = 0; i < stale.size(); ++i) {
+            batches.get(i % servers.length).add(stale.get(i));
+        }
+
+        int rings = 0;
+        int changed = 0;
+        int failed = 0;
+        int failedRings = 0;
+        for (int i = 0; i < servers.length; ++i) {
+            Vector<Long> batch = batches.get(i);
+            if (batch.size() == 0) {
+                continue;
+            }
+            Bundle result = refresh(HkpKeyServer.fromPreference(servers[i]), batch);
+            if (result == null) {
+                ++failed;
+                failedRings += batch.size();
+                Apg.getDatabase().setKeyRingsRefreshed(batch, now - REFRESH_AGE + RETRY_AGE);
+                continue;
+            }
+
+            // rings that were fetched or aren't on the server are done for now
+            Vector<Long> retry = new Vector<Long>();
+            for (long masterKeyId : result.getLongArray("failedKeyIds")) {
+                retry.add(masterKeyId);
+            }
+            Vector<Long> done = new Vector<Long>(batch);
+            done.removeAll(retry);
+            Apg.getDatabase().setKeyRingsRefreshed(done, now);
+            Apg.getDatabase().setKeyRingsRefreshed(retry, now - REFRESH_AGE + RETRY_AGE);
+            rings += done.size();
+            failedRings += retry.size();
+            changed += result.getInt("added") + result.getInt("updated") -
+                       result.getInt("unchanged");
+        }
+
+        long elapsed = System.currentTimeMillis() - startTime;
+        ++mRuns;
+        mRings += rings;
+        mChanged += changed;
+        mFailedBatches += failed;
+        mFailedRings += failedRings;
+        mTime += elapsed;
+        mLastRun = new Date(startTime) + ": " + rings + " rings, " + changed + " changed, " +
+                   failedRings + " failed rings, " + failed + " failed batches, " +
+                   elapsed + " ms";
+        Log.i("apg.refresh", toString());
+
+        return changed;
+    }
+
+    private Bundle refresh(KeyServer server, List<Long> masterKeyIds) {
+        try {
+            return Apg.importKeyRings(mContext, server, masterKeyIds, NoProgress.INSTANCE);
+        } catch (QueryException e) {
+            Log.e("apg.refresh", "refresh failed: " + e);
+        } catch (IOException e) {
+            Log.e("apg.refresh", "refresh failed: " + e);
+        } catch (PGPException e) {
+            Log.e("apg.refresh", "refresh failed: " + e);
+        } catch (Apg.GeneralException e) {
+            Log.e("apg.refresh", "refresh failed: " + e);
+        }
+        return null;
+    }
+
+    public synchronized int getRuns() {
+        return mRuns;
+    }
+
+    public synchronized int getRings() {
+        return mRings;
+    }
+
+    public synchronized int getChanged() {
+        return mChanged;
+    }
+
+    public synchronized int getFailedBatches() {
+        return mFailedBatches;
+    }
+
+    public synchronized int getFailedRings() {
+        return mFailedRings;
+    }
+
+    public synchronized long getTime() {
+        return mTime;
+    }
+
+    @Override
+    public synchronized String toString() {
+        long rate = mRings * 1000L / Math.max(mTime, 1);
+        return "KeyRefresher(" + mRuns + " runs, " + mRings + " rings, " + mChanged +
+               " changed, " + mFailedRings + " failed rings, " + mFailedBatches +
+               " failed batches, " + rate +
+               " rings/s, last run " + mLastRun + ")";
+    }
+}
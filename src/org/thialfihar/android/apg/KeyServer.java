@@ -1,7 +1,11 @@
 package org.thialfihar.android.apg;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.Serializable;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.List;
 import java.util.Vector;
 
@@ -28,6 +32,68 @@ public abstract class KeyServer {
         int size;
         String algorithm;
     }
+    // gets the keys of a search as they come in, possibly from several threads at once
+    public interface SearchListener {
+        public void onKeyFound(KeyInfo info);
+    }
     abstract List<KeyInfo> search(String query) throws QueryException, TooManyResponses, InsufficientQuery;
     abstract String get(long keyId) throws QueryException;
+
+    // the same as search(), but also reports every key to the listener as soon as it is known
+    List<KeyInfo> search(String query, SearchListener listener)
+            throws QueryException, TooManyResponses, InsufficientQuery {
+        List<KeyInfo> results = search(query);
+        if (results != null && listener != null) {
+            for (KeyInfo info : results) {
+                listener.onKeyFound(info);
+            }
+        }
+        return results;
+    }
+
+    // one stream of armored keys per key ID, in the same order, reading the stream of a key
+    // that couldn't be fetched throws an IOException
+    static abstract class KeyStreams implements Enumeration<InputStream> {
+        // drops whatever was fetched ahead and not handed out yet
+        public void close() {
+        }
+    }
+
+    KeyStreams getKeys(final List<Long> keyIds) throws QueryException {
+        return new KeyStreams() {
+            private int mNext = 0;
+
+            public boolean hasMoreElements() {
+                return mNext < keyIds.size();
+            }
+
+            public InputStream nextElement() {
+                long keyId = keyIds.get(mNext++);
+                try {
+                    String data = get(keyId);
+                    if (data == null) {
+                        data = "";
+                    }
+                    return new ByteArrayInputStream(data.getBytes());
+                } catch (QueryException e) {
+                    return new FailedStream("fetching key " + Apg.keyToHex(keyId) + " failed: " +
+                                            e.getMessage());
+                }
+            }
+        };
+    }
+
+    // stands in for a key that couldn't be fetched in a stream of keys
+    static class FailedStream extends InputStream {
+        private String mMessage;
+
+        public FailedStream(String message) {
+            mMessage = message;
+        }
+
+        @Override
+        public int read() throws IOException {
+            throw new IOException(mMessage);
+        }
+    }
 }
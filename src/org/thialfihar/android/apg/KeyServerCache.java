@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// on-disk cache of key server responses, one file per server and request. Entries are fresh
+// for a while and can be revalidated with the ETag or Last-Modified the server sent after
+// that, the cache is bounded by the summed size of its files and drops the least recently
+// used ones first.
+public class KeyServerCache {
+    public static final long DEFAULT_TTL = 60 * 60 * 1000;
+    // "no keys found" is cached as well, but not for as long
+    public static final long DEFAULT_NOT_FOUND_TTL = 10 * 60 * 1000;
+    public static final long DEFAULT_MAX_SIZE = 4 << 20;
+
+    private static final int VERSION = 1;
+
+    public static class Entry {
+        public int code;
+        public String data;
+        public String eTag;
+        public String lastModified;
+        public long fetched;
+    }
+
+    private File mDir;
+    private long mTtl = DEFAULT_TTL;
+    private long mNotFoundTtl = DEFAULT_NOT_FOUND_TTL;
+    private long mMaxSize = DEFAULT_MAX_SIZE;
+    private long mSize = 0;
+
+    private long mHits = 0;
+    private long mRevalidations = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    // file name to size, access ordered, so the eldest entry is the least recently used one
+    private LinkedHashMap<String, Long> mFiles = null;
+
+    public KeyServerCache(File dir) {
+        mDir = dir;
+    }
+
+    public synchronized void setTtl(long ttl, long notFoundTtl) {
+        mTtl = ttl;
+        mNotFoundTtl = notFoundTtl;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        mMaxSize = maxSize;
+        trim();
+    }
+
+    private void loadIndex() {
+        if (mFiles != null) {
+            return;
+        }
+        mFiles = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        mDir.mkdirs();
+        File files[] = mDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            mFiles.put(file.getName(), file.length());
+            mSize += file.length();
+        }
+    }
+
+    private static String fileName(String server, String request) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte hash[] = digest.digest((server + " " + request).getBytes("utf8"));
+            StringBuilder name = new StringBuilder();
+            for (byte b : hash) {
+                name.append(Integer.toHexString((b & 0xff) | 0x100).substring(1));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-1
+            throw new RuntimeException(e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // returns the cached response, fresh or not, or null
+    public synchronized Entry get(String server, String request) {
+        loadIndex();
+        String name = fileName(server, request);
+        if (mFiles.get(name) == null) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(mDir, name))));
+            if (in.readInt() != VERSION) {
+                throw new IOException("unknown cache entry version");
+            }
+            Entry entry = new Entry();
+            entry.fetched = in.readLong();
+            entry.code = in.readInt();
+            entry.eTag = readString(in);
+            entry.lastModified = readString(in);
+            entry.data = readString(in);
+            return entry;
+        } catch (IOException e) {
+            remove(name);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    public synchronized boolean isFresh(Entry entry) {
+        long ttl = (entry.code == 404 ? mNotFoundTtl : mTtl);
+        long age = new Date().getTime() - entry.fetched;
+        return age >= 0 && age < ttl;
+    }
+
+    public synchronized void put(String server, String request, Entry entry) {
+        loadIndex();
+        String name = fileName(server, request);
+        remove(name);
+
+        File file = new File(mDir, name);
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(VERSION);
+            out.writeLong(entry.fetched);
+            out.writeInt(entry.code);
+            writeString(out, entry.eTag);
+            writeString(out, entry.lastModified);
+            writeString(out, entry.data);
+            out.close();
+            out = null;
+        } catch (IOException e) {
+            file.delete();
+            return;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+                file.delete();
+            }
+        }
+
+        mFiles.put(name, file.length());
+        mSize += file.length();
+        trim();
+    }
+
+    private void remove(String name) {
+        Long size = mFiles.remove(name);
+        if (size != null) {
+            mSize -= size;
+            new File(mDir, name).delete();
+        }
+    }
+
+    private void trim() {
+        if (mFiles == null) {
+            return;
+        }
+        Iterator<Map.Entry<String, Long>> it = mFiles.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            mSize -= eldest.getValue();
+            new File(mDir, eldest.getKey()).delete();
+            ++mEvictions;
+        }
+    }
+
+    public synchronized void clear() {
+        loadIndex();
+        for (String name : mFiles.keySet()) {
+            new File(mDir, name).delete();
+        }
+        mFiles.clear();
+        mSize = 0;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte data[] = value.getBytes("utf8");
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte data[] = new byte[length];
+        in.readFully(data);
+        return new String(data, "utf8");
+    }
+
+    // answered from the cache without asking the server
+    public synchronized void countHit() {
+        ++mHits;
+    }
+
+    // the server confirmed the cached response was still current, no need to transfer it
+    public synchronized void countRevalidation() {
+        ++mRevalidations;
+    }
+
+    public synchronized void countMiss() {
+        ++mMisses;
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getRevalidations() {
+        return mRevalidations;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    public synchronized long size() {
+        loadIndex();
+        return mSize;
+    }
+
+    public synchronized void resetStats() {
+        mHits = 0;
+        mRevalidations = 0;
+        mMisses = 0;
+        mEvictions = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "KeyServerCache(" + mSize + "/" + mMaxSize + " bytes, " +
+               mHits + " round trips saved, " + mRevalidations + " revalidated, " +
+               mMisses + " misses, " + mEvictions + " evictions)";
+    }
+}
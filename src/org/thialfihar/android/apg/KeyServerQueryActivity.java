@@ -1,8 +1,10 @@
 package org.thialfihar.android.apg;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Vector;
 
+import org.bouncycastle2.openpgp.PGPException;
 import org.thialfihar.android.apg.KeyServer.InsufficientQuery;
 import org.thialfihar.android.apg.KeyServer.KeyInfo;
 import org.thialfihar.android.apg.KeyServer.QueryException;
@@ -38,12 +40,31 @@ public class KeyServerQueryActivity extends BaseActivity {
     private Button mSearch;
     private KeyInfoListAdapter mAdapter;
     private Spinner mKeyServer;
+    private String mKeyServers[];
 
     private int mQueryType;
     private String mQueryString;
     private long mQueryId;
     private volatile List<KeyInfo> mSearchResult;
     private volatile String mKeyData;
+    // keys found by the running search that the list doesn't show yet
+    private Vector<KeyInfo> mPendingKeys = new Vector<KeyInfo>();
+    private volatile int mSearchGeneration = 0;
+
+    private Runnable mShowPendingKeys = new Runnable() {
+        public void run() {
+            Vector<KeyInfo> keys;
+            synchronized (mPendingKeys) {
+                keys = new Vector<KeyInfo>(mPendingKeys);
+                mPendingKeys.clear();
+            }
+            if (keys.size() > 0) {
+                // the first results are in, no need to block the list any longer
+                removeDialog(Id.dialog.querying);
+                mAdapter.addKeys(keys);
+            }
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -58,10 +79,19 @@ public class KeyServerQueryActivity extends BaseActivity {
         mList.setAdapter(mAdapter);
 
         mKeyServer = (Spinner) findViewById(R.id.keyServer);
+        mKeyServers = mPreferences.getKeyServers();
+        Vector<String> choices = new Vector<String>();
+        if (mKeyServers.length > 1) {
+            // first choice, asks all of them at once
+            choices.add(getString(R.string.allKeyServers));
+        }
+        for (String keyServer : mKeyServers) {
+            choices.add(keyServer);
+        }
         ArrayAdapter<String> adapter =
                 new ArrayAdapter<String>(this,
                                          android.R.layout.simple_spinner_item,
-                                         mPreferences.getKeyServers());
+                                         choices);
         adapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
         mKeyServer.setAdapter(adapter);
         if (adapter.getCount() > 0) {
@@ -99,6 +129,10 @@ public class KeyServerQueryActivity extends BaseActivity {
         showDialog(Id.dialog.querying);
         mQueryType = Id.query.search;
         mQueryString = query;
+        ++mSearchGeneration;
+        synchronized (mPendingKeys) {
+            mPendingKeys.clear();
+        }
         mAdapter.setKeys(new Vector<KeyInfo>());
         startThread();
     }
@@ -125,14 +159,51 @@ public class KeyServerQueryActivity extends BaseActivity {
         Message msg = new Message();
 
         try {
-            HkpKeyServer server = new HkpKeyServer((String)mKeyServer.getSelectedItem());
+            KeyServer server;
+            int position = mKeyServer.getSelectedItemPosition();
+            if (mKeyServers.length > 1 && position == 0) {
+                server = MultiKeyServer.fromPreferences(mKeyServers);
+            } else {
+                server = HkpKeyServer.fromPreference((String) mKeyServer.getSelectedItem());
+            }
             if (mQueryType == Id.query.search) {
-                mSearchResult = server.search(mQueryString);
+                final int generation = mSearchGeneration;
+                mSearchResult = server.search(mQueryString, new KeyServer.SearchListener() {
+                    public void onKeyFound(KeyInfo info) {
+                        synchronized (mPendingKeys) {
+                            if (generation != mSearchGeneration) {
+                                return;
+                            }
+                            mPendingKeys.add(info);
+                            // one drain for however many keys arrive until it runs
+                            if (mPendingKeys.size() > 1) {
+                                return;
+                            }
+                        }
+                        runOnUiThread(mShowPendingKeys);
+                    }
+                });
             } else if (mQueryType == Id.query.get) {
-                mKeyData = server.get(mQueryId);
+                if (Apg.Intent.LOOK_UP_KEY_ID_AND_RETURN.equals(getIntent().getAction())) {
+                    mKeyData = server.get(mQueryId);
+                } else {
+                    // straight from the connection into the database
+                    Vector<Long> keyIds = new Vector<Long>();
+                    keyIds.add(mQueryId);
+                    data = Apg.importKeyRings(this, server, keyIds, this);
+                    if (data.getInt("failed") > 0) {
+                        error = data.getString("lastFailure");
+                    }
+                }
             }
         } catch (QueryException e) {
             error = "" + e;
+        } catch (IOException e) {
+            error = "" + e;
+        } catch (PGPException e) {
+            error = "" + e;
+        } catch (Apg.GeneralException e) {
+            error = "" + e;
         } catch (InsufficientQuery e) {
             error = "Insufficient query.";
         } catch (TooManyResponses e) {
@@ -163,6 +234,11 @@ public class KeyServerQueryActivity extends BaseActivity {
         }
 
         if (mQueryType == Id.query.search) {
+            // servers that are still answering must not add to the final result
+            ++mSearchGeneration;
+            synchronized (mPendingKeys) {
+                mPendingKeys.clear();
+            }
             if (mSearchResult != null) {
                 Toast.makeText(this, getString(R.string.keysFound, mSearchResult.size()), Toast.LENGTH_SHORT).show();
                 mAdapter.setKeys(mSearchResult);
@@ -179,12 +255,19 @@ public class KeyServerQueryActivity extends BaseActivity {
                 }
                 finish();
             } else {
-                if (mKeyData != null) {
-                    Intent intent = new Intent(this, PublicKeyListActivity.class);
-                    intent.setAction(Apg.Intent.IMPORT);
-                    intent.putExtra(Apg.EXTRA_TEXT, mKeyData);
-                    startActivity(intent);
+                int added = data.getInt("added");
+                int updated = data.getInt("updated");
+                String message;
+                if (added > 0 && updated > 0) {
+                    message = getString(R.string.keysAddedAndUpdated, added, updated);
+                } else if (added > 0) {
+                    message = getString(R.string.keysAdded, added);
+                } else if (updated > 0) {
+                    message = getString(R.string.keysUpdated, updated);
+                } else {
+                    message = getString(R.string.noKeysAddedOrUpdated);
                 }
+                Toast.makeText(this, message, Toast.LENGTH_SHORT).show();
             }
         }
     }
@@ -205,6 +288,11 @@ public class KeyServerQueryActivity extends BaseActivity {
             notifyDataSetChanged();
         }
 
+        public void addKeys(List<KeyInfo> keys) {
+            mKeys.addAll(keys);
+            notifyDataSetChanged();
+        }
+
         @Override
         public boolean hasStableIds() {
             return true;
@@ -238,7 +326,10 @@ public class KeyServerQueryActivity extends BaseActivity {
             TextView status = (TextView) view.findViewById(R.id.status);
             status.setText("");
 
-            String userId = keyInfo.userIds.get(0);
+            String userId = null;
+            if (keyInfo.userIds.size() > 0) {
+                userId = keyInfo.userIds.get(0);
+            }
             if (userId != null) {
                 String chunks[] = userId.split(" <", 2);
                 userId = chunks[0];
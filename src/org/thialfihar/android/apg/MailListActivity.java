@@ -191,13 +191,13 @@ public class MailListActivity extends ListActivity {
         }
 
         public View getView(int position, View convertView, ViewGroup parent) {
-            View view = mInflater.inflate(R.layout.mailbox_message_item, null);
+            RowViews row = RowViews.obtain(mInflater, R.layout.mailbox_message_item, convertView);
 
             Message message = (Message) getItem(position);
 
-            TextView subject = (TextView) view.findViewById(R.id.subject);
-            TextView email = (TextView) view.findViewById(R.id.emailAddress);
-            ImageView status = (ImageView) view.findViewById(R.id.ic_status);
+            TextView subject = row.getText(R.id.subject);
+            TextView email = row.getText(R.id.emailAddress);
+            ImageView status = (ImageView) row.get(R.id.ic_status);
 
             subject.setText(message.subject);
             email.setText(message.fromAddress);
@@ -212,7 +212,7 @@ public class MailListActivity extends ListActivity {
                 status.setVisibility(View.INVISIBLE);
             }
 
-            return view;
+            return row.getView();
         }
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads a file through read-only memory mappings instead of read() calls. The file is mapped
+// in windows, so large files don't need that much contiguous address space.
+public class MappedInputStream extends InputStream {
+    public static final int WINDOW_SIZE = 1 << 26;
+
+    private final FileChannel mChannel;
+    private final Closeable mOwner;
+    private final long mStart;
+    private final long mSize;
+    private long mWindowStart = 0;
+    private MappedByteBuffer mWindow = null;
+    private long mPosition = 0;
+
+    // maps size bytes from the channel's current position, closing owner closes the file
+    public MappedInputStream(FileChannel channel, long size, Closeable owner) throws IOException {
+        mChannel = channel;
+        mOwner = owner;
+        mStart = channel.position();
+        mSize = size;
+        // map the first window right away, so callers can fall back to plain reads
+        // if the file can't be mapped
+        ensureWindow();
+    }
+
+    private boolean ensureWindow() throws IOException {
+        if (mPosition >= mSize) {
+            return false;
+        }
+        if (mWindow == null || !mWindow.hasRemaining()) {
+            mWindowStart = mPosition;
+            long length = Math.min(WINDOW_SIZE, mSize - mPosition);
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, mStart + mPosition, length);
+        }
+        return true;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureWindow()) {
+            return -1;
+        }
+        ++mPosition;
+        return mWindow.get() & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!ensureWindow()) {
+            return -1;
+        }
+        int n = Math.min(len, mWindow.remaining());
+        mWindow.get(b, off, n);
+        mPosition += n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        n = Math.min(n, mSize - mPosition);
+        mPosition += n;
+        if (mWindow != null) {
+            long offset = mPosition - mWindowStart;
+            if (offset < mWindow.limit()) {
+                mWindow.position((int) offset);
+            } else {
+                mWindow = null;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(Integer.MAX_VALUE, mSize - mPosition);
+    }
+
+    public long position() {
+        return mPosition;
+    }
+
+    public long size() {
+        return mSize;
+    }
+
+    @Override
+    public void close() throws IOException {
+        // the mappings go away with the buffers, which the GC takes care of
+        mWindow = null;
+        mOwner.close();
+    }
+}
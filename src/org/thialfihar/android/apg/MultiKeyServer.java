@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// asks several key servers at once: searches go to all of them and their results are merged
+// by key ID, gets are hedged and take the first server that has the key
+public class MultiKeyServer extends KeyServer {
+    private static final long HEDGE_DELAY = 3000;
+    private static final long QUERY_TIMEOUT = 35000;
+
+    private Vector<KeyServer> mServers = new Vector<KeyServer>();
+
+    public MultiKeyServer(List<KeyServer> servers) {
+        mServers.addAll(servers);
+    }
+
+    public static MultiKeyServer fromPreferences(String servers[]) {
+        Vector<KeyServer> keyServers = new Vector<KeyServer>();
+        for (String server : servers) {
+            keyServers.add(HkpKeyServer.fromPreference(server));
+        }
+        return new MultiKeyServer(keyServers);
+    }
+
+    @Override
+    List<KeyInfo> search(String query)
+            throws QueryException, TooManyResponses, InsufficientQuery {
+        return search(query, null);
+    }
+
+    @Override
+    List<KeyInfo> search(final String query, final SearchListener listener)
+            throws QueryException, TooManyResponses, InsufficientQuery {
+        // the listener only hears about a key ID once, no matter how many servers know it,
+        // and nothing from servers that answer after search() returned
+        final AtomicBoolean finished = new AtomicBoolean(false);
+        final SearchListener firstSeen;
+        if (listener == null) {
+            firstSeen = null;
+        } else {
+            firstSeen = new SearchListener() {
+                private HashSet<Long> mSeen = new HashSet<Long>();
+
+                public synchronized void onKeyFound(KeyInfo info) {
+                    if (!finished.get() && mSeen.add(info.keyId)) {
+                        listener.onKeyFound(info);
+                    }
+                }
+            };
+        }
+
+        Vector<Future<List<KeyInfo>>> futures = new Vector<Future<List<KeyInfo>>>();
+        for (final KeyServer server : mServers) {
+            futures.add(HkpKeyServer.sExecutor.submit(new Callable<List<KeyInfo>>() {
+                public List<KeyInfo> call() throws Exception {
+                    return server.search(query, firstSeen);
+                }
+            }));
+        }
+
+        try {
+            return collect(futures);
+        } finally {
+            finished.set(true);
+        }
+    }
+
+    private List<KeyInfo> collect(Vector<Future<List<KeyInfo>>> futures)
+            throws QueryException, TooManyResponses, InsufficientQuery {
+        Vector<KeyInfo> results = new Vector<KeyInfo>();
+        HashMap<Long, KeyInfo> byKeyId = new HashMap<Long, KeyInfo>();
+        boolean answered = false;
+        boolean interrupted = false;
+        Throwable error = null;
+        long deadline = System.currentTimeMillis() + QUERY_TIMEOUT;
+        for (Future<List<KeyInfo>> future : futures) {
+            if (interrupted) {
+                future.cancel(true);
+                continue;
+            }
+            List<KeyInfo> keys;
+            try {
+                keys = future.get(Math.max(0, deadline - System.currentTimeMillis()),
+                                  TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                error = e.getCause();
+                continue;
+            } catch (TimeoutException e) {
+                future.cancel(true);
+                continue;
+            } catch (InterruptedException e) {
+                // stop waiting, but let the caller know it was interrupted
+                Thread.currentThread().interrupt();
+                interrupted = true;
+                future.cancel(true);
+                continue;
+            }
+
+            if (keys == null) {
+                continue;
+            }
+            answered = true;
+            for (KeyInfo info : keys) {
+                KeyInfo known = byKeyId.get(info.keyId);
+                if (known == null) {
+                    byKeyId.put(info.keyId, info);
+                    results.add(info);
+                    continue;
+                }
+                for (String userId : info.userIds) {
+                    if (!known.userIds.contains(userId)) {
+                        known.userIds.add(userId);
+                    }
+                }
+                if (known.revoked == null) {
+                    known.revoked = info.revoked;
+                }
+            }
+        }
+
+        if (interrupted) {
+            throw new QueryException("interrupted");
+        }
+        // one server answering is enough, otherwise report why they didn't
+        if (answered) {
+            return results;
+        }
+        if (error instanceof TooManyResponses) {
+            throw (TooManyResponses) error;
+        }
+        if (error instanceof InsufficientQuery) {
+            throw (InsufficientQuery) error;
+        }
+        if (error instanceof QueryException) {
+            throw (QueryException) error;
+        }
+        throw new QueryException("querying key servers failed");
+    }
+
+    @Override
+    String get(final long keyId) throws QueryException {
+        Vector<Callable<String>> attempts = new Vector<Callable<String>>();
+        for (final KeyServer server : mServers) {
+            attempts.add(new Callable<String>() {
+                public String call() throws Exception {
+                    return server.get(keyId);
+                }
+            });
+        }
+
+        try {
+            return new HedgedRequest<String>(HkpKeyServer.sExecutor, HEDGE_DELAY, QUERY_TIMEOUT)
+                    .run(attempts);
+        } catch (QueryException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new QueryException("" + e);
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.util.Arrays;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle2.openpgp.PGPPrivateKey;
+
+/**
+ * Pass phrases by master key ID, and optionally the private keys they unlocked. Lookups and
+ * puts don't lock, entries expire a TTL after their last use through a timer wheel, so
+ * advance() only looks at the entries that are due.
+ */
+public class PassPhraseCache {
+    // one slot per tick, entries due further out than a turn stay in their slot for later turns
+    private static final int WHEEL_SLOTS = 512;
+    private static final long TICK = 1000;
+
+    private static class Entry {
+        public final long masterKeyId;
+        public final char passPhrase[];
+        // the entry lives until the TTL after its last use
+        public volatile long touched;
+        // the only slot the entry is in as far as advance() is concerned, see schedule()
+        public volatile long tick;
+        public volatile boolean wiped = false;
+        public final ConcurrentHashMap<Long, PGPPrivateKey> privateKeys =
+                new ConcurrentHashMap<Long, PGPPrivateKey>();
+
+        public Entry(long masterKeyId, char passPhrase[], long touched) {
+            this.masterKeyId = masterKeyId;
+            this.passPhrase = passPhrase;
+            this.touched = touched;
+        }
+    }
+
+    private static class Slot extends ConcurrentLinkedQueue<Entry> {
+        private static final long serialVersionUID = -4218546271283340562L;
+    }
+
+    private final ConcurrentHashMap<Long, Entry> mEntries = new ConcurrentHashMap<Long, Entry>();
+    // every secret key ID seen so far to the master key ID of its ring
+    private final ConcurrentHashMap<Long, Long> mMasterKeyIds = new ConcurrentHashMap<Long, Long>();
+    private final Slot mWheel[] = new Slot[WHEEL_SLOTS];
+    // the last tick advance() went through
+    private volatile long mCurrentTick;
+    private volatile long mTtl = 180 * 1000;
+    private volatile boolean mCachePrivateKeys = false;
+
+    private final AtomicLong mUnlocks = new AtomicLong();
+    private final AtomicLong mUnlockTime = new AtomicLong();
+    private final AtomicLong mUnlockHits = new AtomicLong();
+
+    public PassPhraseCache() {
+        for (int i = 0; i < WHEEL_SLOTS; ++i) {
+            mWheel[i] = new Slot();
+        }
+        mCurrentTick = System.currentTimeMillis() / TICK;
+    }
+
+    public Long getMasterKeyId(long keyId) {
+        return mMasterKeyIds.get(keyId);
+    }
+
+    public void setMasterKeyId(long keyId, long masterKeyId) {
+        mMasterKeyIds.put(keyId, masterKeyId);
+    }
+
+    public void put(long masterKeyId, String passPhrase) {
+        Entry entry = new Entry(masterKeyId, passPhrase.toCharArray(), System.currentTimeMillis());
+        mMasterKeyIds.put(masterKeyId, masterKeyId);
+        Entry old = mEntries.put(masterKeyId, entry);
+        schedule(entry);
+        if (old != null) {
+            wipe(old);
+        }
+    }
+
+    // resets the life time of the entry as well
+    public String get(long masterKeyId) {
+        Entry entry = mEntries.get(masterKeyId);
+        if (entry == null) {
+            return null;
+        }
+        String passPhrase = new String(entry.passPhrase);
+        // wipe() marks entries before it zeroes them, so this catches copies of zeroes
+        if (entry.wiped) {
+            return null;
+        }
+        entry.touched = System.currentTimeMillis();
+        return passPhrase;
+    }
+
+    public void remove(long masterKeyId) {
+        Entry entry = mEntries.remove(masterKeyId);
+        if (entry != null) {
+            wipe(entry);
+        }
+    }
+
+    public void clear() {
+        for (Entry entry : mEntries.values()) {
+            remove(entry.masterKeyId);
+        }
+    }
+
+    private static void wipe(Entry entry) {
+        entry.wiped = true;
+        Arrays.fill(entry.passPhrase, '\0');
+        // can't overwrite the key material, so just let go of it
+        entry.privateKeys.clear();
+    }
+
+    private void schedule(Entry entry) {
+        // never into a slot advance() is done with for this turn
+        long tick = Math.max((entry.touched + mTtl) / TICK, mCurrentTick + 1);
+        entry.tick = tick;
+        mWheel[(int) (tick % WHEEL_SLOTS)].add(entry);
+    }
+
+    // in milliseconds, changing it reschedules everything, which is a full pass
+    public synchronized void setTtl(long ttl) {
+        if (ttl == mTtl) {
+            return;
+        }
+        mTtl = ttl;
+        for (Entry entry : mEntries.values()) {
+            schedule(entry);
+        }
+    }
+
+    /**
+     * Expires the entries that are due by now and returns how long it is until the next
+     * slot with entries, or maxDelay if there is none in that time.
+     */
+    public synchronized int advance(long now, int maxDelay) {
+        long nowTick = now / TICK;
+        // after a long sleep every slot is due once, not every tick that passed
+        long tick = Math.max(mCurrentTick, nowTick - WHEEL_SLOTS);
+        Vector<Entry> due = new Vector<Entry>();
+        while (tick < nowTick) {
+            ++tick;
+            Slot slot = mWheel[(int) (tick % WHEEL_SLOTS)];
+            due.clear();
+            Entry entry;
+            while ((entry = slot.poll()) != null) {
+                due.add(entry);
+            }
+            mCurrentTick = tick;
+
+            for (Entry candidate : due) {
+                if (mEntries.get(candidate.masterKeyId) != candidate ||
+                    candidate.tick % WHEEL_SLOTS != tick % WHEEL_SLOTS) {
+                    // replaced or rescheduled into another slot in the meantime
+                    continue;
+                }
+                if (candidate.tick > tick) {
+                    // due in a later turn
+                    slot.add(candidate);
+                    continue;
+                }
+                if (candidate.touched + mTtl <= now) {
+                    if (mEntries.remove(candidate.masterKeyId, candidate)) {
+                        wipe(candidate);
+                    }
+                } else {
+                    // used since it was scheduled
+                    schedule(candidate);
+                }
+            }
+        }
+        mCurrentTick = nowTick;
+
+        for (int i = 1; i * TICK < maxDelay && i <= WHEEL_SLOTS; ++i) {
+            if (!mWheel[(int) ((nowTick + i) % WHEEL_SLOTS)].isEmpty()) {
+                return (int) (i * TICK);
+            }
+        }
+        return maxDelay;
+    }
+
+    // off by default, unlocked keys only ever live as long as their pass phrase's entry
+    public void setCachePrivateKeys(boolean enabled) {
+        mCachePrivateKeys = enabled;
+        if (!enabled) {
+            clearPrivateKeys();
+        }
+    }
+
+    public boolean getCachePrivateKeys() {
+        return mCachePrivateKeys;
+    }
+
+    // the key must have been unlocked with the cached pass phrase, a different one never
+    // gets a key out of here
+    public PGPPrivateKey getPrivateKey(long keyId, String passPhrase) {
+        Entry entry = getEntryFor(keyId, passPhrase);
+        if (entry == null) {
+            return null;
+        }
+        PGPPrivateKey privateKey = entry.privateKeys.get(keyId);
+        if (privateKey == null || entry.wiped) {
+            return null;
+        }
+        entry.touched = System.currentTimeMillis();
+        mUnlockHits.incrementAndGet();
+        return privateKey;
+    }
+
+    public void putPrivateKey(long keyId, String passPhrase, PGPPrivateKey privateKey) {
+        Entry entry = getEntryFor(keyId, passPhrase);
+        if (entry == null) {
+            return;
+        }
+        entry.privateKeys.put(keyId, privateKey);
+        if (entry.wiped) {
+            // raced with wipe()
+            entry.privateKeys.clear();
+        }
+    }
+
+    private Entry getEntryFor(long keyId, String passPhrase) {
+        if (!mCachePrivateKeys || passPhrase == null) {
+            return null;
+        }
+        Long masterKeyId = mMasterKeyIds.get(keyId);
+        if (masterKeyId == null) {
+            return null;
+        }
+        Entry entry = mEntries.get(masterKeyId);
+        if (entry == null || !matches(entry.passPhrase, passPhrase) || entry.wiped) {
+            return null;
+        }
+        return entry;
+    }
+
+    // looks at every character, so the time doesn't tell how much of it matched
+    private static boolean matches(char cached[], String passPhrase) {
+        if (cached.length != passPhrase.length()) {
+            return false;
+        }
+        int difference = 0;
+        for (int i = 0; i < cached.length; ++i) {
+            difference |= cached[i] ^ passPhrase.charAt(i);
+        }
+        return difference == 0;
+    }
+
+    // on screen lock, the pass phrases stay
+    public void clearPrivateKeys() {
+        for (Entry entry : mEntries.values()) {
+            entry.privateKeys.clear();
+        }
+    }
+
+    public void countUnlock(long nanos) {
+        mUnlocks.incrementAndGet();
+        mUnlockTime.addAndGet(nanos);
+    }
+
+    public long getUnlocks() {
+        return mUnlocks.get();
+    }
+
+    // in nanoseconds
+    public long getUnlockTime() {
+        return mUnlockTime.get();
+    }
+
+    public long getUnlockHits() {
+        return mUnlockHits.get();
+    }
+
+    @Override
+    public String toString() {
+        long unlocks = mUnlocks.get();
+        long average = unlocks == 0 ? 0 : mUnlockTime.get() / unlocks / 1000000;
+        return "PassPhraseCache(" + mEntries.size() + " pass phrases, " + unlocks +
+               " unlocks, " + average + " ms per unlock, " + mUnlockHits.get() +
+               " unlocked key hits)";
+    }
+}
@@ -114,6 +114,37 @@ public class Preferences {
         editor.commit();
     }
 
+    public boolean getPipelinedEncryption() {
+        return mSharedPreferences.getBoolean(Constants.pref.pipelined_encryption, false);
+    }
+
+    public void setPipelinedEncryption(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.pref.pipelined_encryption, value);
+        editor.commit();
+    }
+
+    // off by default, the key servers learn which keys are on the device
+    public boolean getRefreshKeys() {
+        return mSharedPreferences.getBoolean(Constants.pref.refresh_keys, false);
+    }
+
+    public void setRefreshKeys(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.pref.refresh_keys, value);
+        editor.commit();
+    }
+
+    public boolean getCachePrivateKeys() {
+        return mSharedPreferences.getBoolean(Constants.pref.cache_private_keys, false);
+    }
+
+    public void setCachePrivateKeys(boolean value) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Constants.pref.cache_private_keys, value);
+        editor.commit();
+    }
+
     public boolean hasSeenChangeLog(String version) {
         return mSharedPreferences.getBoolean(Constants.pref.has_seen_change_log + version,
                                        false);
@@ -41,6 +41,9 @@ public class PreferencesActivity extends PreferenceActivity {
     private IntegerListPreference mFileCompression = null;
     private CheckBoxPreference mAsciiArmour = null;
     private CheckBoxPreference mForceV3Signatures = null;
+    private CheckBoxPreference mPipelinedEncryption = null;
+    private CheckBoxPreference mRefreshKeys = null;
+    private CheckBoxPreference mCachePrivateKeys = null;
     private PreferenceScreen mKeyServerPreference = null;
     private Preferences mPreferences;
 
@@ -162,12 +165,14 @@ public class PreferencesActivity extends PreferenceActivity {
                 Id.choice.compression.zip,
                 Id.choice.compression.zlib,
                 Id.choice.compression.bzip2,
+                Id.choice.compression.auto,
         };
         entries = new String[] {
                 getString(R.string.choice_none) + " (" + getString(R.string.fast) + ")",
                 "ZIP (" + getString(R.string.fast) + ")",
                 "ZLIB (" + getString(R.string.fast) + ")",
                 "BZIP2 (" + getString(R.string.very_slow) + ")",
+                getString(R.string.choice_automatic),
         };
         values = new String[valueIds.length];
         for (int i = 0; i < values.length; ++i) {
@@ -228,6 +233,45 @@ public class PreferencesActivity extends PreferenceActivity {
             }
         });
 
+        mCachePrivateKeys = (CheckBoxPreference) findPreference(Constants.pref.cache_private_keys);
+        mCachePrivateKeys.setChecked(mPreferences.getCachePrivateKeys());
+        mCachePrivateKeys.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener()
+        {
+            public boolean onPreferenceChange(Preference preference, Object newValue)
+            {
+                mCachePrivateKeys.setChecked((Boolean)newValue);
+                mPreferences.setCachePrivateKeys((Boolean)newValue);
+                BaseActivity.startCacheService(PreferencesActivity.this, mPreferences);
+                return false;
+            }
+        });
+
+        mPipelinedEncryption =
+                (CheckBoxPreference) findPreference(Constants.pref.pipelined_encryption);
+        mPipelinedEncryption.setChecked(mPreferences.getPipelinedEncryption());
+        mPipelinedEncryption.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener()
+        {
+            public boolean onPreferenceChange(Preference preference, Object newValue)
+            {
+                mPipelinedEncryption.setChecked((Boolean)newValue);
+                mPreferences.setPipelinedEncryption((Boolean)newValue);
+                return false;
+            }
+        });
+
+        mRefreshKeys = (CheckBoxPreference) findPreference(Constants.pref.refresh_keys);
+        mRefreshKeys.setChecked(mPreferences.getRefreshKeys());
+        mRefreshKeys.setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener()
+        {
+            public boolean onPreferenceChange(Preference preference, Object newValue)
+            {
+                mRefreshKeys.setChecked((Boolean)newValue);
+                mPreferences.setRefreshKeys((Boolean)newValue);
+                BaseActivity.startCacheService(PreferencesActivity.this, mPreferences);
+                return false;
+            }
+        });
+
         mKeyServerPreference = (PreferenceScreen) findPreference(Constants.pref.key_servers);
         String servers[] = mPreferences.getKeyServers();
         mKeyServerPreference.setSummary(getResources().getString(R.string.nKeyServers, servers.length));
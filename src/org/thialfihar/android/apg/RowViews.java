@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import android.util.SparseArray;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.widget.TextView;
+
+// view holder for list rows: the views of a row are looked up once and kept in its tag,
+// so adapters can bind recycled rows without inflating or searching the hierarchy again
+public class RowViews {
+    private View mView;
+    private int mLayout;
+    private SparseArray<View> mViews = new SparseArray<View>();
+
+    private RowViews(View view, int layout) {
+        mView = view;
+        mLayout = layout;
+        view.setTag(this);
+    }
+
+    // returns the holder of convertView if it was made for the same layout, a new row otherwise
+    public static RowViews obtain(LayoutInflater inflater, int layout, View convertView) {
+        if (convertView != null && convertView.getTag() instanceof RowViews) {
+            RowViews row = (RowViews) convertView.getTag();
+            if (row.mLayout == layout) {
+                return row;
+            }
+        }
+        return new RowViews(inflater.inflate(layout, null), layout);
+    }
+
+    public View getView() {
+        return mView;
+    }
+
+    public View get(int id) {
+        View view = mViews.get(id);
+        if (view == null) {
+            view = mView.findViewById(id);
+            mViews.put(id, view);
+        }
+        return view;
+    }
+
+    public TextView getText(int id) {
+        return (TextView) get(id);
+    }
+
+    // binds a user ID split by splitUserId() to the usual mainUserId/mainUserIdRest pair
+    public void setUserId(String userId[]) {
+        TextView mainUserId = getText(R.id.mainUserId);
+        TextView mainUserIdRest = getText(R.id.mainUserIdRest);
+        if (userId[0].length() == 0) {
+            mainUserId.setText(R.string.unknownUserId);
+        } else {
+            mainUserId.setText(userId[0]);
+        }
+        mainUserIdRest.setText(userId[1]);
+        mainUserIdRest.setVisibility(userId[1].length() == 0 ? View.GONE : View.VISIBLE);
+    }
+
+    // splits "Name (Comment) <email>" into the name and the rest, without a regex
+    public static String[] splitUserId(String userId) {
+        if (userId == null) {
+            return new String[] { "", "" };
+        }
+        int index = userId.indexOf(" <");
+        if (index == -1) {
+            return new String[] { userId, "" };
+        }
+        return new String[] { userId.substring(0, index), userId.substring(index + 1) };
+    }
+}
@@ -79,6 +79,14 @@ public class SelectPublicKeyListActivity extends BaseActivity {
         handleIntent(intent);
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mListAdapter != null) {
+            mListAdapter.cleanup();
+        }
+        super.onDestroy();
+    }
+
     private void handleIntent(Intent intent) {
         String searchString = null;
         if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
@@ -116,19 +124,8 @@ public class SelectPublicKeyListActivity extends BaseActivity {
         }
 
         mListAdapter = new SelectPublicKeyListAdapter(this, mList, searchString, selectedKeyIds);
+        // the adapter checks the selected keys once they are loaded
         mList.setAdapter(mListAdapter);
-
-        if (selectedKeyIds != null) {
-            for (int i = 0; i < mListAdapter.getCount(); ++i) {
-                long keyId = mListAdapter.getItemId(i);
-                for (int j = 0; j < selectedKeyIds.length; ++j) {
-                    if (keyId == selectedKeyIds[j]) {
-                        mList.setItemChecked(i, true);
-                        break;
-                    }
-                }
-            }
-        }
     }
 
     private void cancelClicked() {
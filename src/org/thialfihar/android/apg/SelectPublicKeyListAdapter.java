@@ -16,8 +16,9 @@
 
 package org.thialfihar.android.apg;
 
-import java.util.Date;
+import java.util.Vector;
 
+import org.thialfihar.android.apg.provider.Database;
 import org.thialfihar.android.apg.provider.KeyRings;
 import org.thialfihar.android.apg.provider.Keys;
 import org.thialfihar.android.apg.provider.UserIds;
@@ -41,19 +42,24 @@ public class SelectPublicKeyListAdapter extends BaseAdapter {
     protected ListView mParent;
     protected SQLiteDatabase mDatabase;
     protected Cursor mCursor;
+    protected AsyncQuery mQuery;
     protected String mSearchString;
     protected Activity mActivity;
+    // user IDs of the rows split into name and rest, filled in as rows get bound
+    protected String mUserIds[][] = new String[0][];
+    // master key IDs to check, taken from the list whenever a new cursor arrives
+    protected long mSelectedKeyIds[];
 
     public SelectPublicKeyListAdapter(Activity activity, ListView parent,
                                       String searchString, long selectedKeyIds[]) {
         mSearchString = searchString;
+        mSelectedKeyIds = selectedKeyIds;
 
         mActivity = activity;
         mParent = parent;
         mDatabase =  Apg.getDatabase().db();
         mInflater = (LayoutInflater) parent.getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        long now = new Date().getTime() / 1000;
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(KeyRings.TABLE_NAME + " INNER JOIN " + Keys.TABLE_NAME + " ON " +
                                     "(" + KeyRings.TABLE_NAME + "." + KeyRings._ID + " = " +
                                     Keys.TABLE_NAME + "." + Keys.KEY_RING_ID + " AND " +
@@ -77,59 +83,86 @@ public class SelectPublicKeyListAdapter extends BaseAdapter {
             inIdList += ")";
         }
 
+        String search = null;
         if (searchString != null && searchString.trim().length() > 0) {
-            String[] chunks = searchString.trim().split(" +");
-            qb.appendWhere("(EXISTS (SELECT tmp." + UserIds._ID + " FROM " +
-                                    UserIds.TABLE_NAME + " AS tmp WHERE " +
-                                    "tmp." + UserIds.KEY_ID + " = " +
-                                    Keys.TABLE_NAME + "." + Keys._ID);
-            for (int i = 0; i < chunks.length; ++i) {
-                qb.appendWhere(" AND tmp." + UserIds.USER_ID + " LIKE ");
-                qb.appendWhereEscapeString("%" + chunks[i] + "%");
-            }
-            qb.appendWhere("))");
+            search = Database.buildUserIdSearch(Keys.TABLE_NAME + "." + Keys._ID, searchString);
+        }
+        if (search != null) {
+            qb.appendWhere("(" + search + ")");
 
             if (inIdList != null) {
                 qb.appendWhere(" OR (" + inIdList + ")");
             }
         }
 
-        String orderBy = UserIds.TABLE_NAME + "." + UserIds.USER_ID + " ASC";
-        if (inIdList != null) {
-            orderBy = inIdList + " DESC, " + orderBy;
-        }
+        final String orderBy = (inIdList != null ? inIdList + " DESC, " : "") +
+                               UserIds.TABLE_NAME + "." + UserIds.USER_ID + " ASC";
+
+        mQuery = new AsyncQuery(activity, Apg.CONTENT_URI_PUBLIC_KEY_RINGS) {
+            @Override
+            protected Cursor query() {
+                // rings whose keys expired or became valid since they were saved
+                Apg.getDatabase().revalidateKeyRings();
+                return qb.query(mDatabase,
+                      new String[] {
+                          KeyRings.TABLE_NAME + "." + KeyRings._ID,           // 0
+                          KeyRings.TABLE_NAME + "." + KeyRings.MASTER_KEY_ID, // 1
+                          UserIds.TABLE_NAME + "." + UserIds.USER_ID,         // 2
+                          KeyRings.TABLE_NAME + "." + KeyRings.HAS_ENCRYPT_KEYS, // 3
+                          KeyRings.TABLE_NAME + "." + KeyRings.CAN_ENCRYPT,   // 4
+                      },
+                      KeyRings.TABLE_NAME + "." + KeyRings.TYPE + " = ?",
+                      new String[] { "" + Id.database.type_public },
+                      null, null, orderBy);
+            }
 
-        mCursor = qb.query(mDatabase,
-              new String[] {
-                  KeyRings.TABLE_NAME + "." + KeyRings._ID,           // 0
-                  KeyRings.TABLE_NAME + "." + KeyRings.MASTER_KEY_ID, // 1
-                  UserIds.TABLE_NAME + "." + UserIds.USER_ID,         // 2
-                  "(SELECT COUNT(tmp." + Keys._ID + ") FROM " + Keys.TABLE_NAME + " AS tmp WHERE " +
-                      "tmp." + Keys.KEY_RING_ID + " = " +
-                      KeyRings.TABLE_NAME + "." + KeyRings._ID + " AND " +
-                      "tmp." + Keys.IS_REVOKED + " = '0' AND " +
-                      "tmp." + Keys.CAN_ENCRYPT + " = '1')",          // 3
-                  "(SELECT COUNT(tmp." + Keys._ID + ") FROM " + Keys.TABLE_NAME + " AS tmp WHERE " +
-                      "tmp." + Keys.KEY_RING_ID + " = " +
-                      KeyRings.TABLE_NAME + "." + KeyRings._ID + " AND " +
-                      "tmp." + Keys.IS_REVOKED + " = '0' AND " +
-                      "tmp." + Keys.CAN_ENCRYPT + " = '1' AND " +
-                      "tmp." + Keys.CREATION + " <= '" + now + "' AND " +
-                      "(tmp." + Keys.EXPIRY + " IS NULL OR " +
-                       "tmp." + Keys.EXPIRY + " >= '" + now + "'))",  // 4
-              },
-              KeyRings.TABLE_NAME + "." + KeyRings.TYPE + " = ?",
-              new String[] { "" + Id.database.type_public },
-              null, null, orderBy);
-
-        activity.startManagingCursor(mCursor);
+            @Override
+            protected void onLoaded(Cursor cursor) {
+                changeCursor(cursor);
+            }
+        };
+        mQuery.load();
     }
 
     public void cleanup() {
+        mQuery.cancel();
         if (mCursor != null) {
-            mActivity.stopManagingCursor(mCursor);
             mCursor.close();
+            mCursor = null;
+        }
+    }
+
+    protected void changeCursor(Cursor cursor) {
+        if (mCursor != null) {
+            // keep the checked keys checked, their positions might change
+            Vector<Long> checked = new Vector<Long>();
+            for (int i = 0; i < mCursor.getCount(); ++i) {
+                if (mParent.isItemChecked(i)) {
+                    checked.add(getItemId(i));
+                }
+            }
+            mSelectedKeyIds = new long[checked.size()];
+            for (int i = 0; i < checked.size(); ++i) {
+                mSelectedKeyIds[i] = checked.get(i);
+            }
+            mCursor.close();
+        }
+
+        mCursor = cursor;
+        mUserIds = new String[getCount()][];
+        mParent.clearChoices();
+        if (mSelectedKeyIds != null) {
+            for (int i = 0; i < getCount(); ++i) {
+                long keyId = getItemId(i);
+                for (int j = 0; j < mSelectedKeyIds.length; ++j) {
+                    if (keyId == mSelectedKeyIds[j]) {
+                        mParent.setItemChecked(i, true);
+                        break;
+                    }
+                }
+            }
         }
+        notifyDataSetChanged();
     }
 
     @Override
@@ -144,7 +177,7 @@ public class SelectPublicKeyListAdapter extends BaseAdapter {
     }
 
     public int getCount() {
-        return mCursor.getCount();
+        return (mCursor == null ? 0 : mCursor.getCount());
     }
 
     public Object getItem(int position) {
@@ -160,35 +193,22 @@ public class SelectPublicKeyListAdapter extends BaseAdapter {
     public View getView(int position, View convertView, ViewGroup parent) {
         mCursor.moveToPosition(position);
 
-        View view = mInflater.inflate(R.layout.select_public_key_item, null);
-        boolean enabled = isEnabled(position);
-
-        TextView mainUserId = (TextView) view.findViewById(R.id.mainUserId);
-        mainUserId.setText(R.string.unknownUserId);
-        TextView mainUserIdRest = (TextView) view.findViewById(R.id.mainUserIdRest);
-        mainUserIdRest.setText("");
-        TextView keyId = (TextView) view.findViewById(R.id.keyId);
-        keyId.setText(R.string.noKey);
-        TextView status = (TextView) view.findViewById(R.id.status);
-        status.setText(R.string.unknownStatus);
-
-        String userId = mCursor.getString(2); // USER_ID
-        if (userId != null) {
-            String chunks[] = userId.split(" <", 2);
-            userId = chunks[0];
-            if (chunks.length > 1) {
-                mainUserIdRest.setText("<" + chunks[1]);
-            }
-            mainUserId.setText(userId);
+        RowViews row = RowViews.obtain(mInflater, R.layout.select_public_key_item, convertView);
+        boolean enabled = mCursor.getInt(4) > 0; // valid CAN_ENCRYPT
+
+        TextView mainUserId = row.getText(R.id.mainUserId);
+        TextView mainUserIdRest = row.getText(R.id.mainUserIdRest);
+        TextView keyId = row.getText(R.id.keyId);
+        TextView status = row.getText(R.id.status);
+
+        if (mUserIds[position] == null) {
+            mUserIds[position] = RowViews.splitUserId(mCursor.getString(2)); // USER_ID
         }
+        row.setUserId(mUserIds[position]);
 
         long masterKeyId = mCursor.getLong(1); // MASTER_KEY_ID
         keyId.setText(Apg.getSmallFingerPrint(masterKeyId));
 
-        if (mainUserIdRest.getText().length() == 0) {
-            mainUserIdRest.setVisibility(View.GONE);
-        }
-
         if (enabled) {
             status.setText(R.string.canEncrypt);
         } else {
@@ -202,7 +222,7 @@ public class SelectPublicKeyListAdapter extends BaseAdapter {
 
         status.setText(status.getText() + " ");
 
-        CheckBox selected = (CheckBox) view.findViewById(R.id.selected);
+        CheckBox selected = (CheckBox) row.get(R.id.selected);
 
         if (!enabled) {
             mParent.setItemChecked(position, false);
@@ -210,6 +230,7 @@ public class SelectPublicKeyListAdapter extends BaseAdapter {
 
         selected.setChecked(mParent.isItemChecked(position));
 
+        View view = row.getView();
         view.setEnabled(enabled);
         mainUserId.setEnabled(enabled);
         mainUserIdRest.setEnabled(enabled);
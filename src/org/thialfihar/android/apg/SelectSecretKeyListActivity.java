@@ -76,6 +76,14 @@ public class SelectSecretKeyListActivity extends BaseActivity {
         handleIntent(intent);
     }
 
+    @Override
+    protected void onDestroy() {
+        if (mListAdapter != null) {
+            mListAdapter.cleanup();
+        }
+        super.onDestroy();
+    }
+
     private void handleIntent(Intent intent) {
         String searchString = null;
         if (Intent.ACTION_SEARCH.equals(intent.getAction())) {
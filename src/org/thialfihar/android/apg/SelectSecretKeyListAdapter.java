@@ -1,7 +1,6 @@
 package org.thialfihar.android.apg;
 
-import java.util.Date;
-
+import org.thialfihar.android.apg.provider.Database;
 import org.thialfihar.android.apg.provider.KeyRings;
 import org.thialfihar.android.apg.provider.Keys;
 import org.thialfihar.android.apg.provider.UserIds;
@@ -23,8 +22,11 @@ public class SelectSecretKeyListAdapter extends BaseAdapter {
     protected ListView mParent;
     protected SQLiteDatabase mDatabase;
     protected Cursor mCursor;
+    protected AsyncQuery mQuery;
     protected String mSearchString;
     protected Activity mActivity;
+    // user IDs of the rows split into name and rest, filled in as rows get bound
+    protected String mUserIds[][] = new String[0][];
 
     public SelectSecretKeyListAdapter(Activity activity, ListView parent, String searchString) {
         mSearchString = searchString;
@@ -33,8 +35,7 @@ public class SelectSecretKeyListAdapter extends BaseAdapter {
         mParent = parent;
         mDatabase =  Apg.getDatabase().db();
         mInflater = (LayoutInflater) parent.getContext().getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        long now = new Date().getTime() / 1000;
-        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
         qb.setTables(KeyRings.TABLE_NAME + " INNER JOIN " + Keys.TABLE_NAME + " ON " +
                                     "(" + KeyRings.TABLE_NAME + "." + KeyRings._ID + " = " +
                                     Keys.TABLE_NAME + "." + Keys.KEY_RING_ID + " AND " +
@@ -46,51 +47,54 @@ public class SelectSecretKeyListAdapter extends BaseAdapter {
                                     UserIds.TABLE_NAME + "." + UserIds.RANK + " = '0') ");
 
         if (searchString != null && searchString.trim().length() > 0) {
-            String[] chunks = searchString.trim().split(" +");
-            qb.appendWhere("EXISTS (SELECT tmp." + UserIds._ID + " FROM " +
-                                    UserIds.TABLE_NAME + " AS tmp WHERE " +
-                                    "tmp." + UserIds.KEY_ID + " = " +
-                                    Keys.TABLE_NAME + "." + Keys._ID);
-            for (int i = 0; i < chunks.length; ++i) {
-                qb.appendWhere(" AND tmp." + UserIds.USER_ID + " LIKE ");
-                qb.appendWhereEscapeString("%" + chunks[i] + "%");
-            }
-            qb.appendWhere(")");
+            String search = Database.buildUserIdSearch(Keys.TABLE_NAME + "." + Keys._ID,
+                                                       searchString);
+            qb.appendWhere(search);
         }
 
-        mCursor = qb.query(mDatabase,
-              new String[] {
-                  KeyRings.TABLE_NAME + "." + KeyRings._ID,           // 0
-                  KeyRings.TABLE_NAME + "." + KeyRings.MASTER_KEY_ID, // 1
-                  UserIds.TABLE_NAME + "." + UserIds.USER_ID,         // 2
-                  "(SELECT COUNT(tmp." + Keys._ID + ") FROM " + Keys.TABLE_NAME + " AS tmp WHERE " +
-                      "tmp." + Keys.KEY_RING_ID + " = " +
-                      KeyRings.TABLE_NAME + "." + KeyRings._ID + " AND " +
-                      "tmp." + Keys.IS_REVOKED + " = '0' AND " +
-                      "tmp." + Keys.CAN_SIGN + " = '1')",             // 3,
-                  "(SELECT COUNT(tmp." + Keys._ID + ") FROM " + Keys.TABLE_NAME + " AS tmp WHERE " +
-                      "tmp." + Keys.KEY_RING_ID + " = " +
-                      KeyRings.TABLE_NAME + "." + KeyRings._ID + " AND " +
-                      "tmp." + Keys.IS_REVOKED + " = '0' AND " +
-                      "tmp." + Keys.CAN_SIGN + " = '1' AND " +
-                      "tmp." + Keys.CREATION + " <= '" + now + "' AND " +
-                      "(tmp." + Keys.EXPIRY + " IS NULL OR " +
-                       "tmp." + Keys.EXPIRY + " >= '" + now + "'))",  // 4
-              },
-              KeyRings.TABLE_NAME + "." + KeyRings.TYPE + " = ?",
-              new String[] { "" + Id.database.type_secret },
-              null, null, UserIds.TABLE_NAME + "." + UserIds.USER_ID + " ASC");
-
-        activity.startManagingCursor(mCursor);
+        mQuery = new AsyncQuery(activity, Apg.CONTENT_URI_SECRET_KEY_RINGS) {
+            @Override
+            protected Cursor query() {
+                // rings whose keys expired or became valid since they were saved
+                Apg.getDatabase().revalidateKeyRings();
+                return qb.query(mDatabase,
+                      new String[] {
+                          KeyRings.TABLE_NAME + "." + KeyRings._ID,           // 0
+                          KeyRings.TABLE_NAME + "." + KeyRings.MASTER_KEY_ID, // 1
+                          UserIds.TABLE_NAME + "." + UserIds.USER_ID,         // 2
+                          KeyRings.TABLE_NAME + "." + KeyRings.HAS_SIGN_KEYS, // 3
+                          KeyRings.TABLE_NAME + "." + KeyRings.CAN_SIGN,      // 4
+                      },
+                      KeyRings.TABLE_NAME + "." + KeyRings.TYPE + " = ?",
+                      new String[] { "" + Id.database.type_secret },
+                      null, null, UserIds.TABLE_NAME + "." + UserIds.USER_ID + " ASC");
+            }
+
+            @Override
+            protected void onLoaded(Cursor cursor) {
+                changeCursor(cursor);
+            }
+        };
+        mQuery.load();
     }
 
     public void cleanup() {
+        mQuery.cancel();
         if (mCursor != null) {
-            mActivity.stopManagingCursor(mCursor);
             mCursor.close();
+            mCursor = null;
         }
     }
 
+    protected void changeCursor(Cursor cursor) {
+        if (mCursor != null) {
+            mCursor.close();
+        }
+        mCursor = cursor;
+        mUserIds = new String[getCount()][];
+        notifyDataSetChanged();
+    }
+
     @Override
     public boolean isEnabled(int position) {
         mCursor.moveToPosition(position);
@@ -103,7 +107,7 @@ public class SelectSecretKeyListAdapter extends BaseAdapter {
     }
 
     public int getCount() {
-        return mCursor.getCount();
+        return (mCursor == null ? 0 : mCursor.getCount());
     }
 
     public Object getItem(int position) {
@@ -119,35 +123,22 @@ public class SelectSecretKeyListAdapter extends BaseAdapter {
     public View getView(int position, View convertView, ViewGroup parent) {
         mCursor.moveToPosition(position);
 
-        View view = mInflater.inflate(R.layout.select_secret_key_item, null);
-        boolean enabled = isEnabled(position);
-
-        TextView mainUserId = (TextView) view.findViewById(R.id.mainUserId);
-        mainUserId.setText(R.string.unknownUserId);
-        TextView mainUserIdRest = (TextView) view.findViewById(R.id.mainUserIdRest);
-        mainUserIdRest.setText("");
-        TextView keyId = (TextView) view.findViewById(R.id.keyId);
-        keyId.setText(R.string.noKey);
-        TextView status = (TextView) view.findViewById(R.id.status);
-        status.setText(R.string.unknownStatus);
-
-        String userId = mCursor.getString(2); // USER_ID
-        if (userId != null) {
-            String chunks[] = userId.split(" <", 2);
-            userId = chunks[0];
-            if (chunks.length > 1) {
-                mainUserIdRest.setText("<" + chunks[1]);
-            }
-            mainUserId.setText(userId);
+        RowViews row = RowViews.obtain(mInflater, R.layout.select_secret_key_item, convertView);
+        boolean enabled = mCursor.getInt(4) > 0; // valid CAN_SIGN
+
+        TextView mainUserId = row.getText(R.id.mainUserId);
+        TextView mainUserIdRest = row.getText(R.id.mainUserIdRest);
+        TextView keyId = row.getText(R.id.keyId);
+        TextView status = row.getText(R.id.status);
+
+        if (mUserIds[position] == null) {
+            mUserIds[position] = RowViews.splitUserId(mCursor.getString(2)); // USER_ID
         }
+        row.setUserId(mUserIds[position]);
 
         long masterKeyId = mCursor.getLong(1); // MASTER_KEY_ID
         keyId.setText(Apg.getSmallFingerPrint(masterKeyId));
 
-        if (mainUserIdRest.getText().length() == 0) {
-            mainUserIdRest.setVisibility(View.GONE);
-        }
-
         if (enabled) {
             status.setText(R.string.canSign);
         } else {
@@ -161,6 +152,7 @@ public class SelectSecretKeyListAdapter extends BaseAdapter {
 
         status.setText(status.getText() + " ");
 
+        View view = row.getView();
         view.setEnabled(enabled);
         mainUserId.setEnabled(enabled);
         mainUserIdRest.setEnabled(enabled);
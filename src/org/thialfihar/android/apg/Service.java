@@ -1,6 +1,12 @@
 package org.thialfihar.android.apg;
 
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
@@ -9,6 +15,8 @@ public class Service extends android.app.Service {
     private final IBinder mBinder = new LocalBinder();
 
     public static final String EXTRA_TTL = "ttl";
+    public static final String EXTRA_REFRESH_KEYS = "refreshKeys";
+    public static final String EXTRA_CACHE_PRIVATE_KEYS = "cachePrivateKeys";
 
     private int mPassPhraseCacheTtl = 15;
     private Handler mCacheHandler = new Handler();
@@ -32,18 +40,46 @@ public class Service extends android.app.Service {
         }
     };
 
+    private boolean mRefreshKeys = false;
+    private KeyRefresher mKeyRefresher = null;
+    private ExecutorService mRefreshExecutor = null;
+    private Runnable mRefreshTask = new Runnable() {
+        public void run() {
+            final KeyRefresher refresher = mKeyRefresher;
+            mRefreshExecutor.execute(new Runnable() {
+                public void run() {
+                    refresher.refresh();
+                }
+            });
+            mCacheHandler.postDelayed(this, mKeyRefresher.getNextDelay());
+        }
+    };
+
+    // unlocked keys don't survive the screen going off
+    private BroadcastReceiver mScreenOffReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Apg.getPassPhraseCache().clearPrivateKeys();
+        }
+    };
+
     static private boolean mIsRunning = false;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
+        registerReceiver(mScreenOffReceiver, new IntentFilter(Intent.ACTION_SCREEN_OFF));
         mIsRunning = true;
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
+        stopKeyRefresh();
+        unregisterReceiver(mScreenOffReceiver);
+        // without the service nothing would expire them
+        Apg.getPassPhraseCache().clearPrivateKeys();
         mIsRunning = false;
     }
 
@@ -53,12 +89,46 @@ public class Service extends android.app.Service {
 
         if (intent != null) {
             mPassPhraseCacheTtl = intent.getIntExtra(EXTRA_TTL, 15);
+            mRefreshKeys = intent.getBooleanExtra(EXTRA_REFRESH_KEYS, false);
+            Apg.getPassPhraseCache().setCachePrivateKeys(
+                    intent.getBooleanExtra(EXTRA_CACHE_PRIVATE_KEYS, false));
         }
         if (mPassPhraseCacheTtl < 15) {
             mPassPhraseCacheTtl = 15;
         }
         mCacheHandler.removeCallbacks(mCacheTask);
         mCacheHandler.postDelayed(mCacheTask, 1000);
+
+        if (mRefreshKeys) {
+            startKeyRefresh();
+        } else {
+            stopKeyRefresh();
+        }
+    }
+
+    // every activity restarts the service, so a running schedule is left alone
+    private void startKeyRefresh() {
+        if (mKeyRefresher != null) {
+            return;
+        }
+        mKeyRefresher = new KeyRefresher(getApplicationContext());
+        mRefreshExecutor = Executors.newSingleThreadExecutor();
+        mCacheHandler.postDelayed(mRefreshTask, mKeyRefresher.getNextDelay());
+    }
+
+    private void stopKeyRefresh() {
+        if (mKeyRefresher == null) {
+            return;
+        }
+        mCacheHandler.removeCallbacks(mRefreshTask);
+        // a run in progress finishes its batch
+        mRefreshExecutor.shutdown();
+        mRefreshExecutor = null;
+        mKeyRefresher = null;
+    }
+
+    public KeyRefresher getKeyRefresher() {
+        return mKeyRefresher;
     }
 
     static public boolean isRunning() {
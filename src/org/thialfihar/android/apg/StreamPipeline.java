@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.SignatureException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Reads an input stream on its own thread into a small ring of reusable buffers, so the
+// consumer can compress and encrypt one chunk while the next one is being read. If a hasher
+// is given, every chunk is also fed to it on a third thread, in order.
+public class StreamPipeline {
+    public interface Hasher {
+        void update(byte[] buffer, int offset, int length) throws SignatureException;
+    }
+
+    public static class Chunk {
+        public final byte[] data;
+        public int length;
+        private final AtomicInteger mUsers = new AtomicInteger(0);
+
+        public Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+    public static final int DEFAULT_NUM_CHUNKS = 4;
+
+    private static final Chunk END = new Chunk(0);
+
+    private final InputStream mIn;
+    private final Hasher mHasher;
+    private final ArrayBlockingQueue<Chunk> mFree;
+    // one more slot than there are chunks, so END always fits
+    private final ArrayBlockingQueue<Chunk> mFilled;
+    private final ArrayBlockingQueue<Chunk> mToHash;
+
+    private Thread mReader = null;
+    private Thread mHashThread = null;
+    private volatile IOException mReadError = null;
+    private volatile SignatureException mHashError = null;
+
+    public StreamPipeline(InputStream in, Hasher hasher) {
+        this(in, hasher, DEFAULT_CHUNK_SIZE, DEFAULT_NUM_CHUNKS);
+    }
+
+    public StreamPipeline(InputStream in, Hasher hasher, int chunkSize, int numChunks) {
+        mIn = in;
+        mHasher = hasher;
+        mFree = new ArrayBlockingQueue<Chunk>(numChunks);
+        mFilled = new ArrayBlockingQueue<Chunk>(numChunks + 1);
+        mToHash = new ArrayBlockingQueue<Chunk>(numChunks + 1);
+        for (int i = 0; i < numChunks; ++i) {
+            mFree.add(new Chunk(chunkSize));
+        }
+    }
+
+    public void start() {
+        mReader = new Thread(new Runnable() {
+            public void run() {
+                read();
+            }
+        }, "apg-pipeline-reader");
+        mReader.setDaemon(true);
+        mReader.start();
+
+        if (mHasher != null) {
+            mHashThread = new Thread(new Runnable() {
+                public void run() {
+                    hash();
+                }
+            }, "apg-pipeline-hasher");
+            mHashThread.setDaemon(true);
+            mHashThread.start();
+        }
+    }
+
+    private void read() {
+        try {
+            while (true) {
+                Chunk chunk = mFree.take();
+                int n = readFully(chunk.data);
+                if (n <= 0) {
+                    break;
+                }
+                chunk.length = n;
+                chunk.mUsers.set(mHasher == null ? 1 : 2);
+                if (mHasher != null) {
+                    mToHash.put(chunk);
+                }
+                mFilled.put(chunk);
+                if (n < chunk.data.length) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            mReadError = e;
+        } catch (InterruptedException e) {
+            // cancelled by close()
+        } finally {
+            mFilled.offer(END);
+            mToHash.offer(END);
+        }
+    }
+
+    private int readFully(byte[] buffer) throws IOException {
+        int done = 0;
+        while (done < buffer.length) {
+            int n = mIn.read(buffer, done, buffer.length - done);
+            if (n <= 0) {
+                break;
+            }
+            done += n;
+        }
+        return done;
+    }
+
+    private void hash() {
+        try {
+            while (true) {
+                Chunk chunk = mToHash.take();
+                if (chunk == END) {
+                    break;
+                }
+                // keep draining after an error, the reader would stall otherwise
+                if (mHashError == null) {
+                    try {
+                        mHasher.update(chunk.data, 0, chunk.length);
+                    } catch (SignatureException e) {
+                        mHashError = e;
+                    }
+                }
+                release(chunk);
+            }
+        } catch (InterruptedException e) {
+            // cancelled by close()
+        }
+    }
+
+    // next chunk in input order, or null once the input is exhausted
+    public Chunk take() throws IOException {
+        Chunk chunk;
+        try {
+            chunk = mFilled.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("interrupted while waiting for input");
+        }
+        if (chunk == END) {
+            mFilled.offer(END);
+            if (mReadError != null) {
+                throw mReadError;
+            }
+            return null;
+        }
+        return chunk;
+    }
+
+    // hand a chunk from take() back once it has been written
+    public void release(Chunk chunk) {
+        if (chunk.mUsers.decrementAndGet() == 0) {
+            mFree.offer(chunk);
+        }
+    }
+
+    // waits for the hasher to catch up, the hash is complete when this returns
+    public void finish() throws IOException, SignatureException {
+        if (mHashThread != null) {
+            try {
+                mHashThread.join();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("interrupted while waiting for the hasher");
+            }
+        }
+        if (mReadError != null) {
+            throw mReadError;
+        }
+        if (mHashError != null) {
+            throw mHashError;
+        }
+    }
+
+    // stops the threads if the consumer bails out early, safe to call more than once
+    public void close() {
+        if (mReader != null) {
+            mReader.interrupt();
+        }
+        if (mHashThread != null) {
+            mHashThread.interrupt();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg;
+
+import java.security.Provider;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Vector;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle2.jce.provider.BouncyCastleProvider;
+
+import android.util.Log;
+
+// BouncyCastle for everything, except for the symmetric ciphers of the preferred algorithms,
+// which come from whatever installed provider turned out to be the fastest while producing
+// the same results as BouncyCastle. The platform's ciphers are often native code and several
+// times faster than the pure Java ones.
+//
+// Only the CFB mode of integrity protected packets is compared, messages without MDC use
+// BouncyCastle's OpenPGPCFB, so they get a plain BouncyCastleProvider, see get().
+public class SymmetricProvider extends Provider {
+    private static final long serialVersionUID = 1L;
+
+    // Apg.PREFERRED_SYMMETRIC_ALGORITHMS (AES-256, AES-192, AES-128, CAST5, TripleDES) as
+    // JCE names, key and block sizes
+    private static final String[] NAMES = new String[] {
+            "AES", "AES", "AES", "CAST5", "DESede" };
+    private static final int[] KEY_SIZES = new int[] { 32, 24, 16, 16, 24 };
+    private static final int[] BLOCK_SIZES = new int[] { 16, 16, 16, 8, 8 };
+
+    private static final int BENCHMARK_SIZE = 64 << 10;
+    private static final int BENCHMARK_ROUNDS = 8;
+
+    private static SymmetricProvider mInstance = null;
+
+    private final Provider mFallback = new BouncyCastleProvider();
+    // by upper case JCE name
+    private final HashMap<String, Provider> mCipherProviders = new HashMap<String, Provider>();
+    // bytes per second of the chosen ones
+    private final HashMap<String, Long> mSpeeds = new HashMap<String, Long>();
+    private long mSelectionTime = 0;
+
+    private SymmetricProvider() {
+        super("APG", 1.0, "BouncyCastle with the fastest available symmetric ciphers");
+    }
+
+    // the first call benchmarks the providers, Apg.initialize() gets that done in the background
+    public static synchronized SymmetricProvider getInstance() {
+        if (mInstance == null) {
+            SymmetricProvider provider = new SymmetricProvider();
+            provider.select();
+            Log.i("apg.provider", provider.toString());
+            mInstance = provider;
+        }
+        return mInstance;
+    }
+
+    // the provider for an encrypted data packet
+    public static Provider get(boolean integrityProtected) {
+        if (integrityProtected) {
+            return getInstance();
+        }
+        return new BouncyCastleProvider();
+    }
+
+    @Override
+    public synchronized Service getService(String type, String algorithm) {
+        if (type.equalsIgnoreCase("Cipher")) {
+            int slash = algorithm.indexOf('/');
+            String name = (slash == -1 ? algorithm : algorithm.substring(0, slash));
+            Provider provider = mCipherProviders.get(name.toUpperCase());
+            if (provider != null) {
+                // null for a full transformation lets Cipher try the bare name next and set
+                // mode and padding on that
+                return provider.getService(type, algorithm);
+            }
+        }
+        return mFallback.getService(type, algorithm);
+    }
+
+    // the provider chosen for a JCE cipher name like "AES"
+    public String getProviderName(String cipherName) {
+        Provider provider = mCipherProviders.get(cipherName.toUpperCase());
+        if (provider == null) {
+            provider = mFallback;
+        }
+        return provider.getName();
+    }
+
+    private void select() {
+        long startTime = System.currentTimeMillis();
+        Vector<Provider> candidates = new Vector<Provider>();
+        candidates.add(mFallback);
+        for (Provider provider : Security.getProviders()) {
+            if (!provider.getName().equals(mFallback.getName())) {
+                candidates.add(provider);
+            }
+        }
+
+        HashMap<String, Boolean> done = new HashMap<String, Boolean>();
+        for (String name : NAMES) {
+            if (done.containsKey(name)) {
+                continue;
+            }
+            done.put(name, true);
+
+            Provider best = mFallback;
+            long bestSpeed = 0;
+            for (Provider provider : candidates) {
+                if (!isCorrect(provider, name)) {
+                    continue;
+                }
+                long speed = measure(provider, name);
+                if (speed > bestSpeed) {
+                    best = provider;
+                    bestSpeed = speed;
+                }
+            }
+            if (best != mFallback) {
+                mCipherProviders.put(name.toUpperCase(), best);
+            }
+            mSpeeds.put(name, bestSpeed);
+        }
+        mSelectionTime = System.currentTimeMillis() - startTime;
+    }
+
+    private static Cipher getCipher(Provider provider, String name, int mode, byte key[],
+                                    byte iv[]) throws Exception {
+        Cipher cipher = Cipher.getInstance(name + "/CFB/NoPadding", provider);
+        cipher.init(mode, new SecretKeySpec(key, name), new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    // same output as BouncyCastle for every key size it's used with, fed in odd pieces the way
+    // the PGP streams do it
+    private boolean isCorrect(Provider provider, String name) {
+        Random random = new Random(name.hashCode());
+        try {
+            for (int i = 0; i < NAMES.length; ++i) {
+                if (!NAMES[i].equals(name)) {
+                    continue;
+                }
+                byte key[] = new byte[KEY_SIZES[i]];
+                random.nextBytes(key);
+                byte iv[] = new byte[BLOCK_SIZES[i]];
+                random.nextBytes(iv);
+                byte plain[] = new byte[4099];
+                random.nextBytes(plain);
+                byte expected[] = getCipher(mFallback, name, Cipher.ENCRYPT_MODE, key, iv)
+                        .doFinal(plain);
+
+                Cipher encrypt = getCipher(provider, name, Cipher.ENCRYPT_MODE, key, iv);
+                byte encrypted[] = crypt(encrypt, plain);
+                Cipher decrypt = getCipher(provider, name, Cipher.DECRYPT_MODE, key, iv);
+                if (!Arrays.equals(encrypted, expected) ||
+                    !Arrays.equals(crypt(decrypt, encrypted), plain)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            // doesn't have it, or not with this mode or key size
+            return false;
+        }
+    }
+
+    private static byte[] crypt(Cipher cipher, byte data[]) throws Exception {
+        byte out[] = new byte[data.length];
+        int done = 0;
+        int offset = 0;
+        int piece = 1;
+        while (offset < data.length) {
+            int length = Math.min(piece, data.length - offset);
+            done += cipher.update(data, offset, length, out, done);
+            offset += length;
+            piece = piece * 3 + 1;
+        }
+        done += cipher.doFinal(out, done);
+        return done == data.length ? out : null;
+    }
+
+    // bytes per second, 0 if it fails
+    private static long measure(Provider provider, String name) {
+        try {
+            int index = Arrays.asList(NAMES).indexOf(name);
+            Cipher cipher = getCipher(provider, name, Cipher.ENCRYPT_MODE,
+                                      new byte[KEY_SIZES[index]], new byte[BLOCK_SIZES[index]]);
+            byte buffer[] = new byte[BENCHMARK_SIZE];
+            byte out[] = new byte[BENCHMARK_SIZE];
+            // one round to warm up
+            cipher.update(buffer, 0, buffer.length, out, 0);
+            long startTime = System.nanoTime();
+            for (int i = 0; i < BENCHMARK_ROUNDS; ++i) {
+                cipher.update(buffer, 0, buffer.length, out, 0);
+            }
+            long time = Math.max(1, System.nanoTime() - startTime);
+            return (long) BENCHMARK_SIZE * BENCHMARK_ROUNDS * 1000000000L / time;
+        } catch (Exception e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder result = new StringBuilder("SymmetricProvider(");
+        HashMap<String, Boolean> done = new HashMap<String, Boolean>();
+        for (String name : NAMES) {
+            if (done.containsKey(name)) {
+                continue;
+            }
+            done.put(name, true);
+            result.append(name + ": " + getProviderName(name) + " " + mSpeeds.get(name) +
+                          " bytes/s, ");
+        }
+        result.append("selected in " + mSelectionTime + " ms)");
+        return result.toString();
+    }
+}
@@ -26,7 +26,6 @@ import android.content.ContentProvider;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
-import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.ParcelFileDescriptor;
@@ -248,28 +247,10 @@ public class DataProvider extends ContentProvider {
                                   UserIds.TABLE_NAME + "." + UserIds.USER_ID);
 
                 String emails = uri.getPathSegments().get(3);
-                String chunks[] = emails.split(" *, *");
-                boolean gotCondition = false;
-                String emailWhere = "";
-                for (int i = 0; i < chunks.length; ++i) {
-                    if (chunks[i].length() == 0) {
-                        continue;
-                    }
-                    if (i != 0) {
-                        emailWhere += " OR ";
-                    }
-                    emailWhere += "tmp." + UserIds.USER_ID + " LIKE ";
-                    // match '*<email>', so it has to be at the *end* of the user id
-                    emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
-                    gotCondition = true;
-                }
-
-                if (gotCondition) {
-                    qb.appendWhere(" AND EXISTS (SELECT tmp." + UserIds._ID +
-                                     " FROM " + UserIds.TABLE_NAME +
-                                       " AS tmp WHERE tmp." + UserIds.KEY_ID + " = " +
-                                           Keys.TABLE_NAME + "." + Keys._ID +
-                                       " AND (" + emailWhere + "))");
+                String emailWhere = Database.buildEmailSearch(Keys.TABLE_NAME + "." + Keys._ID,
+                                                              emails.split(" *, *"));
+                if (emailWhere != null) {
+                    qb.appendWhere(" AND " + emailWhere);
                 }
 
                 break;
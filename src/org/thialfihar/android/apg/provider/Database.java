@@ -1,9 +1,14 @@
 package org.thialfihar.android.apg.provider;
 
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
 import java.util.Vector;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.bouncycastle2.openpgp.PGPException;
 import org.bouncycastle2.openpgp.PGPPublicKey;
@@ -14,11 +19,16 @@ import org.thialfihar.android.apg.Apg;
 import org.thialfihar.android.apg.Id;
 import org.thialfihar.android.apg.utils.IterableIterator;
 
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.BaseColumns;
 import android.util.Log;
 
 public class Database extends SQLiteOpenHelper {
@@ -31,7 +41,7 @@ public class Database extends SQLiteOpenHelper {
     }
 
     private static final String DATABASE_NAME = "apg";
-    private static final int DATABASE_VERSION = 2;
+    private static final int DATABASE_VERSION = 7;
 
     public static final String AUTHORITY = "org.thialfihar.android.apg.database";
 
@@ -41,6 +51,47 @@ public class Database extends SQLiteOpenHelper {
 
     private SQLiteDatabase mDb = null;
     private int mStatus = 0;
+    // the ring data insertOrUpdateKeyRing() replaced, null if it didn't replace any
+    private byte mReplacedData[] = null;
+
+    // precompiled statements for saveKeyRing, see prepareStatements()
+    private SQLiteDatabase mStatementsDb = null;
+    private SQLiteStatement mFindKeyStatement = null;
+    private SQLiteStatement mInsertKeyStatement = null;
+    private SQLiteStatement mUpdateKeyStatement = null;
+    private SQLiteStatement mFindUserIdStatement = null;
+    private SQLiteStatement mInsertUserIdStatement = null;
+    private SQLiteStatement mUpdateUserIdStatement = null;
+    private SQLiteStatement mInsertKeyRingStatement = null;
+    private SQLiteStatement mUpdateKeyRingStatement = null;
+    private SQLiteStatement mInsertTokenStatement = null;
+    private SQLiteStatement mUpdateValidityStatement = null;
+
+    private ContentResolver mContentResolver;
+
+    private static final Pattern USER_ID_WORD = Pattern.compile("[\\p{L}\\p{N}]+");
+    private static final Pattern USER_ID_EMAIL = Pattern.compile("[^\\s<>@]+@[^\\s<>@]+");
+
+    private static final String KEY_RING_COLUMNS[] = new String[] {
+        KeyRings.MASTER_KEY_ID, KeyRings.TYPE, KeyRings.KEY_RING_DATA,
+    };
+
+    // Keys.RANK shares its column with Keys.KEY_DATA, so only the latter is listed, the
+    // values will have the rank in it
+    private static final String KEY_COLUMNS[] = new String[] {
+        Keys.KEY_ID, Keys.TYPE, Keys.IS_MASTER_KEY, Keys.ALGORITHM, Keys.KEY_SIZE,
+        Keys.CAN_SIGN, Keys.CAN_ENCRYPT, Keys.IS_REVOKED, Keys.CREATION, Keys.EXPIRY,
+        Keys.KEY_RING_ID, Keys.KEY_DATA, Keys.FINGERPRINT,
+    };
+
+    private static final String USER_ID_COLUMNS[] = new String[] {
+        UserIds.KEY_ID, UserIds.USER_ID, UserIds.RANK,
+    };
+
+    private KeyRingCache<PGPPublicKeyRing> mPublicKeyRingCache =
+            new KeyRingCache<PGPPublicKeyRing>();
+    private KeyRingCache<PGPSecretKeyRing> mSecretKeyRingCache =
+            new KeyRingCache<PGPSecretKeyRing>();
 
     static {
         sKeyRingsProjection = new HashMap<String, String>();
@@ -74,6 +125,7 @@ public class Database extends SQLiteOpenHelper {
 
     public Database(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        mContentResolver = context.getContentResolver();
         // force upgrade to test things
         //onUpgrade(getWritableDatabase(), 1, 2);
         mDb = getWritableDatabase();
@@ -81,6 +133,7 @@ public class Database extends SQLiteOpenHelper {
 
     @Override
     protected void finalize() throws Throwable {
+        closeStatements();
         mDb.close();
         super.finalize();
     }
@@ -92,7 +145,12 @@ public class Database extends SQLiteOpenHelper {
                    KeyRings.MASTER_KEY_ID + " " + KeyRings.MASTER_KEY_ID_type + ", " +
                    KeyRings.TYPE + " " + KeyRings.TYPE_type + ", " +
                    KeyRings.WHO_ID + " " + KeyRings.WHO_ID_type + ", " +
-                   KeyRings.KEY_RING_DATA + " " + KeyRings.KEY_RING_DATA_type + ");");
+                   KeyRings.KEY_RING_DATA + " " + KeyRings.KEY_RING_DATA_type + ", " +
+                   KeyRings.HAS_ENCRYPT_KEYS + " " + KeyRings.HAS_ENCRYPT_KEYS_type + ", " +
+                   KeyRings.CAN_ENCRYPT + " " + KeyRings.CAN_ENCRYPT_type + ", " +
+                   KeyRings.HAS_SIGN_KEYS + " " + KeyRings.HAS_SIGN_KEYS_type + ", " +
+                   KeyRings.CAN_SIGN + " " + KeyRings.CAN_SIGN_type + ", " +
+                   KeyRings.VALIDITY_CHANGE + " " + KeyRings.VALIDITY_CHANGE_type + ");");
 
         db.execSQL("CREATE TABLE " + Keys.TABLE_NAME + " (" +
                    Keys._ID + " " + Keys._ID_type + "," +
@@ -108,7 +166,8 @@ public class Database extends SQLiteOpenHelper {
                    Keys.EXPIRY + " " + Keys.EXPIRY_type + ", " +
                    Keys.KEY_RING_ID + " " + Keys.KEY_RING_ID_type + ", " +
                    Keys.KEY_DATA + " " + Keys.KEY_DATA_type +
-                   Keys.RANK + " " + Keys.RANK_type + ");");
+                   Keys.RANK + " " + Keys.RANK_type + ", " +
+                   Keys.FINGERPRINT + " " + Keys.FINGERPRINT_type + ");");
 
         db.execSQL("CREATE TABLE " + UserIds.TABLE_NAME + " (" +
                    UserIds._ID + " " + UserIds._ID_type + "," +
@@ -119,6 +178,151 @@ public class Database extends SQLiteOpenHelper {
         db.execSQL("CREATE TABLE " + Accounts.TABLE_NAME + " (" +
                    Accounts._ID + " " + Accounts._ID_type + "," +
                    Accounts.NAME + " " + Accounts.NAME_type + ");");
+
+        createIndices(db);
+        createUserIdTokens(db);
+        createKeyRingValidity(db);
+        createKeyRingRefresh(db);
+    }
+
+    // adds whatever columns are missing, so it works on any older version of the table
+    private static void addMissingColumns(SQLiteDatabase db, String table, String columns[][]) {
+        Vector<String> existing = new Vector<String>();
+        Cursor c = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        if (c != null && c.moveToFirst()) {
+            do {
+                existing.add(c.getString(1));
+            } while (c.moveToNext());
+        }
+        if (c != null) {
+            c.close();
+        }
+
+        for (String column[] : columns) {
+            if (!existing.contains(column[0])) {
+                db.execSQL("ALTER TABLE " + table + " ADD COLUMN " +
+                           column[0] + " " + column[1] + ";");
+            }
+        }
+    }
+
+    private void createKeyRingValidity(SQLiteDatabase db) {
+        addMissingColumns(db, KeyRings.TABLE_NAME, new String[][] {
+            { KeyRings.HAS_ENCRYPT_KEYS, KeyRings.HAS_ENCRYPT_KEYS_type },
+            { KeyRings.CAN_ENCRYPT, KeyRings.CAN_ENCRYPT_type },
+            { KeyRings.HAS_SIGN_KEYS, KeyRings.HAS_SIGN_KEYS_type },
+            { KeyRings.CAN_SIGN, KeyRings.CAN_SIGN_type },
+            { KeyRings.VALIDITY_CHANGE, KeyRings.VALIDITY_CHANGE_type },
+        });
+
+        // revalidateKeyRings() looks for rings whose validity changed since the last time
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + KeyRings.TABLE_NAME + "_validity_change ON " +
+                   KeyRings.TABLE_NAME + " (" + KeyRings.VALIDITY_CHANGE + ");");
+    }
+
+    private static void createKeyRingRefresh(SQLiteDatabase db) {
+        addMissingColumns(db, KeyRings.TABLE_NAME, new String[][] {
+            { KeyRings.LAST_REFRESHED, KeyRings.LAST_REFRESHED_type },
+        });
+
+        // getStaleKeyRings()
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + KeyRings.TABLE_NAME + "_type_last_refreshed ON " +
+                   KeyRings.TABLE_NAME + " (" +
+                   KeyRings.TYPE + ", " + KeyRings.LAST_REFRESHED + ");");
+    }
+
+    // ?1 is the current time in seconds, the condition may use it as well
+    private static String buildValidityUpdate(String where) {
+        String ofRing = " FROM " + Keys.TABLE_NAME + " WHERE " +
+                        Keys.KEY_RING_ID + " = " + KeyRings.TABLE_NAME + "." + KeyRings._ID +
+                        " AND " + Keys.IS_REVOKED + " = 0";
+        String validNow = " AND " + Keys.CREATION + " <= ?1 AND (" +
+                          Keys.EXPIRY + " IS NULL OR " + Keys.EXPIRY + " >= ?1)";
+        return "UPDATE " + KeyRings.TABLE_NAME + " SET " +
+               KeyRings.HAS_ENCRYPT_KEYS + " = EXISTS (SELECT 1" + ofRing +
+                   " AND " + Keys.CAN_ENCRYPT + " = 1), " +
+               KeyRings.CAN_ENCRYPT + " = EXISTS (SELECT 1" + ofRing +
+                   " AND " + Keys.CAN_ENCRYPT + " = 1" + validNow + "), " +
+               KeyRings.HAS_SIGN_KEYS + " = EXISTS (SELECT 1" + ofRing +
+                   " AND " + Keys.CAN_SIGN + " = 1), " +
+               KeyRings.CAN_SIGN + " = EXISTS (SELECT 1" + ofRing +
+                   " AND " + Keys.CAN_SIGN + " = 1" + validNow + "), " +
+               // a key becomes valid at its creation and invalid right after its expiry
+               KeyRings.VALIDITY_CHANGE + " = (SELECT MIN(CASE " +
+                   "WHEN " + Keys.CREATION + " > ?1 THEN " + Keys.CREATION + " " +
+                   "WHEN " + Keys.EXPIRY + " >= ?1 THEN " + Keys.EXPIRY + " + 1 END)" +
+                   ofRing + ") " +
+               "WHERE " + where;
+    }
+
+    // brings CAN_ENCRYPT and CAN_SIGN up to date for rings with keys that expired or became
+    // valid since they were saved, cheap if there's nothing to do
+    public synchronized void revalidateKeyRings() {
+        SQLiteStatement statement =
+                mDb.compileStatement(buildValidityUpdate(KeyRings.VALIDITY_CHANGE + " <= ?1"));
+        try {
+            statement.bindLong(1, new Date().getTime() / 1000);
+            statement.execute();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private void createUserIdTokens(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + UserIdTokens.TABLE_NAME + " (" +
+                   UserIdTokens._ID + " " + UserIdTokens._ID_type + "," +
+                   UserIdTokens.TOKEN + " " + UserIdTokens.TOKEN_type + "," +
+                   UserIdTokens.USER_ID + " " + UserIdTokens.USER_ID_type + ");");
+
+        // prefix searches are range scans on this one
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + UserIdTokens.TABLE_NAME + "_token ON " +
+                   UserIdTokens.TABLE_NAME + " (" +
+                   UserIdTokens.TOKEN + ", " + UserIdTokens.USER_ID + ");");
+
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + UserIdTokens.TABLE_NAME + "_user_id ON " +
+                   UserIdTokens.TABLE_NAME + " (" + UserIdTokens.USER_ID + ");");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + UserIds.TABLE_NAME + "_delete_cascade " +
+                   "AFTER DELETE ON " + UserIds.TABLE_NAME + " BEGIN " +
+                   "DELETE FROM " + UserIdTokens.TABLE_NAME + " WHERE " +
+                   UserIdTokens.USER_ID + " = OLD." + UserIds._ID + "; " +
+                   "END;");
+    }
+
+    private void createIndices(SQLiteDatabase db) {
+        // lookups of a ring by master key, insertOrUpdateKeyRing and the lists by type
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + KeyRings.TABLE_NAME + "_type_master_key_id ON " +
+                   KeyRings.TABLE_NAME + " (" +
+                   KeyRings.TYPE + ", " + KeyRings.MASTER_KEY_ID + ");");
+
+        // getKeyRingDataFromKeyId, getKeyDataFromKeyId and insertOrUpdateKey
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Keys.TABLE_NAME + "_key_id_type ON " +
+                   Keys.TABLE_NAME + " (" +
+                   Keys.KEY_ID + ", " + Keys.TYPE + ");");
+
+        // the key_rings -> keys joins, which always ask for the master key or all keys of a ring
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + Keys.TABLE_NAME + "_key_ring_id_is_master_key ON " +
+                   Keys.TABLE_NAME + " (" +
+                   Keys.KEY_RING_ID + ", " + Keys.IS_MASTER_KEY + ");");
+
+        // the keys -> user_ids joins on rank, and insertOrUpdateUserId
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + UserIds.TABLE_NAME + "_key_id_rank ON " +
+                   UserIds.TABLE_NAME + " (" +
+                   UserIds.KEY_ID + ", " + UserIds.RANK + ");");
+
+        // foreign keys aren't available on all SQLite versions we run on, so emulate
+        // ON DELETE CASCADE with triggers
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + KeyRings.TABLE_NAME + "_delete_cascade " +
+                   "AFTER DELETE ON " + KeyRings.TABLE_NAME + " BEGIN " +
+                   "DELETE FROM " + Keys.TABLE_NAME + " WHERE " +
+                   Keys.KEY_RING_ID + " = OLD." + KeyRings._ID + "; " +
+                   "END;");
+
+        db.execSQL("CREATE TRIGGER IF NOT EXISTS " + Keys.TABLE_NAME + "_delete_cascade " +
+                   "AFTER DELETE ON " + Keys.TABLE_NAME + " BEGIN " +
+                   "DELETE FROM " + UserIds.TABLE_NAME + " WHERE " +
+                   UserIds.KEY_ID + " = OLD." + Keys._ID + "; " +
+                   "END;");
     }
 
     @Override
@@ -127,6 +331,9 @@ public class Database extends SQLiteOpenHelper {
         for (int version = oldVersion; version < newVersion; ++version) {
             switch (version) {
                 case 1: { // upgrade 1 to 2
+                    // saveKeyRing() below already maintains the tokens and validity
+                    createUserIdTokens(db);
+
                     db.execSQL("DROP TABLE IF EXISTS " + KeyRings.TABLE_NAME + ";");
                     db.execSQL("DROP TABLE IF EXISTS " + Keys.TABLE_NAME + ";");
                     db.execSQL("DROP TABLE IF EXISTS " + UserIds.TABLE_NAME + ";");
@@ -160,6 +367,11 @@ public class Database extends SQLiteOpenHelper {
                                UserIds.USER_ID + " " + UserIds.USER_ID_type + "," +
                                UserIds.RANK + " " + UserIds.RANK_type + ");");
 
+                    createKeyRingValidity(db);
+                    addMissingColumns(db, Keys.TABLE_NAME, new String[][] {
+                        { Keys.FINGERPRINT, Keys.FINGERPRINT_type },
+                    });
+
                     Cursor cursor = db.query("public_keys", new String[] { "c_key_data" },
                                              null, null, null, null, null);
                     if (cursor != null && cursor.moveToFirst()) {
@@ -208,6 +420,109 @@ public class Database extends SQLiteOpenHelper {
                     break;
                 }
 
+                case 2: { // upgrade 2 to 3
+                    // clean up user ids and keys orphaned by earlier deletes, the triggers
+                    // take care of that from now on
+                    db.execSQL("DELETE FROM " + Keys.TABLE_NAME + " WHERE " +
+                               Keys.KEY_RING_ID + " NOT IN (SELECT " + KeyRings._ID +
+                               " FROM " + KeyRings.TABLE_NAME + ");");
+                    db.execSQL("DELETE FROM " + UserIds.TABLE_NAME + " WHERE " +
+                               UserIds.KEY_ID + " NOT IN (SELECT " + Keys._ID +
+                               " FROM " + Keys.TABLE_NAME + ");");
+
+                    createIndices(db);
+                    break;
+                }
+
+                case 3: { // upgrade 3 to 4
+                    createUserIdTokens(db);
+                    // start over, in case an upgrade from 1 filled in some already
+                    db.execSQL("DELETE FROM " + UserIdTokens.TABLE_NAME + ";");
+
+                    SQLiteStatement insertToken = db.compileStatement(buildInsertToken());
+                    Cursor cursor = db.query(UserIds.TABLE_NAME,
+                                             new String[] { UserIds._ID, UserIds.USER_ID },
+                                             null, null, null, null, null);
+                    if (cursor != null && cursor.moveToFirst()) {
+                        do {
+                            insertTokens(insertToken, cursor.getLong(0), cursor.getString(1));
+                        } while (cursor.moveToNext());
+                    }
+
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    insertToken.close();
+                    break;
+                }
+
+                case 4: { // upgrade 4 to 5
+                    createKeyRingValidity(db);
+
+                    SQLiteStatement updateValidity = db.compileStatement(buildValidityUpdate("1"));
+                    updateValidity.bindLong(1, new Date().getTime() / 1000);
+                    updateValidity.execute();
+                    updateValidity.close();
+                    break;
+                }
+
+                case 5: { // upgrade 5 to 6
+                    addMissingColumns(db, Keys.TABLE_NAME, new String[][] {
+                        { Keys.FINGERPRINT, Keys.FINGERPRINT_type },
+                    });
+
+                    SQLiteStatement updateFingerPrint =
+                            db.compileStatement("UPDATE " + Keys.TABLE_NAME + " SET " +
+                                                Keys.FINGERPRINT + " = ? WHERE " +
+                                                Keys.KEY_ID + " = ? AND " + Keys.TYPE + " = ?");
+                    Cursor cursor = db.query(KeyRings.TABLE_NAME,
+                                             new String[] { KeyRings.TYPE, KeyRings.KEY_RING_DATA },
+                                             null, null, null, null, null);
+                    if (cursor != null && cursor.moveToFirst()) {
+                        do {
+                            int type = cursor.getInt(0);
+                            try {
+                                Vector<PGPPublicKey> keys = new Vector<PGPPublicKey>();
+                                if (type == Id.database.type_public) {
+                                    PGPPublicKeyRing keyRing =
+                                            new PGPPublicKeyRing(cursor.getBlob(1));
+                                    for (PGPPublicKey key :
+                                            new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+                                        keys.add(key);
+                                    }
+                                } else {
+                                    PGPSecretKeyRing keyRing =
+                                            new PGPSecretKeyRing(cursor.getBlob(1));
+                                    for (PGPSecretKey key :
+                                            new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
+                                        keys.add(key.getPublicKey());
+                                    }
+                                }
+                                for (PGPPublicKey key : keys) {
+                                    updateFingerPrint.bindBlob(1, key.getFingerprint());
+                                    updateFingerPrint.bindLong(2, key.getKeyID());
+                                    updateFingerPrint.bindLong(3, type);
+                                    updateFingerPrint.execute();
+                                }
+                            } catch (IOException e) {
+                                Log.e("apg.db.upgrade", "fingerprint update failed: " + e);
+                            } catch (PGPException e) {
+                                Log.e("apg.db.upgrade", "fingerprint update failed: " + e);
+                            }
+                        } while (cursor.moveToNext());
+                    }
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                    updateFingerPrint.close();
+                    break;
+                }
+
+                case 6: { // upgrade 6 to 7
+                    createKeyRingRefresh(db);
+                    break;
+                }
+
                 default: {
                     break;
                 }
@@ -216,86 +531,159 @@ public class Database extends SQLiteOpenHelper {
         mDb = null;
     }
 
-    public int saveKeyRing(PGPPublicKeyRing keyRing) throws IOException, GeneralException {
-        mDb.beginTransaction();
-        ContentValues values = new ContentValues();
+    public synchronized int saveKeyRing(PGPPublicKeyRing keyRing)
+            throws IOException, GeneralException {
         PGPPublicKey masterKey = keyRing.getPublicKey();
         long masterKeyId = masterKey.getKeyID();
 
-        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.TYPE, Id.database.type_public);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
-
-        long rowId = insertOrUpdateKeyRing(values);
-        int returnValue = mStatus;
+        mDb.beginTransaction();
+        try {
+            long rowId = insertOrUpdateKeyRing(masterKeyId, Id.database.type_public,
+                                               keyRing.getEncoded());
+            int returnValue = mStatus;
 
-        if (rowId == -1) {
-            throw new GeneralException("saving public key ring " + masterKeyId + " failed");
-        }
+            if (rowId == -1) {
+                throw new GeneralException("saving public key ring " + masterKeyId + " failed");
+            }
 
-        Vector<Integer> seenIds = new Vector<Integer>();
-        int rank = 0;
-        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
-            seenIds.add(saveKey(rowId, key, rank));
-            ++rank;
-        }
+            if (returnValue != Id.return_value.unchanged) {
+                Vector<byte[]> replacedKeys = getReplacedKeys(Id.database.type_public);
+                Vector<Integer> seenIds = new Vector<Integer>();
+                int rank = 0;
+                for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+                    int keyRowId = -1;
+                    if (rank < replacedKeys.size() &&
+                        Arrays.equals(replacedKeys.get(rank), key.getEncoded())) {
+                        // same key at the same rank, its rows can stay as they are
+                        keyRowId = findKey(key.getKeyID(), Id.database.type_public);
+                    }
+                    if (keyRowId == -1) {
+                        keyRowId = saveKey(rowId, key, rank);
+                    }
+                    seenIds.add(keyRowId);
+                    ++rank;
+                }
 
-        String seenIdsStr = "";
-        for (Integer id : seenIds) {
-            if (seenIdsStr.length() > 0) {
-                seenIdsStr += ",";
+                mDb.delete(Keys.TABLE_NAME,
+                           Keys.KEY_RING_ID + " = ? AND " +
+                           Keys._ID + " NOT IN (" + joinIds(seenIds) + ")",
+                           new String[] { "" + rowId });
+                updateValidity(rowId);
+                mPublicKeyRingCache.remove(masterKeyId);
+                notifyKeyRingsChanged(Id.database.type_public);
             }
-            seenIdsStr += id;
-        }
-        mDb.delete(Keys.TABLE_NAME,
-                   Keys.KEY_RING_ID + " = ? AND " +
-                   Keys._ID + " NOT IN (" + seenIdsStr + ")",
-                   new String[] { "" + rowId });
 
-        mDb.setTransactionSuccessful();
-        mDb.endTransaction();
-        return returnValue;
+            mDb.setTransactionSuccessful();
+            return returnValue;
+        } finally {
+            mDb.endTransaction();
+            // a loader might have cached the old ring between the remove() and the commit
+            mPublicKeyRingCache.remove(masterKeyId);
+        }
     }
 
-    public int saveKeyRing(PGPSecretKeyRing keyRing) throws IOException, GeneralException {
-        mDb.beginTransaction();
-        ContentValues values = new ContentValues();
+    public synchronized int saveKeyRing(PGPSecretKeyRing keyRing)
+            throws IOException, GeneralException {
         PGPSecretKey masterKey = keyRing.getSecretKey();
         long masterKeyId = masterKey.getKeyID();
 
-        values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
-        values.put(KeyRings.TYPE, Id.database.type_secret);
-        values.put(KeyRings.KEY_RING_DATA, keyRing.getEncoded());
+        mDb.beginTransaction();
+        try {
+            long rowId = insertOrUpdateKeyRing(masterKeyId, Id.database.type_secret,
+                                               keyRing.getEncoded());
+            int returnValue = mStatus;
 
-        long rowId = insertOrUpdateKeyRing(values);
-        int returnValue = mStatus;
+            if (rowId == -1) {
+                throw new GeneralException("saving secret key ring " + masterKeyId + " failed");
+            }
 
-        if (rowId == -1) {
-            throw new GeneralException("saving secret key ring " + masterKeyId + " failed");
+            if (returnValue != Id.return_value.unchanged) {
+                Vector<byte[]> replacedKeys = getReplacedKeys(Id.database.type_secret);
+                Vector<Integer> seenIds = new Vector<Integer>();
+                int rank = 0;
+                for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
+                    int keyRowId = -1;
+                    if (rank < replacedKeys.size() &&
+                        Arrays.equals(replacedKeys.get(rank), key.getEncoded())) {
+                        // same key at the same rank, its rows can stay as they are
+                        keyRowId = findKey(key.getPublicKey().getKeyID(), Id.database.type_secret);
+                    }
+                    if (keyRowId == -1) {
+                        keyRowId = saveKey(rowId, key, rank);
+                    }
+                    seenIds.add(keyRowId);
+                    ++rank;
+                }
+
+                mDb.delete(Keys.TABLE_NAME,
+                           Keys.KEY_RING_ID + " = ? AND " +
+                           Keys._ID + " NOT IN (" + joinIds(seenIds) + ")",
+                           new String[] { "" + rowId });
+                updateValidity(rowId);
+                mSecretKeyRingCache.remove(masterKeyId);
+                notifyKeyRingsChanged(Id.database.type_secret);
+            }
+
+            mDb.setTransactionSuccessful();
+            return returnValue;
+        } finally {
+            mDb.endTransaction();
+            // a loader might have cached the old ring between the remove() and the commit
+            mSecretKeyRingCache.remove(masterKeyId);
         }
+    }
 
-        Vector<Integer> seenIds = new Vector<Integer>();
-        int rank = 0;
-        for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
-            seenIds.add(saveKey(rowId, key, rank));
-            ++rank;
+    // lets the lists watching the key ring URIs reload, see AsyncQuery
+    private void notifyKeyRingsChanged(int type) {
+        if (mContentResolver == null) {
+            return;
+        }
+        if (type == Id.database.type_public) {
+            mContentResolver.notifyChange(Apg.CONTENT_URI_PUBLIC_KEY_RINGS, null);
+        } else {
+            mContentResolver.notifyChange(Apg.CONTENT_URI_SECRET_KEY_RINGS, null);
         }
+    }
 
-        String seenIdsStr = "";
-        for (Integer id : seenIds) {
-            if (seenIdsStr.length() > 0) {
-                seenIdsStr += ",";
+    // the encoded keys of the ring data saveKeyRing() just replaced, by rank
+    private Vector<byte[]> getReplacedKeys(int type) {
+        Vector<byte[]> keys = new Vector<byte[]>();
+        if (mReplacedData == null) {
+            return keys;
+        }
+        try {
+            if (type == Id.database.type_public) {
+                PGPPublicKeyRing keyRing = new PGPPublicKeyRing(mReplacedData);
+                for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+                    keys.add(key.getEncoded());
+                }
+            } else {
+                PGPSecretKeyRing keyRing = new PGPSecretKeyRing(mReplacedData);
+                for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
+                    keys.add(key.getEncoded());
+                }
             }
-            seenIdsStr += id;
+        } catch (IOException e) {
+            // rewrite all keys then
+            keys.clear();
+        } catch (PGPException e) {
+            keys.clear();
         }
-        mDb.delete(Keys.TABLE_NAME,
-                   Keys.KEY_RING_ID + " = ? AND " +
-                   Keys._ID + " NOT IN (" + seenIdsStr + ")",
-                   new String[] { "" + rowId });
+        return keys;
+    }
 
-        mDb.setTransactionSuccessful();
-        mDb.endTransaction();
-        return returnValue;
+    private int findKey(long keyId, int type) {
+        prepareStatements();
+
+        mFindKeyStatement.bindLong(1, keyId);
+        mFindKeyStatement.bindLong(2, type);
+        return (int) findRowId(mFindKeyStatement);
+    }
+
+    private void updateValidity(long keyRingId) {
+        mUpdateValidityStatement.bindLong(1, new Date().getTime() / 1000);
+        mUpdateValidityStatement.bindLong(2, keyRingId);
+        mUpdateValidityStatement.execute();
     }
 
     private int saveKey(long keyRingId, PGPPublicKey key, int rank)
@@ -318,6 +706,7 @@ public class Database extends SQLiteOpenHelper {
         values.put(Keys.KEY_RING_ID, keyRingId);
         values.put(Keys.KEY_DATA, key.getEncoded());
         values.put(Keys.RANK, rank);
+        values.put(Keys.FINGERPRINT, key.getFingerprint());
 
         long rowId = insertOrUpdateKey(values);
 
@@ -332,16 +721,9 @@ public class Database extends SQLiteOpenHelper {
             ++userIdRank;
         }
 
-        String seenIdsStr = "";
-        for (Integer id : seenIds) {
-            if (seenIdsStr.length() > 0) {
-                seenIdsStr += ",";
-            }
-            seenIdsStr += id;
-        }
         mDb.delete(UserIds.TABLE_NAME,
                    UserIds.KEY_ID + " = ? AND " +
-                   UserIds._ID + " NOT IN (" + seenIdsStr + ")",
+                   UserIds._ID + " NOT IN (" + joinIds(seenIds) + ")",
                    new String[] { "" + rowId });
 
         return (int)rowId;
@@ -367,6 +749,7 @@ public class Database extends SQLiteOpenHelper {
         values.put(Keys.KEY_RING_ID, keyRingId);
         values.put(Keys.KEY_DATA, key.getEncoded());
         values.put(Keys.RANK, rank);
+        values.put(Keys.FINGERPRINT, key.getPublicKey().getFingerprint());
 
         long rowId = insertOrUpdateKey(values);
 
@@ -381,16 +764,9 @@ public class Database extends SQLiteOpenHelper {
             ++userIdRank;
         }
 
-        String seenIdsStr = "";
-        for (Integer id : seenIds) {
-            if (seenIdsStr.length() > 0) {
-                seenIdsStr += ",";
-            }
-            seenIdsStr += id;
-        }
         mDb.delete(UserIds.TABLE_NAME,
                    UserIds.KEY_ID + " = ? AND " +
-                   UserIds._ID + " NOT IN (" + seenIdsStr + ")",
+                   UserIds._ID + " NOT IN (" + joinIds(seenIds) + ")",
                    new String[] { "" + rowId });
 
         return (int)rowId;
@@ -412,22 +788,153 @@ public class Database extends SQLiteOpenHelper {
         return (int)rowId;
     }
 
-    private long insertOrUpdateKeyRing(ContentValues values) {
-        Cursor c = mDb.query(KeyRings.TABLE_NAME, new String[] { KeyRings._ID },
+    private static String joinIds(Vector<Integer> ids) {
+        StringBuilder result = new StringBuilder();
+        for (Integer id : ids) {
+            if (result.length() > 0) {
+                result.append(',');
+            }
+            result.append(id);
+        }
+        return result.toString();
+    }
+
+    private void prepareStatements() {
+        if (mStatementsDb == mDb) {
+            return;
+        }
+        closeStatements();
+
+        mFindKeyStatement =
+                mDb.compileStatement("SELECT " + Keys._ID + " FROM " + Keys.TABLE_NAME +
+                                     " WHERE " + Keys.KEY_ID + " = ? AND " + Keys.TYPE + " = ?");
+        mInsertKeyStatement = mDb.compileStatement(buildInsert(Keys.TABLE_NAME, KEY_COLUMNS));
+        mUpdateKeyStatement = mDb.compileStatement(buildUpdate(Keys.TABLE_NAME, KEY_COLUMNS));
+
+        mFindUserIdStatement =
+                mDb.compileStatement("SELECT " + UserIds._ID + " FROM " + UserIds.TABLE_NAME +
+                                     " WHERE " + UserIds.KEY_ID + " = ? AND " +
+                                     UserIds.USER_ID + " = ?");
+        mInsertUserIdStatement =
+                mDb.compileStatement(buildInsert(UserIds.TABLE_NAME, USER_ID_COLUMNS));
+        mUpdateUserIdStatement =
+                mDb.compileStatement(buildUpdate(UserIds.TABLE_NAME, USER_ID_COLUMNS));
+
+        mInsertKeyRingStatement =
+                mDb.compileStatement(buildInsert(KeyRings.TABLE_NAME, KEY_RING_COLUMNS));
+        mUpdateKeyRingStatement =
+                mDb.compileStatement("UPDATE " + KeyRings.TABLE_NAME + " SET " +
+                                     KeyRings.KEY_RING_DATA + " = ? WHERE " +
+                                     KeyRings._ID + " = ?");
+
+        mInsertTokenStatement = mDb.compileStatement(buildInsertToken());
+        mUpdateValidityStatement =
+                mDb.compileStatement(buildValidityUpdate(KeyRings._ID + " = ?2"));
+
+        mStatementsDb = mDb;
+    }
+
+    private void closeStatements() {
+        SQLiteStatement statements[] = new SQLiteStatement[] {
+            mFindKeyStatement, mInsertKeyStatement, mUpdateKeyStatement,
+            mFindUserIdStatement, mInsertUserIdStatement, mUpdateUserIdStatement,
+            mInsertKeyRingStatement, mUpdateKeyRingStatement, mInsertTokenStatement,
+            mUpdateValidityStatement,
+        };
+        for (SQLiteStatement statement : statements) {
+            if (statement != null) {
+                statement.close();
+            }
+        }
+        mStatementsDb = null;
+    }
+
+    private static String buildInsert(String table, String columns[]) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("INSERT INTO ").append(table).append(" (");
+        for (int i = 0; i < columns.length; ++i) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]);
+        }
+        sql.append(") VALUES (");
+        for (int i = 0; i < columns.length; ++i) {
+            sql.append(i == 0 ? "?" : ", ?");
+        }
+        sql.append(")");
+        return sql.toString();
+    }
+
+    private static String buildUpdate(String table, String columns[]) {
+        StringBuilder sql = new StringBuilder();
+        sql.append("UPDATE ").append(table).append(" SET ");
+        for (int i = 0; i < columns.length; ++i) {
+            sql.append(i == 0 ? "" : ", ").append(columns[i]).append(" = ?");
+        }
+        sql.append(" WHERE " + BaseColumns._ID + " = ?");
+        return sql.toString();
+    }
+
+    private static void bindValues(SQLiteStatement statement, String columns[],
+                                   ContentValues values) {
+        statement.clearBindings();
+        for (int i = 0; i < columns.length; ++i) {
+            Object value = values.get(columns[i]);
+            int index = i + 1;
+            if (value == null) {
+                statement.bindNull(index);
+            } else if (value instanceof byte[]) {
+                statement.bindBlob(index, (byte[]) value);
+            } else if (value instanceof Boolean) {
+                statement.bindLong(index, ((Boolean) value) ? 1 : 0);
+            } else if (value instanceof Number) {
+                statement.bindLong(index, ((Number) value).longValue());
+            } else {
+                statement.bindString(index, value.toString());
+            }
+        }
+    }
+
+    private static long findRowId(SQLiteStatement statement) {
+        try {
+            return statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            // no such row
+            return -1;
+        }
+    }
+
+    private long insertOrUpdateKeyRing(long masterKeyId, int type, byte[] data) {
+        prepareStatements();
+
+        Cursor c = mDb.query(KeyRings.TABLE_NAME,
+                             new String[] { KeyRings._ID, KeyRings.KEY_RING_DATA },
                              KeyRings.MASTER_KEY_ID + " = ? AND " + KeyRings.TYPE + " = ?",
                              new String[] {
-                                 values.getAsString(KeyRings.MASTER_KEY_ID),
-                                 values.getAsString(KeyRings.TYPE),
+                                 "" + masterKeyId,
+                                 "" + type,
                              },
                              null, null, null);
         long rowId = -1;
+        mReplacedData = null;
         if (c != null && c.moveToFirst()) {
             rowId = c.getLong(0);
-            mDb.update(KeyRings.TABLE_NAME, values,
-                       KeyRings._ID + " = ?", new String[] { "" + rowId });
-            mStatus = Id.return_value.updated;
+            byte oldData[] = c.getBlob(1);
+            if (Arrays.equals(data, oldData)) {
+                // nothing new in there, keys and user ids can stay as they are
+                mStatus = Id.return_value.unchanged;
+            } else {
+                mReplacedData = oldData;
+                mUpdateKeyRingStatement.bindBlob(1, data);
+                mUpdateKeyRingStatement.bindLong(2, rowId);
+                mUpdateKeyRingStatement.execute();
+                mStatus = Id.return_value.updated;
+            }
         } else {
-            rowId = mDb.insert(KeyRings.TABLE_NAME, KeyRings.WHO_ID, values);
+            ContentValues values = new ContentValues();
+            values.put(KeyRings.MASTER_KEY_ID, masterKeyId);
+            values.put(KeyRings.TYPE, type);
+            values.put(KeyRings.KEY_RING_DATA, data);
+            bindValues(mInsertKeyRingStatement, KEY_RING_COLUMNS, values);
+            rowId = mInsertKeyRingStatement.executeInsert();
             mStatus = Id.return_value.ok;
         }
 
@@ -439,51 +946,155 @@ public class Database extends SQLiteOpenHelper {
     }
 
     private long insertOrUpdateKey(ContentValues values) {
-        Cursor c = mDb.query(Keys.TABLE_NAME, new String[] { Keys._ID },
-                             Keys.KEY_ID + " = ? AND " + Keys.TYPE + " = ?",
-                             new String[] {
-                                 values.getAsString(Keys.KEY_ID),
-                                 values.getAsString(Keys.TYPE),
-                             },
-                             null, null, null);
-        long rowId = -1;
-        if (c != null && c.moveToFirst()) {
-            rowId = c.getLong(0);
-            mDb.update(Keys.TABLE_NAME, values,
-                       Keys._ID + " = ?", new String[] { "" + rowId });
+        prepareStatements();
+
+        mFindKeyStatement.bindLong(1, values.getAsLong(Keys.KEY_ID));
+        mFindKeyStatement.bindLong(2, values.getAsLong(Keys.TYPE));
+        long rowId = findRowId(mFindKeyStatement);
+        if (rowId != -1) {
+            bindValues(mUpdateKeyStatement, KEY_COLUMNS, values);
+            mUpdateKeyStatement.bindLong(KEY_COLUMNS.length + 1, rowId);
+            mUpdateKeyStatement.execute();
         } else {
-            rowId = mDb.insert(Keys.TABLE_NAME, Keys.KEY_DATA, values);
+            bindValues(mInsertKeyStatement, KEY_COLUMNS, values);
+            rowId = mInsertKeyStatement.executeInsert();
         }
 
-        if (c != null) {
-            c.close();
+        return rowId;
+    }
+
+    private long insertOrUpdateUserId(ContentValues values) {
+        prepareStatements();
+
+        mFindUserIdStatement.bindLong(1, values.getAsLong(UserIds.KEY_ID));
+        mFindUserIdStatement.bindString(2, values.getAsString(UserIds.USER_ID));
+        long rowId = findRowId(mFindUserIdStatement);
+        if (rowId != -1) {
+            bindValues(mUpdateUserIdStatement, USER_ID_COLUMNS, values);
+            mUpdateUserIdStatement.bindLong(USER_ID_COLUMNS.length + 1, rowId);
+            mUpdateUserIdStatement.execute();
+        } else {
+            bindValues(mInsertUserIdStatement, USER_ID_COLUMNS, values);
+            rowId = mInsertUserIdStatement.executeInsert();
+            // user ids are found by their text, so only new rows need tokens, the
+            // delete trigger takes care of the rest
+            if (rowId != -1) {
+                insertTokens(mInsertTokenStatement, rowId, values.getAsString(UserIds.USER_ID));
+            }
         }
 
         return rowId;
     }
 
-    private long insertOrUpdateUserId(ContentValues values) {
-        Cursor c = mDb.query(UserIds.TABLE_NAME, new String[] { UserIds._ID },
-                             UserIds.KEY_ID + " = ? AND " + UserIds.USER_ID + " = ?",
-                             new String[] {
-                                 values.getAsString(UserIds.KEY_ID),
-                                 values.getAsString(UserIds.USER_ID),
-                             },
-                             null, null, null);
-        long rowId = -1;
-        if (c != null && c.moveToFirst()) {
-            rowId = c.getLong(0);
-            mDb.update(UserIds.TABLE_NAME, values,
-                       UserIds._ID + " = ?", new String[] { "" + rowId });
+    private static String buildInsertToken() {
+        return buildInsert(UserIdTokens.TABLE_NAME,
+                           new String[] { UserIdTokens.TOKEN, UserIdTokens.USER_ID });
+    }
+
+    private static void insertTokens(SQLiteStatement statement, long userIdRowId, String userId) {
+        if (userId == null) {
+            return;
+        }
+        for (String token : tokenizeUserId(userId)) {
+            statement.bindString(1, token);
+            statement.bindLong(2, userIdRowId);
+            statement.executeInsert();
+        }
+    }
+
+    // lowercase words, plus whole email addresses and their domains, so "joe@exa" and
+    // "example.org" both find "Joe <joe@example.org>"
+    public static Vector<String> tokenizeUserId(String userId) {
+        Vector<String> tokens = new Vector<String>();
+        String lowerCase = userId.toLowerCase(Locale.ENGLISH);
+        Matcher matcher = USER_ID_EMAIL.matcher(lowerCase);
+        while (matcher.find()) {
+            String email = matcher.group();
+            addToken(tokens, email);
+            addToken(tokens, email.substring(email.indexOf('@') + 1));
+        }
+        matcher = USER_ID_WORD.matcher(lowerCase);
+        while (matcher.find()) {
+            addToken(tokens, matcher.group());
+        }
+        return tokens;
+    }
+
+    private static void addToken(Vector<String> tokens, String token) {
+        if (token.length() > 0 && !tokens.contains(token)) {
+            tokens.add(token);
+        }
+    }
+
+    // Condition on keyIdColumn (a keys._id) matching keys with a user ID that has a token
+    // starting with every word of the search string, nothing matches a search string without
+    // any words. Unlike LIKE '%...%' this only finds word prefixes, but it can use the index.
+    public static String buildUserIdSearch(String keyIdColumn, String searchString) {
+        Vector<String> prefixes = new Vector<String>();
+        for (String chunk : searchString.trim().split(" +")) {
+            for (String token : tokenizeUserId(chunk)) {
+                addToken(prefixes, token);
+            }
+        }
+        if (prefixes.size() == 0) {
+            // the filter is still on, it just can't find anything
+            return "0";
+        }
+
+        StringBuilder matches = new StringBuilder();
+        for (String prefix : prefixes) {
+            if (matches.length() > 0) {
+                matches.append(" INTERSECT ");
+            }
+            matches.append("SELECT " + UserIdTokens.USER_ID + " FROM " + UserIdTokens.TABLE_NAME +
+                           " WHERE ");
+            appendPrefixRange(matches, prefix);
+        }
+
+        return keyIdColumn + " IN (SELECT tmp." + UserIds.KEY_ID + " FROM " +
+               UserIds.TABLE_NAME + " AS tmp WHERE tmp." + UserIds._ID + " IN (" +
+               matches + "))";
+    }
+
+    private static void appendPrefixRange(StringBuilder sql, String prefix) {
+        sql.append(UserIdTokens.TOKEN + " >= " + DatabaseUtils.sqlEscapeString(prefix));
+        char last = prefix.charAt(prefix.length() - 1);
+        if (last < Character.MIN_SURROGATE - 1) {
+            String end = prefix.substring(0, prefix.length() - 1) + (char) (last + 1);
+            sql.append(" AND " + UserIdTokens.TOKEN + " < " + DatabaseUtils.sqlEscapeString(end));
         } else {
-            rowId = mDb.insert(UserIds.TABLE_NAME, UserIds.USER_ID, values);
+            sql.append(" AND substr(" + UserIdTokens.TOKEN + ", 1, " +
+                       prefix.codePointCount(0, prefix.length()) + ") = " +
+                       DatabaseUtils.sqlEscapeString(prefix));
         }
+    }
 
-        if (c != null) {
-            c.close();
+    // Condition on keyIdColumn matching keys with a user ID ending in "<email>" for any of
+    // the given emails. The token index narrows it down, LIKE confirms the position.
+    public static String buildEmailSearch(String keyIdColumn, String emails[]) {
+        StringBuilder tokens = new StringBuilder();
+        StringBuilder likes = new StringBuilder();
+        for (String email : emails) {
+            if (email.length() == 0) {
+                continue;
+            }
+            if (tokens.length() > 0) {
+                tokens.append(", ");
+                likes.append(" OR ");
+            }
+            tokens.append(DatabaseUtils.sqlEscapeString(email.toLowerCase(Locale.ENGLISH)));
+            // match '*<email>', so it has to be at the *end* of the user id
+            likes.append("tmp." + UserIds.USER_ID + " LIKE " +
+                         DatabaseUtils.sqlEscapeString("%<" + email + ">"));
+        }
+        if (tokens.length() == 0) {
+            return null;
         }
 
-        return rowId;
+        return keyIdColumn + " IN (SELECT tmp." + UserIds.KEY_ID + " FROM " +
+               UserIds.TABLE_NAME + " AS tmp WHERE tmp." + UserIds._ID + " IN (" +
+               "SELECT " + UserIdTokens.USER_ID + " FROM " + UserIdTokens.TABLE_NAME +
+               " WHERE " + UserIdTokens.TOKEN + " IN (" + tokens + ")) AND (" + likes + "))";
     }
 
     public Object getKeyRing(int keyRingId) {
@@ -545,6 +1156,132 @@ public class Database extends SQLiteOpenHelper {
         return data;
     }
 
+    public HashMap<Long, byte[]> getKeyRingDataFromKeyIds(int type, long keyIds[]) {
+        HashMap<Long, byte[]> result = new HashMap<Long, byte[]>();
+        // every key ID is a bound parameter, SQLite allows at most 999 of them per statement
+        // (SQLITE_MAX_VARIABLE_NUMBER), so stay well below that
+        final int chunkSize = 500;
+        for (int start = 0; start < keyIds.length; start += chunkSize) {
+            int end = Math.min(keyIds.length, start + chunkSize);
+            StringBuilder inList = new StringBuilder();
+            String args[] = new String[end - start + 1];
+            for (int i = start; i < end; ++i) {
+                if (i != start) {
+                    inList.append(", ");
+                }
+                inList.append("?");
+                args[i - start] = "" + keyIds[i];
+            }
+            args[args.length - 1] = "" + type;
+
+            Cursor c = mDb.query(Keys.TABLE_NAME + " INNER JOIN " + KeyRings.TABLE_NAME + " ON (" +
+                                 KeyRings.TABLE_NAME + "." + KeyRings._ID + " = " +
+                                 Keys.TABLE_NAME + "." + Keys.KEY_RING_ID + ")",
+                                 new String[] {
+                                     Keys.TABLE_NAME + "." + Keys.KEY_ID,
+                                     KeyRings.TABLE_NAME + "." + KeyRings.KEY_RING_DATA,
+                                 },
+                                 Keys.TABLE_NAME + "." + Keys.KEY_ID + " IN (" + inList + ") AND " +
+                                 KeyRings.TABLE_NAME + "." + KeyRings.TYPE + " = ?",
+                                 args, null, null, null);
+
+            if (c != null && c.moveToFirst()) {
+                do {
+                    result.put(c.getLong(0), c.getBlob(1));
+                } while (c.moveToNext());
+            }
+
+            if (c != null) {
+                c.close();
+            }
+        }
+
+        return result;
+    }
+
+    public PGPPublicKeyRing getPublicKeyRingFromKeyId(long keyId) {
+        long generation = mPublicKeyRingCache.getGeneration();
+        PGPPublicKeyRing keyRing = mPublicKeyRingCache.get(keyId);
+        if (keyRing != null) {
+            return keyRing;
+        }
+
+        byte[] data = getKeyRingDataFromKeyId(Id.database.type_public, keyId);
+        if (data == null) {
+            return null;
+        }
+        return loadPublicKeyRing(data, generation);
+    }
+
+    // parses key ring data, e.g. from getKeyRingDataFromKeyIds, and caches the result,
+    // can be called from several threads at once, generation is the cache's generation
+    // from before the data was queried
+    public PGPPublicKeyRing loadPublicKeyRing(byte[] data, long generation) {
+        PGPPublicKeyRing keyRing = null;
+        try {
+            keyRing = new PGPPublicKeyRing(data);
+        } catch (IOException e) {
+            // can't load it, then
+            return null;
+        }
+
+        Vector<Long> keyIds = new Vector<Long>();
+        for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(keyRing.getPublicKeys())) {
+            keyIds.add(key.getKeyID());
+        }
+        mPublicKeyRingCache.put(keyRing.getPublicKey().getKeyID(), toArray(keyIds),
+                                keyRing, data.length, generation);
+
+        return keyRing;
+    }
+
+    public PGPSecretKeyRing getSecretKeyRingFromKeyId(long keyId) {
+        long generation = mSecretKeyRingCache.getGeneration();
+        PGPSecretKeyRing keyRing = mSecretKeyRingCache.get(keyId);
+        if (keyRing != null) {
+            return keyRing;
+        }
+
+        byte[] data = getKeyRingDataFromKeyId(Id.database.type_secret, keyId);
+        if (data == null) {
+            return null;
+        }
+        try {
+            keyRing = new PGPSecretKeyRing(data);
+        } catch (IOException e) {
+            // can't load it, then
+            return null;
+        } catch (PGPException e) {
+            // can't load it, then
+            return null;
+        }
+
+        Vector<Long> keyIds = new Vector<Long>();
+        for (PGPSecretKey key : new IterableIterator<PGPSecretKey>(keyRing.getSecretKeys())) {
+            keyIds.add(key.getKeyID());
+        }
+        mSecretKeyRingCache.put(keyRing.getSecretKey().getKeyID(), toArray(keyIds),
+                                keyRing, data.length, generation);
+
+        return keyRing;
+    }
+
+    private static long[] toArray(Vector<Long> values) {
+        long[] result = new long[values.size()];
+        for (int i = 0; i < result.length; ++i) {
+            result[i] = values.get(i);
+        }
+        return result;
+    }
+
+    public KeyRingCache<PGPPublicKeyRing> getPublicKeyRingCache() {
+        return mPublicKeyRingCache;
+    }
+
+    public KeyRingCache<PGPSecretKeyRing> getSecretKeyRingCache() {
+        return mSecretKeyRingCache;
+    }
+
     public byte[] getKeyDataFromKeyId(int type, long keyId) {
         Cursor c = mDb.query(Keys.TABLE_NAME, new String[] { Keys.KEY_DATA },
                              Keys.KEY_ID + " = ? AND " + Keys.TYPE + " = ?",
@@ -565,21 +1302,22 @@ public class Database extends SQLiteOpenHelper {
         return data;
     }
 
-    public void deleteKeyRing(int keyRingId) {
-        mDb.beginTransaction();
-        mDb.delete(KeyRings.TABLE_NAME,
-                   KeyRings._ID + " = ?", new String[] { "" + keyRingId });
-
-        Cursor c = mDb.query(Keys.TABLE_NAME, new String[] { Keys._ID },
-                             Keys.KEY_RING_ID + " = ?",
+    // master key IDs of the public rings not refreshed since the given time, in seconds,
+    // the ones that never were and the longest ago first
+    public synchronized Vector<Long> getStaleKeyRings(long refreshedBefore, int limit) {
+        Cursor c = mDb.query(KeyRings.TABLE_NAME, new String[] { KeyRings.MASTER_KEY_ID },
+                             KeyRings.TYPE + " = ? AND (" +
+                             KeyRings.LAST_REFRESHED + " IS NULL OR " +
+                             KeyRings.LAST_REFRESHED + " < ?)",
                              new String[] {
-                                 "" + keyRingId,
+                                 "" + Id.database.type_public,
+                                 "" + refreshedBefore,
                              },
-                                    null, null, null);
+                             null, null, KeyRings.LAST_REFRESHED + " ASC", "" + limit);
+        Vector<Long> masterKeyIds = new Vector<Long>();
         if (c != null && c.moveToFirst()) {
             do {
-                int keyId = c.getInt(0);
-                deleteKey(keyId);
+                masterKeyIds.add(c.getLong(0));
             } while (c.moveToNext());
         }
 
@@ -587,16 +1325,69 @@ public class Database extends SQLiteOpenHelper {
             c.close();
         }
 
+        return masterKeyIds;
+    }
+
+    public synchronized void setKeyRingsRefreshed(List<Long> masterKeyIds, long time) {
+        SQLiteStatement statement =
+                mDb.compileStatement("UPDATE " + KeyRings.TABLE_NAME + " SET " +
+                                     KeyRings.LAST_REFRESHED + " = ? WHERE " +
+                                     KeyRings.TYPE + " = ? AND " +
+                                     KeyRings.MASTER_KEY_ID + " = ?");
+        mDb.beginTransaction();
+        try {
+            for (long masterKeyId : masterKeyIds) {
+                statement.bindLong(1, time);
+                statement.bindLong(2, Id.database.type_public);
+                statement.bindLong(3, masterKeyId);
+                statement.execute();
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+            statement.close();
+        }
+    }
+
+    public void deleteKeyRing(int keyRingId) {
+        mDb.beginTransaction();
+        Cursor ringCursor = mDb.query(KeyRings.TABLE_NAME,
+                                      new String[] { KeyRings.MASTER_KEY_ID, KeyRings.TYPE },
+                                      KeyRings._ID + " = ?",
+                                      new String[] { "" + keyRingId },
+                                      null, null, null);
+        int type = -1;
+        long masterKeyId = 0;
+        if (ringCursor != null && ringCursor.moveToFirst()) {
+            masterKeyId = ringCursor.getLong(0);
+            type = ringCursor.getInt(1);
+            removeFromCache(type, masterKeyId);
+        }
+
+        if (ringCursor != null) {
+            ringCursor.close();
+        }
+
+        // keys and user ids are removed by the delete triggers
+        mDb.delete(KeyRings.TABLE_NAME,
+                   KeyRings._ID + " = ?", new String[] { "" + keyRingId });
+
         mDb.setTransactionSuccessful();
         mDb.endTransaction();
-    }
 
-    private void deleteKey(int keyId) {
-        mDb.delete(Keys.TABLE_NAME,
-                   Keys._ID + " = ?", new String[] { "" + keyId });
+        if (type != -1) {
+            // again, a loader might have cached the ring before the delete was committed
+            removeFromCache(type, masterKeyId);
+            notifyKeyRingsChanged(type);
+        }
+    }
 
-        mDb.delete(UserIds.TABLE_NAME,
-                   UserIds.KEY_ID + " = ?", new String[] { "" + keyId });
+    private void removeFromCache(int type, long masterKeyId) {
+        if (type == Id.database.type_public) {
+            mPublicKeyRingCache.remove(masterKeyId);
+        } else {
+            mSecretKeyRingCache.remove(masterKeyId);
+        }
     }
 
     public SQLiteDatabase db() {
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2010 Thialfihar <thi@thialfihar.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.thialfihar.android.apg.provider;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of parsed key rings, bounded by the summed size of their encoded data.
+ * Rings are stored by master key ID and can be looked up by any of their key IDs.
+ * <p>
+ * Loaders read {@link #getGeneration()} before they query the database and hand it to
+ * {@link #put}, a ring that was changed or deleted in the meantime is then dropped instead
+ * of being cached stale.
+ */
+public class KeyRingCache<T> {
+    public static final int DEFAULT_MAX_SIZE = 1 << 20;
+
+    private static class Entry<T> {
+        public final T keyRing;
+        public final long[] keyIds;
+        public final int size;
+
+        public Entry(T keyRing, long[] keyIds, int size) {
+            this.keyRing = keyRing;
+            this.keyIds = keyIds;
+            this.size = size;
+        }
+    }
+
+    private final int mMaxSize;
+    private int mSize = 0;
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+    // bumped by every remove() and clear()
+    private long mGeneration = 0;
+
+    // access ordered, so the eldest entry is the least recently used one
+    private final LinkedHashMap<Long, Entry<T>> mEntries =
+            new LinkedHashMap<Long, Entry<T>>(16, 0.75f, true);
+    private final HashMap<Long, Long> mMasterKeyIds = new HashMap<Long, Long>();
+
+    public KeyRingCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public KeyRingCache(int maxSize) {
+        mMaxSize = maxSize;
+    }
+
+    public synchronized T get(long keyId) {
+        Long masterKeyId = mMasterKeyIds.get(keyId);
+        if (masterKeyId == null) {
+            ++mMisses;
+            return null;
+        }
+        return getByMasterKeyId(masterKeyId);
+    }
+
+    public synchronized T getByMasterKeyId(long masterKeyId) {
+        Entry<T> entry = mEntries.get(masterKeyId);
+        if (entry == null) {
+            ++mMisses;
+            return null;
+        }
+        ++mHits;
+        return entry.keyRing;
+    }
+
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    public synchronized void put(long masterKeyId, long[] keyIds, T keyRing, int size,
+                                 long generation) {
+        if (generation != mGeneration) {
+            // something was invalidated since the data was read, it might be this ring
+            return;
+        }
+
+        drop(masterKeyId);
+        if (size > mMaxSize) {
+            // would evict everything else and still not fit, don't bother
+            return;
+        }
+
+        mEntries.put(masterKeyId, new Entry<T>(keyRing, keyIds, size));
+        for (long keyId : keyIds) {
+            mMasterKeyIds.put(keyId, masterKeyId);
+        }
+        mMasterKeyIds.put(masterKeyId, masterKeyId);
+        mSize += size;
+
+        Iterator<Map.Entry<Long, Entry<T>>> it = mEntries.entrySet().iterator();
+        while (mSize > mMaxSize && it.hasNext()) {
+            Map.Entry<Long, Entry<T>> eldest = it.next();
+            it.remove();
+            forget(eldest.getKey(), eldest.getValue());
+            ++mEvictions;
+        }
+    }
+
+    public synchronized void remove(long masterKeyId) {
+        drop(masterKeyId);
+        ++mGeneration;
+    }
+
+    public synchronized void clear() {
+        ++mGeneration;
+        mEntries.clear();
+        mMasterKeyIds.clear();
+        mSize = 0;
+    }
+
+    private void drop(long masterKeyId) {
+        Entry<T> entry = mEntries.remove(masterKeyId);
+        if (entry != null) {
+            forget(masterKeyId, entry);
+        }
+    }
+
+    private void forget(long masterKeyId, Entry<T> entry) {
+        mSize -= entry.size;
+        for (long keyId : entry.keyIds) {
+            Long mapped = mMasterKeyIds.get(keyId);
+            // a key ID might have moved to another ring in the meantime
+            if (mapped != null && mapped == masterKeyId) {
+                mMasterKeyIds.remove(keyId);
+            }
+        }
+        mMasterKeyIds.remove(masterKeyId);
+    }
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    public synchronized int count() {
+        return mEntries.size();
+    }
+
+    public synchronized long getHits() {
+        return mHits;
+    }
+
+    public synchronized long getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getEvictions() {
+        return mEvictions;
+    }
+
+    public synchronized void resetStats() {
+        mHits = 0;
+        mMisses = 0;
+        mEvictions = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "KeyRingCache(" + mEntries.size() + " rings, " + mSize + "/" + mMaxSize +
+               " bytes, " + mHits + " hits, " + mMisses + " misses, " +
+               mEvictions + " evictions)";
+    }
+}
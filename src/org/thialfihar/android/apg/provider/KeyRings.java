@@ -30,4 +30,22 @@ public class KeyRings implements BaseColumns {
     public static final String WHO_ID_type = "INTEGER";
     public static final String KEY_RING_DATA = "c_key_ring_data";
     public static final String KEY_RING_DATA_type = "BLOB";
+
+    // derived from the ring's keys by Database.saveKeyRing(), the CAN_ columns only count
+    // keys that are valid right now and are refreshed by Database.revalidateKeyRings()
+    // once VALIDITY_CHANGE, the next creation or expiry time, has passed
+    public static final String HAS_ENCRYPT_KEYS = "c_has_encrypt_keys";
+    public static final String HAS_ENCRYPT_KEYS_type = "INTEGER";
+    public static final String CAN_ENCRYPT = "c_can_encrypt";
+    public static final String CAN_ENCRYPT_type = "INTEGER";
+    public static final String HAS_SIGN_KEYS = "c_has_sign_keys";
+    public static final String HAS_SIGN_KEYS_type = "INTEGER";
+    public static final String CAN_SIGN = "c_can_sign";
+    public static final String CAN_SIGN_type = "INTEGER";
+    public static final String VALIDITY_CHANGE = "c_validity_change";
+    public static final String VALIDITY_CHANGE_type = "INTEGER";
+
+    // when KeyRefresher last looked the ring up on the key servers, in seconds, NULL if never
+    public static final String LAST_REFRESHED = "c_last_refreshed";
+    public static final String LAST_REFRESHED_type = "INTEGER";
 }
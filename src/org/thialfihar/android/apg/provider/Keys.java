@@ -48,4 +48,6 @@ public class Keys implements BaseColumns {
     public static final String KEY_DATA_type = "BLOB";
     public static final String RANK = "c_key_data";
     public static final String RANK_type = "INTEGER";
+    public static final String FINGERPRINT = "c_fingerprint";
+    public static final String FINGERPRINT_type = "BLOB";
 }